@@ -0,0 +1,111 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.time.Instant;
+
+/**
+ * writes one line per handled request to a file. formatting and writing happen
+ * on a background thread, request threads only enqueue an entry.
+ *
+ * format: time remote-address method uri status body-bytes latency-micros
+ */
+class AccessLog implements Closeable {
+
+	private final static class Entry {
+
+		private final long timestamp;
+		private final InetAddress remoteAddress;
+		private final String method;
+		private final String uri;
+		private final int status;
+		private final long bytes;
+		private final long latencyNanos;
+
+		private Entry(long timestamp, InetAddress remoteAddress, String method, String uri, int status, long bytes,
+				long latencyNanos) {
+			this.timestamp = timestamp;
+			this.remoteAddress = remoteAddress;
+			this.method = method;
+			this.uri = uri;
+			this.status = status;
+			this.bytes = bytes;
+			this.latencyNanos = latencyNanos;
+		}
+
+	}
+
+	private final BufferedWriter writer;
+	private final StringBuilder line;
+	private final BatchingWorker<Entry> worker;
+
+	AccessLog(File file, int capacity) throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), WebServer.UTF_8));
+		line = new StringBuilder(256);
+		worker = new BatchingWorker<>("access-log", capacity, this::write, this::flush, this::writeDropped);
+	}
+
+	private void write(Entry entry) {
+		line.setLength(0);
+		line.append(Instant.ofEpochMilli(entry.timestamp));
+		line.append(' ');
+		line.append(entry.remoteAddress != null ? entry.remoteAddress.getHostAddress() : "-");
+		line.append(' ');
+		line.append(entry.method);
+		line.append(' ');
+		line.append(entry.uri);
+		line.append(' ');
+		line.append(entry.status);
+		line.append(' ');
+		line.append(entry.bytes);
+		line.append(' ');
+		line.append(entry.latencyNanos / 1_000);
+		line.append('\n');
+		try {
+			writer.append(line);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeDropped(long dropped) {
+		try {
+			writer.write("# " + dropped + " entries dropped\n");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void flush() {
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param remoteAddress may be null
+	 * @param request       may be null if the request could not be parsed
+	 * @param response
+	 * @param latencyNanos
+	 */
+	void log(InetAddress remoteAddress, WebRequest request, WebResponse response, long latencyNanos) {
+		worker.submit(new Entry(System.currentTimeMillis(), remoteAddress,
+				request != null ? request.getMethod().toString() : "-", request != null ? request.getUri() : "-",
+				response.getStatusCode(), response.getBodyLength(), latencyNanos));
+	}
+
+	@Override
+	public void close() throws IOException {
+		worker.close();
+		writer.close();
+	}
+
+}
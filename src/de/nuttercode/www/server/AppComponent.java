@@ -0,0 +1,187 @@
+package de.nuttercode.www.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the instances of a handler class of a {@link WebAppServer} according to the
+ * {@link WebAppComponent.Scope} of the class. instances are created through a
+ * constructor handle which is looked up once.
+ */
+class AppComponent {
+
+	private final static MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class);
+	private final static MethodType FACTORY_TYPE = MethodType.methodType(Object.class);
+
+	private final WebAppServer server;
+	private final Class<?> type;
+	private final MethodHandle constructor;
+	private final WebAppComponent.Scope scope;
+	private final boolean async;
+	private final boolean coalesce;
+	private final int poolSize;
+	private final ArrayBlockingQueue<Object> idle;
+	private final AtomicInteger created;
+	private volatile Object singleton;
+	private volatile boolean closed;
+
+	/**
+	 * @param server
+	 * @param type       implements {@link WebRequestHandler} or
+	 *                   {@link AsyncWebRequestHandler}
+	 * @param annotation null if the class is not annotated
+	 * @throws NoSuchMethodException  if the class has no public constructor
+	 *                                without parameters
+	 * @throws IllegalAccessException if the class is not public
+	 */
+	AppComponent(WebAppServer server, Class<?> type, WebAppComponent annotation)
+			throws NoSuchMethodException, IllegalAccessException {
+		this.server = server;
+		this.type = type;
+		constructor = MethodHandles.publicLookup().findConstructor(type, CONSTRUCTOR_TYPE).asType(FACTORY_TYPE);
+		scope = annotation != null ? annotation.scope() : WebAppComponent.Scope.PER_REQUEST;
+		async = AsyncWebRequestHandler.class.isAssignableFrom(type);
+		coalesce = annotation != null && annotation.coalesce() && !async;
+		poolSize = annotation != null ? annotation.poolSize() : 0;
+		if (scope == WebAppComponent.Scope.POOLED && poolSize < 1)
+			throw new IllegalStateException("pool size of " + type.getName() + " must be positive: " + poolSize);
+		idle = scope == WebAppComponent.Scope.POOLED ? new ArrayBlockingQueue<>(poolSize) : null;
+		created = new AtomicInteger();
+		singleton = null;
+		closed = false;
+	}
+
+	/**
+	 * @return true if the instances implement {@link AsyncWebRequestHandler}
+	 */
+	boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * @return true if identical requests are coalesced
+	 */
+	boolean isCoalesced() {
+		return coalesce;
+	}
+
+	private Object create() throws Exception {
+		Object instance;
+		try {
+			instance = (Object) constructor.invokeExact();
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+		if (instance instanceof WebAppLifecycle)
+			((WebAppLifecycle) instance).onInit(server);
+		return instance;
+	}
+
+	/**
+	 * takes an instance for a request. every instance has to be returned with
+	 * {@link #release(Object)} when the request has been handled.
+	 *
+	 * @param timeout milliseconds to wait for a pooled instance
+	 * @return the instance
+	 * @throws RequestRejectedException if no pooled instance becomes available in
+	 *                                  time or if the component has been closed
+	 * @throws Exception                if the instance can not be created
+	 */
+	Object acquire(int timeout) throws Exception {
+		if (closed)
+			throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE, type.getName() + " has been closed");
+		Object instance;
+		switch (scope) {
+		case SINGLETON:
+			instance = singleton;
+			if (instance == null) {
+				synchronized (this) {
+					if (closed)
+						throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE,
+								type.getName() + " has been closed");
+					if (singleton == null)
+						singleton = create();
+					instance = singleton;
+				}
+			}
+			return instance;
+		case POOLED:
+			instance = idle.poll();
+			if (instance != null)
+				return instance;
+			if (created.incrementAndGet() <= poolSize) {
+				try {
+					return create();
+				} catch (Exception | Error e) {
+					created.decrementAndGet();
+					throw e;
+				}
+			}
+			created.decrementAndGet();
+			instance = idle.poll(timeout, TimeUnit.MILLISECONDS);
+			if (instance == null)
+				throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE,
+						"all instances of " + type.getName() + " are busy");
+			return instance;
+		default:
+			return create();
+		}
+	}
+
+	/**
+	 * @param instance taken with {@link #acquire(int)}
+	 */
+	void release(Object instance) {
+		switch (scope) {
+		case SINGLETON:
+			break;
+		case POOLED:
+			if (closed || !idle.offer(instance))
+				close(instance);
+			else if (closed && idle.remove(instance))
+				// close() has drained the idle instances in the meantime
+				close(instance);
+			break;
+		default:
+			close(instance);
+			break;
+		}
+	}
+
+	private void close(Object instance) {
+		if (!(instance instanceof WebAppLifecycle))
+			return;
+		try {
+			((WebAppLifecycle) instance).onClose();
+		} catch (Exception e) {
+			if (server.hasLog())
+				server.getLog().logError("closing " + type.getName() + " failed: " + e);
+		}
+	}
+
+	/**
+	 * closes the singleton and the idle pooled instances. pooled instances which
+	 * are in use are closed when they are released.
+	 */
+	void close() {
+		closed = true;
+		synchronized (this) {
+			if (singleton != null) {
+				close(singleton);
+				singleton = null;
+			}
+		}
+		if (idle != null) {
+			Object instance;
+			while ((instance = idle.poll()) != null)
+				close(instance);
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTP/1.1 request whose response is not available yet. no thread waits for
+ * the response, the exchange owns the socket until the response has been
+ * written.
+ */
+class AsyncExchange {
+
+	private final WebServer server;
+	private final Socket socket;
+	private final HttpStreamReader reader;
+	private final WebRequest request;
+	private final CompletableFuture<WebResponse> future;
+	private final long start;
+	private boolean finished;
+
+	AsyncExchange(WebServer server, Socket socket, HttpStreamReader reader, WebRequest request,
+			CompletableFuture<WebResponse> future, long start) {
+		this.server = server;
+		this.socket = socket;
+		this.reader = reader;
+		this.request = request;
+		this.future = future;
+		this.start = start;
+		finished = false;
+	}
+
+	/**
+	 * checks without blocking whether the client has closed the connection and
+	 * cancels the response if it has. exchanges whose body has not been read
+	 * completely are left to the timeout, as are TLS connections: they have no
+	 * channel, so a probe would block the scheduler in a read through the SSL
+	 * engine while the response may be written. a closed TLS connection is
+	 * noticed when the response is written.
+	 */
+	synchronized void probe() {
+		if (finished || (request != null && request.hasPendingBody()))
+			return;
+		if (!isConnected())
+			future.cancel(true);
+	}
+
+	private boolean isConnected() {
+		try {
+			SocketChannel channel = socket.getChannel();
+			if (channel == null || socket instanceof SSLSocket)
+				return true;
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) != -1;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * writes the response, if the client is still connected, and closes the
+	 * connection unless it has been handed over to an event stream or a
+	 * WebSocket session. a response to an exchange which has been finished
+	 * already is discarded.
+	 *
+	 * @param response
+	 */
+	synchronized void finish(WebResponse response) {
+		if (finished) {
+			// the server has stopped in the meantime
+			if (response != null)
+				response.discard();
+			return;
+		}
+		finished = true;
+		boolean handedOver = false;
+		boolean linger = false;
+		try {
+			if (response != null) {
+				if (request != null)
+					request.discardBody(WebServer.DISCARD_LIMIT);
+				handedOver = server.send(socket, reader, request, response);
+				linger = request != null && request.hasPendingBody();
+				server.logAccess(socket.getInetAddress(), request, response, System.nanoTime() - start);
+			}
+		} catch (IOException e) {
+		} finally {
+			if (!handedOver)
+				server.closeConnection(socket, reader, linger);
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package de.nuttercode.www.server;
+
+import java.io.File;
+
+import de.nuttercode.log.Log;
+
+/**
+ * {@link Log} which hands messages to a background thread. the calling thread
+ * only enqueues the message. if the queue is full messages are dropped and the
+ * number of dropped messages is logged as an error later on.
+ */
+class AsyncLog extends Log {
+
+	private final static class Entry {
+
+		private final boolean error;
+		private final String message;
+
+		private Entry(boolean error, String message) {
+			this.error = error;
+			this.message = message;
+		}
+
+	}
+
+	private final BatchingWorker<Entry> worker;
+
+	AsyncLog(File logDirectory, String name, int capacity) {
+		super(logDirectory, name);
+		worker = new BatchingWorker<>("log-" + name, capacity, this::write, () -> {
+		}, dropped -> super.logError(dropped + " log messages have been dropped"));
+	}
+
+	private void write(Entry entry) {
+		if (entry.error)
+			super.logError(entry.message);
+		else
+			super.logInfo(entry.message);
+	}
+
+	@Override
+	public void logInfo(String message) {
+		if (worker != null)
+			worker.submit(new Entry(false, message));
+		else
+			super.logInfo(message);
+	}
+
+	@Override
+	public void logError(String message) {
+		if (worker != null)
+			worker.submit(new Entry(true, message));
+		else
+			super.logError(message);
+	}
+
+	@Override
+	public void close() {
+		worker.close();
+		super.close();
+	}
+
+}
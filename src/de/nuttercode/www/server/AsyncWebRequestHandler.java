@@ -0,0 +1,15 @@
+package de.nuttercode.www.server;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * handler which answers a request without blocking the calling thread. the
+ * server writes the response as soon as the stage completes. if the stage does
+ * not complete in time or the client disconnects, the server cancels
+ * {@link CompletionStage#toCompletableFuture()} of the returned stage.
+ */
+public interface AsyncWebRequestHandler {
+
+	CompletionStage<WebResponse> handleRequestAsync(WebRequest request);
+
+}
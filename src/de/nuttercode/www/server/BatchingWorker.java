@@ -0,0 +1,99 @@
+package de.nuttercode.www.server;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * moves elements from a {@link RingBuffer} to a consumer on a background
+ * thread. producers only pay for an enqueue. if the buffer is full new elements
+ * are dropped and counted instead of blocking the producer.
+ *
+ * @param <T> type of the elements
+ */
+class BatchingWorker<T> implements Closeable {
+
+	private final static int BATCH_SIZE = 256;
+	private final static long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final RingBuffer<T> ringBuffer;
+	private final Consumer<T> consumer;
+	private final Runnable batchEnd;
+	private final LongConsumer dropHandler;
+	private final AtomicLong dropped;
+	private final Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param name        name of the background thread
+	 * @param capacity    size of the buffer
+	 * @param consumer    called for every element on the background thread
+	 * @param batchEnd    called after every batch, e.g. to flush a writer
+	 * @param dropHandler called on the background thread with the number of
+	 *                    elements dropped since the last call
+	 */
+	BatchingWorker(String name, int capacity, Consumer<T> consumer, Runnable batchEnd, LongConsumer dropHandler) {
+		ringBuffer = new RingBuffer<>(capacity);
+		this.consumer = consumer;
+		this.batchEnd = batchEnd;
+		this.dropHandler = dropHandler;
+		dropped = new AtomicLong();
+		running = true;
+		thread = new Thread(this::run);
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private int drainBatch() {
+		int count = ringBuffer.drain(consumer, BATCH_SIZE);
+		long droppedCount = dropped.getAndSet(0);
+		if (droppedCount > 0)
+			dropHandler.accept(droppedCount);
+		if (count > 0 || droppedCount > 0)
+			batchEnd.run();
+		return count;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				if (drainBatch() == 0)
+					LockSupport.parkNanos(IDLE_NANOS);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		while (drainBatch() > 0)
+			;
+	}
+
+	/**
+	 * @param element
+	 * @return false if the element has been dropped
+	 */
+	boolean submit(T element) {
+		if (ringBuffer.offer(element))
+			return true;
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * stops the background thread after all pending elements have been consumed
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package de.nuttercode.www.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * server-wide pool of read buffers in a few size classes. every byte which is
+ * buffered while a request is parsed has to be reserved from the global budget
+ * of the arena first.
+ */
+class BufferArena {
+
+	private final static int[] SIZE_CLASSES = { 1024, 4 * 1024, 16 * 1024, 64 * 1024 };
+	private final static int BUFFERS_PER_CLASS = 256;
+
+	/**
+	 * arena without a budget. used when requests and responses are parsed outside
+	 * of a {@link WebServer}.
+	 */
+	final static BufferArena UNBOUNDED = new BufferArena(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+	private final long budget;
+	private final int maxRequestSize;
+	private final AtomicLong reserved;
+	private final List<ArrayBlockingQueue<byte[]>> pools;
+
+	BufferArena(long budget, int maxRequestSize) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("budget must be positive: " + budget);
+		if (maxRequestSize <= 0)
+			throw new IllegalArgumentException("maxRequestSize must be positive: " + maxRequestSize);
+		this.budget = budget;
+		this.maxRequestSize = maxRequestSize;
+		reserved = new AtomicLong();
+		pools = new ArrayList<>(SIZE_CLASSES.length);
+		for (int i = 0; i < SIZE_CLASSES.length; i++)
+			pools.add(new ArrayBlockingQueue<>(BUFFERS_PER_CLASS));
+	}
+
+	private int sizeClassOf(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++)
+			if (size <= SIZE_CLASSES[i])
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param size minimum size of the buffer
+	 * @return a pooled buffer of at least the given size. buffers larger than the
+	 *         largest size class are not pooled.
+	 */
+	byte[] acquire(int size) {
+		int sizeClass = sizeClassOf(size);
+		if (sizeClass == -1)
+			return new byte[size];
+		byte[] buffer = pools.get(sizeClass).poll();
+		return buffer != null ? buffer : new byte[SIZE_CLASSES[sizeClass]];
+	}
+
+	void recycle(byte[] buffer) {
+		int sizeClass = sizeClassOf(buffer.length);
+		if (sizeClass != -1 && SIZE_CLASSES[sizeClass] == buffer.length)
+			pools.get(sizeClass).offer(buffer);
+	}
+
+	/**
+	 * @param bytes
+	 * @return true if the bytes could be reserved without exceeding the budget
+	 */
+	boolean reserve(long bytes) {
+		long current;
+		do {
+			current = reserved.get();
+			if (current + bytes > budget || current + bytes < 0)
+				return false;
+		} while (!reserved.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	void release(long bytes) {
+		reserved.addAndGet(-bytes);
+	}
+
+	long getBudget() {
+		return budget;
+	}
+
+	long getReserved() {
+		return reserved.get();
+	}
+
+	int getMaxRequestSize() {
+		return maxRequestSize;
+	}
+
+}
@@ -0,0 +1,160 @@
+package de.nuttercode.www.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * blocking streams over a socket channel which can be read and written at the
+ * same time. on Java 8 and 11 the streams of a socket adaptor hold the blocking
+ * lock of the channel while they wait, so a write has to wait for the next
+ * read. these streams switch the channel to non-blocking mode and wait on a
+ * selector of their own for each direction instead. reads and writes time out
+ * like the socket.
+ */
+class ChannelStreams implements Closeable {
+
+	private final SocketChannel channel;
+	private final long timeout;
+	private final Selector readSelector;
+	private final Selector writeSelector;
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+
+	/**
+	 * @param channel   the channel of a connected socket
+	 * @param timeout   milliseconds to wait for data, 0 waits forever
+	 * @param available bytes which have been read from the channel already and
+	 *                  are returned first
+	 * @throws IOException if the selectors can not be opened
+	 */
+	ChannelStreams(SocketChannel channel, int timeout, byte[] available) throws IOException {
+		this.channel = channel;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		readSelector = Selector.open();
+		try {
+			writeSelector = Selector.open();
+		} catch (IOException e) {
+			readSelector.close();
+			throw e;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.register(readSelector, SelectionKey.OP_READ);
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		inputStream = new ChannelInputStream(available);
+		outputStream = new ChannelOutputStream();
+	}
+
+	/**
+	 * waits until the channel is ready
+	 *
+	 * @param selector
+	 * @param deadline {@link System#nanoTime()} after which the wait times out
+	 * @throws IOException
+	 */
+	private void await(Selector selector, long deadline) throws IOException {
+		long wait = 0;
+		if (timeout > 0) {
+			wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (wait <= 0)
+				throw new SocketTimeoutException("timed out");
+		}
+		selector.select(wait);
+		selector.selectedKeys().clear();
+	}
+
+	InputStream getInputStream() {
+		return inputStream;
+	}
+
+	OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * closes the selectors, the channel has to be closed by the caller
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			readSelector.close();
+		} finally {
+			writeSelector.close();
+		}
+	}
+
+	private class ChannelInputStream extends InputStream {
+
+		private final byte[] available;
+		private int position;
+
+		private ChannelInputStream(byte[] available) {
+			this.available = available;
+			position = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (position < available.length) {
+				int count = Math.min(len, available.length - position);
+				System.arraycopy(available, position, b, off, count);
+				position += count;
+				return count;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			long deadline = System.nanoTime() + timeout;
+			int count;
+			while ((count = channel.read(buffer)) == 0)
+				await(readSelector, deadline);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return available.length - position;
+		}
+
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			long deadline = System.nanoTime() + timeout;
+			while (buffer.hasRemaining()) {
+				if (channel.write(buffer) > 0)
+					deadline = System.nanoTime() + timeout;
+				else
+					await(writeSelector, deadline);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,101 @@
+package de.nuttercode.www.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * decodes a body with the chunked transfer coding. chunk extensions and
+ * trailer fields are skipped. the stream ends after the last chunk, so the
+ * underlying connection is positioned at the next message.
+ */
+class ChunkedInputStream extends InputStream {
+
+	private final static int MAX_LINE_LENGTH = 8 * 1024;
+
+	private final InputStream in;
+	private final StringBuilder line;
+	private long remaining;
+	private boolean chunkEnded;
+	private boolean finished;
+
+	/**
+	 * @param in positioned at the first chunk
+	 */
+	ChunkedInputStream(InputStream in) {
+		this.in = in;
+		line = new StringBuilder();
+		remaining = 0;
+		chunkEnded = false;
+		finished = false;
+	}
+
+	/**
+	 * @return false if the last chunk has been read
+	 * @throws IOException
+	 */
+	private boolean nextChunk() throws IOException {
+		if (chunkEnded && !readLine().isEmpty())
+			throw new ProtocolException("chunk is not terminated by a line break");
+		String size = readLine();
+		int extension = size.indexOf(';');
+		if (extension != -1)
+			size = size.substring(0, extension);
+		try {
+			remaining = Long.parseLong(size.trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("invalid chunk size: " + size);
+		}
+		if (remaining < 0)
+			throw new ProtocolException("invalid chunk size: " + size);
+		chunkEnded = false;
+		if (remaining > 0)
+			return true;
+		while (!readLine().isEmpty())
+			;
+		finished = true;
+		return false;
+	}
+
+	private String readLine() throws IOException {
+		line.setLength(0);
+		int read;
+		while ((read = in.read()) != '\n') {
+			if (read == -1)
+				throw new EOFException("stream ended inside of a chunked body");
+			if (line.length() == MAX_LINE_LENGTH)
+				throw new ProtocolException("line of chunked body exceeds " + MAX_LINE_LENGTH + " bytes");
+			if (read != '\r')
+				line.append((char) read);
+		}
+		return line.toString();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (finished || (remaining == 0 && !nextChunk()))
+			return -1;
+		int read = in.read(b, off, (int) Math.min(len, remaining));
+		if (read == -1)
+			throw new EOFException("stream ended inside of a chunk");
+		remaining -= read;
+		if (remaining == 0)
+			chunkEnded = true;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return finished ? 0 : (int) Math.min(in.available(), remaining);
+	}
+
+}
@@ -0,0 +1,422 @@
+package de.nuttercode.www.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * reads the fields of an application/x-www-form-urlencoded or
+ * multipart/form-data body one part at a time from
+ * {@link WebRequest#getBodyStream()}. only one buffer and the content of parts
+ * below the memory threshold are held in memory, so large uploads do not grow
+ * the heap. limits are reported with a {@link RequestRejectedException}, which
+ * the server answers with its response code when a handler passes it on.
+ *
+ * <pre>
+ * try (FormDataReader reader = new FormDataReader(request)) {
+ * 	FormPart part;
+ * 	while ((part = reader.next()) != null)
+ * 		...
+ * }
+ * </pre>
+ */
+public class FormDataReader implements Closeable {
+
+	final static String HF_CONTENT_TYPE = "Content-Type";
+	private final static String HF_CONTENT_DISPOSITION = "Content-Disposition";
+	private final static String URLENCODED = "application/x-www-form-urlencoded";
+	private final static String MULTIPART = "multipart/form-data";
+	private final static String BOUNDARY = "boundary";
+	private final static String NAME = "name";
+	private final static String FILE_NAME = "filename";
+	private final static int BUFFER_SIZE = 8 * 1024;
+	private final static int MAX_BOUNDARY_LENGTH = 70;
+	private final static int MAX_PART_HEADER_SIZE = 8 * 1024;
+	private final static long DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+	private final static long DEFAULT_MAX_PART_SIZE = 64 * 1024 * 1024;
+	private final static long DEFAULT_MAX_FIELD_SIZE = 1024 * 1024;
+	private final static long DEFAULT_MAX_TOTAL_SIZE = 256 * 1024 * 1024;
+	private final static byte CR = '\r';
+	private final static byte LF = '\n';
+	private final static byte AMPERSAND = '&';
+	private final static byte DASH = '-';
+
+	/**
+	 * @param request
+	 * @return true if the body of the request can be read by a
+	 *         {@link FormDataReader}
+	 */
+	public static boolean isFormData(@NotNull WebRequest request) {
+		Assurance.assureNotNull(request);
+		String contentType = mediaType(request.getHeaderField(HF_CONTENT_TYPE));
+		return URLENCODED.equals(contentType) || MULTIPART.equals(contentType);
+	}
+
+	private static String mediaType(String contentType) {
+		if (contentType == null)
+			return null;
+		int end = contentType.indexOf(';');
+		return (end == -1 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * parses the parameters of a header value like
+	 * <code>form-data; name="field"; filename="a;b.txt"</code>
+	 *
+	 * @param value
+	 * @return the parameters with lower case names, quotes removed
+	 */
+	static Map<String, String> parseParameters(String value) {
+		Map<String, String> parameters = new LinkedHashMap<>();
+		int position = value.indexOf(';');
+		while (position != -1 && position < value.length()) {
+			int nameStart = position + 1;
+			int equals = value.indexOf('=', nameStart);
+			int semicolon = value.indexOf(';', nameStart);
+			if (equals == -1 || (semicolon != -1 && semicolon < equals)) {
+				position = semicolon;
+				continue;
+			}
+			String name = value.substring(nameStart, equals).trim().toLowerCase(Locale.ROOT);
+			int valueStart = equals + 1;
+			while (valueStart < value.length() && value.charAt(valueStart) == ' ')
+				valueStart++;
+			StringBuilder parameter = new StringBuilder();
+			int end = valueStart;
+			if (valueStart < value.length() && value.charAt(valueStart) == '"') {
+				end++;
+				while (end < value.length() && value.charAt(end) != '"') {
+					if (value.charAt(end) == '\\' && end + 1 < value.length())
+						end++;
+					parameter.append(value.charAt(end++));
+				}
+				end = value.indexOf(';', end);
+			} else {
+				end = value.indexOf(';', valueStart);
+				parameter.append(value, valueStart, end == -1 ? value.length() : end);
+			}
+			parameters.put(name, parameter.toString().trim());
+			position = end;
+		}
+		return parameters;
+	}
+
+	private final InputStream in;
+	private final boolean multipart;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private final List<FormPart> parts;
+	private int position;
+	private int limit;
+	private boolean eof;
+	private boolean started;
+	private boolean finished;
+	private long total;
+	private long memoryThreshold;
+	private long maxPartSize;
+	private long maxFieldSize;
+	private long maxTotalSize;
+	private File tempDirectory;
+
+	/**
+	 * @param request with a form as body
+	 * @throws RequestRejectedException with {@link ResponseCode#BAD_REQUEST} if
+	 *                                  the body is not a supported form
+	 */
+	public FormDataReader(@NotNull WebRequest request) throws RequestRejectedException {
+		Assurance.assureNotNull(request);
+		String contentType = request.getHeaderField(HF_CONTENT_TYPE);
+		String mediaType = mediaType(contentType);
+		if (MULTIPART.equals(mediaType)) {
+			String boundary = parseParameters(contentType).get(BOUNDARY);
+			if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH)
+				throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "invalid multipart boundary");
+			multipart = true;
+			delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		} else if (URLENCODED.equals(mediaType)) {
+			multipart = false;
+			delimiter = null;
+		} else
+			throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "unsupported form type: " + contentType);
+		in = request.getBodyStream();
+		buffer = new byte[BUFFER_SIZE];
+		parts = new ArrayList<>();
+		position = 0;
+		limit = 0;
+		eof = false;
+		started = false;
+		finished = false;
+		total = 0;
+		memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+		maxPartSize = DEFAULT_MAX_PART_SIZE;
+		maxFieldSize = DEFAULT_MAX_FIELD_SIZE;
+		maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+		tempDirectory = null;
+	}
+
+	/**
+	 * reads the next part completely
+	 *
+	 * @return the next part or null if all parts have been read
+	 * @throws RequestRejectedException if the body is malformed or exceeds a
+	 *                                  limit
+	 * @throws IOException
+	 */
+	public FormPart next() throws IOException {
+		if (finished)
+			return null;
+		FormPart part = multipart ? nextMultipart() : nextUrlEncoded();
+		if (part != null)
+			parts.add(part);
+		return part;
+	}
+
+	/**
+	 * @return true if at least one byte is available in the buffer
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			eof = true;
+			return limit > position;
+		}
+		total += read;
+		if (total > maxTotalSize)
+			throw new RequestRejectedException(ResponseCode.PAYLOAD_TOO_LARGE,
+					"form exceeds " + maxTotalSize + " bytes");
+		limit += read;
+		return true;
+	}
+
+	private boolean ensure(int length) throws IOException {
+		while (limit - position < length)
+			if (!fill() || eof && limit - position < length)
+				return limit - position >= length;
+		return true;
+	}
+
+	private FormPart nextUrlEncoded() throws IOException {
+		ByteArrayOutputStream pair = new ByteArrayOutputStream();
+		while (true) {
+			if (position == limit && !fill()) {
+				finished = true;
+				if (pair.size() == 0)
+					return null;
+				break;
+			}
+			int end = position;
+			while (end < limit && buffer[end] != AMPERSAND)
+				end++;
+			if (pair.size() + end - position > maxFieldSize)
+				throw new RequestRejectedException(ResponseCode.PAYLOAD_TOO_LARGE,
+						"form field exceeds " + maxFieldSize + " bytes");
+			pair.write(buffer, position, end - position);
+			position = end;
+			if (end < limit) {
+				position++;
+				if (pair.size() > 0)
+					break;
+			}
+		}
+		String field = new String(pair.toByteArray(), StandardCharsets.UTF_8);
+		int equals = field.indexOf('=');
+		String name = WebRequest.decode(equals == -1 ? field : field.substring(0, equals), true);
+		byte[] value = WebRequest.decode(equals == -1 ? "" : field.substring(equals + 1), true)
+				.getBytes(StandardCharsets.UTF_8);
+		FormPart part = new FormPart(name, null, FormPart.newHeaderFields(), memoryThreshold, maxFieldSize,
+				tempDirectory);
+		part.write(value, 0, value.length);
+		part.finish();
+		return part;
+	}
+
+	private FormPart nextMultipart() throws IOException {
+		if (!started) {
+			started = true;
+			int dashBoundary = delimiter.length - 2;
+			if (!ensure(dashBoundary) || !startsWith(delimiter, 2, dashBoundary))
+				readUntilDelimiter(null);
+			else
+				position += dashBoundary;
+		}
+		if (!ensure(2))
+			throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "multipart body ended after a boundary");
+		if (buffer[position] == DASH && buffer[position + 1] == DASH) {
+			finished = true;
+			return null;
+		}
+		while (ensure(1) && (buffer[position] == ' ' || buffer[position] == '\t'))
+			position++;
+		if (!ensure(2) || buffer[position] != CR || buffer[position + 1] != LF)
+			throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "malformed multipart boundary");
+		position += 2;
+		Map<String, String> headerFields = readPartHeader();
+		String disposition = headerFields.get(HF_CONTENT_DISPOSITION);
+		if (disposition == null)
+			throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "multipart part without disposition");
+		Map<String, String> parameters = parseParameters(disposition);
+		String name = parameters.get(NAME);
+		if (name == null)
+			throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "multipart part without name");
+		FormPart part = new FormPart(name, parameters.get(FILE_NAME), headerFields, memoryThreshold, maxPartSize,
+				tempDirectory);
+		try {
+			readUntilDelimiter(part);
+			part.finish();
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		return part;
+	}
+
+	private boolean startsWith(byte[] prefix, int offset, int length) {
+		for (int i = 0; i < length; i++)
+			if (buffer[position + i] != prefix[offset + i])
+				return false;
+		return true;
+	}
+
+	private Map<String, String> readPartHeader() throws IOException {
+		Map<String, String> headerFields = FormPart.newHeaderFields();
+		int headerSize = 0;
+		while (true) {
+			int end = position;
+			while (true) {
+				while (end < limit && buffer[end] != LF)
+					end++;
+				if (end < limit)
+					break;
+				if (headerSize + end - position >= MAX_PART_HEADER_SIZE)
+					throw new RequestRejectedException(ResponseCode.PAYLOAD_TOO_LARGE, "multipart header too large");
+				int consumed = end - position;
+				if (!fill())
+					throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "multipart body ended in a header");
+				end = position + consumed;
+			}
+			int lineEnd = end > position && buffer[end - 1] == CR ? end - 1 : end;
+			String line = new String(buffer, position, lineEnd - position, StandardCharsets.UTF_8);
+			headerSize += end + 1 - position;
+			position = end + 1;
+			if (line.isEmpty())
+				return headerFields;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				throw new RequestRejectedException(ResponseCode.BAD_REQUEST, "malformed multipart header: " + line);
+			headerFields.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+		}
+	}
+
+	/**
+	 * passes the content up to the next delimiter to the part and consumes the
+	 * delimiter
+	 *
+	 * @param part receives the content or null to skip it
+	 * @throws IOException
+	 */
+	private void readUntilDelimiter(FormPart part) throws IOException {
+		while (true) {
+			int index = indexOfDelimiter();
+			if (index != -1) {
+				if (part != null)
+					part.write(buffer, position, index - position);
+				position = index + delimiter.length;
+				return;
+			}
+			int safe = Math.max(position, limit - delimiter.length + 1);
+			if (part != null)
+				part.write(buffer, position, safe - position);
+			position = safe;
+			if (!fill() || eof && indexOfDelimiter() == -1)
+				throw new RequestRejectedException(ResponseCode.BAD_REQUEST,
+						"multipart body ended before the closing boundary");
+		}
+	}
+
+	private int indexOfDelimiter() {
+		int last = limit - delimiter.length;
+		for (int i = position; i <= last; i++) {
+			if (buffer[i] != CR)
+				continue;
+			int j = 1;
+			while (j < delimiter.length && buffer[i + j] == delimiter[j])
+				j++;
+			if (j == delimiter.length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param memoryThreshold parts up to this size are held in memory, larger
+	 *                        parts are written to a temporary file
+	 */
+	public void setMemoryThreshold(long memoryThreshold) {
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * @param maxPartSize larger parts are rejected with
+	 *                    {@link ResponseCode#PAYLOAD_TOO_LARGE}
+	 */
+	public void setMaxPartSize(long maxPartSize) {
+		this.maxPartSize = maxPartSize;
+	}
+
+	/**
+	 * url-encoded fields are decoded in memory, so they are limited separately
+	 * from multipart parts
+	 *
+	 * @param maxFieldSize larger url-encoded fields are rejected with
+	 *                     {@link ResponseCode#PAYLOAD_TOO_LARGE}
+	 */
+	public void setMaxFieldSize(long maxFieldSize) {
+		this.maxFieldSize = maxFieldSize;
+	}
+
+	/**
+	 * @param maxTotalSize larger bodies are rejected with
+	 *                     {@link ResponseCode#PAYLOAD_TOO_LARGE}
+	 */
+	public void setMaxTotalSize(long maxTotalSize) {
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	/**
+	 * @param tempDirectory directory of the temporary files or null for the
+	 *                      default temporary directory
+	 */
+	public void setTempDirectory(File tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * deletes the temporary files of all parts which have not been moved
+	 */
+	@Override
+	public void close() {
+		for (FormPart part : parts)
+			part.delete();
+		parts.clear();
+	}
+
+}
@@ -0,0 +1,224 @@
+package de.nuttercode.www.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * a field or file of a form which has been read by a {@link FormDataReader}.
+ * the content stays in memory up to the threshold of the reader, larger parts
+ * are written to a temporary file which is deleted when the reader is closed
+ * unless it has been moved with {@link #moveTo(File)}.
+ */
+public class FormPart {
+
+	private final static String TEMP_PREFIX = "upload";
+	private final static String TEMP_SUFFIX = ".part";
+
+	private final String name;
+	private final String fileName;
+	private final Map<String, String> headerFields;
+	private final long memoryThreshold;
+	private final long maxSize;
+	private final File tempDirectory;
+	private ByteArrayOutputStream memory;
+	private File file;
+	private OutputStream fileOut;
+	private long size;
+
+	FormPart(String name, String fileName, Map<String, String> headerFields, long memoryThreshold, long maxSize,
+			File tempDirectory) {
+		this.name = name;
+		this.fileName = fileName;
+		this.headerFields = headerFields;
+		this.memoryThreshold = memoryThreshold;
+		this.maxSize = maxSize;
+		this.tempDirectory = tempDirectory;
+		memory = new ByteArrayOutputStream();
+		file = null;
+		fileOut = null;
+		size = 0;
+	}
+
+	/**
+	 * appends content while the part is read
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws RequestRejectedException if the part grows beyond its maximum size
+	 * @throws IOException
+	 */
+	void write(byte[] data, int offset, int length) throws IOException {
+		if (length == 0)
+			return;
+		if (size + length > maxSize) {
+			delete();
+			throw new RequestRejectedException(ResponseCode.PAYLOAD_TOO_LARGE,
+					"form part " + name + " exceeds " + maxSize + " bytes");
+		}
+		size += length;
+		if (fileOut == null && size > memoryThreshold) {
+			file = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, tempDirectory);
+			fileOut = new FileOutputStream(file);
+			memory.writeTo(fileOut);
+			memory = null;
+		}
+		if (fileOut != null)
+			fileOut.write(data, offset, length);
+		else
+			memory.write(data, offset, length);
+	}
+
+	/**
+	 * called after the last content has been written
+	 *
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		if (fileOut != null) {
+			fileOut.close();
+			fileOut = null;
+		}
+	}
+
+	/**
+	 * @return the name of the form field
+	 */
+	public @NotNull String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the file name sent by the client or null if the part is not a file
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the Content-Type of the part or null
+	 */
+	public String getContentType() {
+		return headerFields.get(FormDataReader.HF_CONTENT_TYPE);
+	}
+
+	/**
+	 * @param field case insensitive
+	 * @return the value of the header field of the part or null
+	 */
+	public String getHeaderField(String field) {
+		return headerFields.get(field);
+	}
+
+	public @NotNull Map<String, String> getHeaderFields() {
+		return Collections.unmodifiableMap(headerFields);
+	}
+
+	/**
+	 * @return size of the content in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return true if the content is held in memory
+	 */
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	/**
+	 * @return the temporary file which holds the content or null if the content
+	 *         is held in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public @NotNull InputStream getInputStream() throws IOException {
+		if (file != null)
+			return new FileInputStream(file);
+		return new ByteArrayInputStream(memory != null ? memory.toByteArray() : new byte[0]);
+	}
+
+	/**
+	 * reads the whole content into memory
+	 *
+	 * @return the content
+	 * @throws IOException
+	 */
+	public @NotNull byte[] getBytes() throws IOException {
+		if (file != null)
+			return Files.readAllBytes(file.toPath());
+		return memory != null ? memory.toByteArray() : new byte[0];
+	}
+
+	/**
+	 * @return the content decoded as UTF-8
+	 * @throws IOException
+	 */
+	public @NotNull String getString() throws IOException {
+		return new String(getBytes(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * moves the content to the target. a temporary file is moved and no longer
+	 * deleted by the reader.
+	 *
+	 * @param target
+	 * @throws IOException
+	 */
+	public void moveTo(@NotNull File target) throws IOException {
+		Assurance.assureNotNull(target);
+		if (file != null) {
+			Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			file = null;
+			memory = null;
+		} else
+			Files.write(target.toPath(), getBytes());
+	}
+
+	/**
+	 * deletes the temporary file of the part, if there is one
+	 */
+	public void delete() {
+		if (fileOut != null) {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+			}
+			fileOut = null;
+		}
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	static Map<String, String> newHeaderFields() {
+		return new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	}
+
+	@Override
+	public String toString() {
+		return "FormPart [name=" + name + ", fileName=" + fileName + ", size=" + size + ", inMemory=" + isInMemory()
+				+ "]";
+	}
+
+}
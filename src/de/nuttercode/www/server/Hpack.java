@@ -0,0 +1,160 @@
+package de.nuttercode.www.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * constants and primitives of HPACK (RFC 7541) which are shared by
+ * {@link HpackDecoder} and {@link HpackEncoder}
+ */
+final class Hpack {
+
+	static final String[][] STATIC_TABLE = { { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" },
+			{ ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+			{ ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" },
+			{ ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+			{ "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+			{ "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+			{ "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+			{ "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+			{ "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+			{ "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+			{ "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+	/**
+	 * index of the first static table entry with a given name
+	 */
+	static final Map<String, Integer> STATIC_NAME_INDEX;
+
+	/**
+	 * code lengths of the huffman code from appendix B. the code is canonical, so
+	 * the codes can be derived from the lengths.
+	 */
+	private static final int[] HUFFMAN_LENGTHS = { 13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28,
+			28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8,
+			6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6,
+			7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23,
+			24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21,
+			23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26,
+			20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26,
+			28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27,
+			27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30 };
+	private static final int EOS = 256;
+
+	/**
+	 * decoding tree of the huffman code. tree[2 * node + bit] is either the index
+	 * of the next node or -(symbol + 1) for a leaf.
+	 */
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		STATIC_NAME_INDEX = new HashMap<>();
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--)
+			STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+		Integer[] symbols = new Integer[HUFFMAN_LENGTHS.length];
+		for (int i = 0; i < symbols.length; i++)
+			symbols[i] = i;
+		Arrays.sort(symbols, (a, b) -> HUFFMAN_LENGTHS[a] != HUFFMAN_LENGTHS[b]
+				? Integer.compare(HUFFMAN_LENGTHS[a], HUFFMAN_LENGTHS[b])
+				: Integer.compare(a, b));
+		HUFFMAN_TREE = new int[2 * HUFFMAN_LENGTHS.length];
+		int nodes = 1;
+		long code = 0;
+		int previousLength = HUFFMAN_LENGTHS[symbols[0]];
+		for (int i = 0; i < symbols.length; i++) {
+			int symbol = symbols[i];
+			int length = HUFFMAN_LENGTHS[symbol];
+			if (i > 0)
+				code = (code + 1) << (length - previousLength);
+			previousLength = length;
+			int node = 0;
+			for (int bit = length - 1; bit > 0; bit--) {
+				int slot = 2 * node + (int) ((code >>> bit) & 1);
+				if (HUFFMAN_TREE[slot] == 0)
+					HUFFMAN_TREE[slot] = nodes++;
+				node = HUFFMAN_TREE[slot];
+			}
+			HUFFMAN_TREE[2 * node + (int) (code & 1)] = -(symbol + 1);
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return the decoded bytes
+	 * @throws Http2Exception if the data is not a valid huffman encoded string
+	 */
+	static byte[] decodeHuffman(byte[] data, int offset, int length) throws Http2Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+		int node = 0;
+		int pendingBits = 0;
+		boolean allOnes = true;
+		for (int i = offset; i < offset + length; i++) {
+			for (int shift = 7; shift >= 0; shift--) {
+				int bit = (data[i] >>> shift) & 1;
+				int next = HUFFMAN_TREE[2 * node + bit];
+				if (next < 0) {
+					int symbol = -next - 1;
+					if (symbol == EOS)
+						throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in huffman string");
+					out.write(symbol);
+					node = 0;
+					pendingBits = 0;
+					allOnes = true;
+				} else {
+					node = next;
+					pendingBits++;
+					allOnes &= bit == 1;
+				}
+			}
+		}
+		if (pendingBits > 7 || !allOnes)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid huffman padding");
+		return out.toByteArray();
+	}
+
+	/**
+	 * writes an integer with an N-bit prefix (section 5.1)
+	 *
+	 * @param out
+	 * @param flags      bits of the first byte above the prefix
+	 * @param prefixBits
+	 * @param value
+	 */
+	static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int maxPrefix = (1 << prefixBits) - 1;
+		if (value < maxPrefix) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | maxPrefix);
+		value -= maxPrefix;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * @param nameLength  length of the name in octets
+	 * @param valueLength length of the value in octets
+	 * @return size of a table entry as defined in section 4.1
+	 */
+	static int entrySize(int nameLength, int valueLength) {
+		return 32 + nameLength + valueLength;
+	}
+
+}
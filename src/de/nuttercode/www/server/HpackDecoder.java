@@ -0,0 +1,200 @@
+package de.nuttercode.www.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * decodes header blocks of one HTTP/2 connection. the decoder is stateful
+ * because of the dynamic table, so all header blocks of a connection have to
+ * be decoded in the order in which they have been received.
+ */
+class HpackDecoder {
+
+	private final static class Entry {
+
+		private final String name;
+		private final String value;
+		private final int nameSize;
+		private final int size;
+
+		private Entry(String name, String value, int nameSize, int valueSize) {
+			this.name = name;
+			this.value = value;
+			this.nameSize = nameSize;
+			size = Hpack.entrySize(nameSize, valueSize);
+		}
+
+	}
+
+	private final ArrayDeque<Entry> dynamicTable;
+	private final int maxHeaderListSize;
+	private int maxTableSize;
+	private int tableSizeLimit;
+	private int tableSize;
+	private byte[] block;
+	private int position;
+
+	/**
+	 * @param tableSizeLimit    SETTINGS_HEADER_TABLE_SIZE advertised to the peer
+	 * @param maxHeaderListSize maximum size of a decoded header list
+	 */
+	HpackDecoder(int tableSizeLimit, int maxHeaderListSize) {
+		dynamicTable = new ArrayDeque<>();
+		this.tableSizeLimit = tableSizeLimit;
+		this.maxHeaderListSize = maxHeaderListSize;
+		maxTableSize = tableSizeLimit;
+		tableSize = 0;
+	}
+
+	/**
+	 * @param block complete header block
+	 * @return name-value pairs in the order of the block
+	 * @throws Http2Exception if the block can not be decoded. this is always a
+	 *                        connection error because the decoding state is lost.
+	 */
+	List<String[]> decode(byte[] block) throws Http2Exception {
+		this.block = block;
+		position = 0;
+		List<String[]> headers = new ArrayList<>();
+		int headerListSize = 0;
+		boolean headerSeen = false;
+		while (position < block.length) {
+			int first = block[position] & 0xff;
+			String name;
+			String value;
+			if ((first & 0x80) != 0) {
+				Entry entry = entry(readInteger(7));
+				name = entry.name;
+				value = entry.value;
+			} else if ((first & 0xc0) == 0x40) {
+				int index = readInteger(6);
+				int nameLength;
+				if (index == 0) {
+					byte[] nameBytes = readString();
+					name = new String(nameBytes, StandardCharsets.UTF_8);
+					nameLength = nameBytes.length;
+				} else {
+					Entry entry = entry(index);
+					name = entry.name;
+					nameLength = entry.nameSize;
+				}
+				byte[] valueBytes = readString();
+				value = new String(valueBytes, StandardCharsets.UTF_8);
+				add(new Entry(name, value, nameLength, valueBytes.length));
+			} else if ((first & 0xe0) == 0x20) {
+				if (headerSeen)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "table size update after header");
+				int size = readInteger(5);
+				if (size > tableSizeLimit)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "table size too large: " + size);
+				maxTableSize = size;
+				evict(0);
+				continue;
+			} else {
+				int index = readInteger(4);
+				name = index == 0 ? new String(readString(), StandardCharsets.UTF_8) : entry(index).name;
+				value = new String(readString(), StandardCharsets.UTF_8);
+			}
+			headerSeen = true;
+			headerListSize += Hpack.entrySize(name.length(), value.length());
+			if (headerListSize > maxHeaderListSize)
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "header list too large");
+			headers.add(new String[] { name, value });
+		}
+		this.block = null;
+		return headers;
+	}
+
+	/**
+	 * lowers the limit of the table size, e.g. if the local settings change
+	 *
+	 * @param tableSizeLimit
+	 */
+	void setTableSizeLimit(int tableSizeLimit) {
+		this.tableSizeLimit = tableSizeLimit;
+		if (maxTableSize > tableSizeLimit) {
+			maxTableSize = tableSizeLimit;
+			evict(0);
+		}
+	}
+
+	private Entry entry(int index) throws Http2Exception {
+		if (index <= 0)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "illegal index: " + index);
+		if (index <= Hpack.STATIC_TABLE.length) {
+			String[] entry = Hpack.STATIC_TABLE[index - 1];
+			return new Entry(entry[0], entry[1], entry[0].length(), entry[1].length());
+		}
+		int dynamicIndex = index - Hpack.STATIC_TABLE.length - 1;
+		if (dynamicIndex >= dynamicTable.size())
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "illegal index: " + index);
+		int i = 0;
+		for (Entry entry : dynamicTable)
+			if (i++ == dynamicIndex)
+				return entry;
+		throw new IllegalStateException();
+	}
+
+	private void add(Entry entry) {
+		evict(entry.size);
+		if (entry.size <= maxTableSize) {
+			dynamicTable.addFirst(entry);
+			tableSize += entry.size;
+		}
+	}
+
+	/**
+	 * removes the oldest entries until the given number of bytes fits into the
+	 * table
+	 *
+	 * @param required
+	 */
+	private void evict(int required) {
+		while (!dynamicTable.isEmpty() && tableSize + required > maxTableSize)
+			tableSize -= dynamicTable.removeLast().size;
+	}
+
+	private int readByte() throws Http2Exception {
+		if (position >= block.length)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "truncated header block");
+		return block[position++] & 0xff;
+	}
+
+	private int readInteger(int prefixBits) throws Http2Exception {
+		int maxPrefix = (1 << prefixBits) - 1;
+		int value = readByte() & maxPrefix;
+		if (value < maxPrefix)
+			return value;
+		int shift = 0;
+		int next;
+		do {
+			next = readByte();
+			if (shift > 21)
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "integer overflow");
+			value += (next & 0x7f) << shift;
+			shift += 7;
+		} while ((next & 0x80) != 0);
+		if (value < 0)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "integer overflow");
+		return value;
+	}
+
+	private byte[] readString() throws Http2Exception {
+		if (position >= block.length)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "truncated header block");
+		boolean huffman = (block[position] & 0x80) != 0;
+		int length = readInteger(7);
+		if (length > block.length - position)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "truncated string");
+		int offset = position;
+		position += length;
+		if (huffman)
+			return Hpack.decodeHuffman(block, offset, length);
+		byte[] bytes = new byte[length];
+		System.arraycopy(block, offset, bytes, 0, length);
+		return bytes;
+	}
+
+}
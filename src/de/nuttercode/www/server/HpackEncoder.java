@@ -0,0 +1,55 @@
+package de.nuttercode.www.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * encodes header blocks without using the dynamic table. the encoder therefore
+ * has no state and may be used for several streams at the same time. names
+ * and complete fields of the static table are referenced by index.
+ */
+class HpackEncoder {
+
+	private final static int STATUS_INDEX = 8;
+	private final static int[] STATUS_INDEXED_CODES = { 200, 204, 206, 304, 400, 404, 500 };
+
+	/**
+	 * @param out
+	 * @param statusCode
+	 */
+	void writeStatus(ByteArrayOutputStream out, int statusCode) {
+		for (int i = 0; i < STATUS_INDEXED_CODES.length; i++) {
+			if (STATUS_INDEXED_CODES[i] == statusCode) {
+				Hpack.writeInteger(out, 0x80, 7, STATUS_INDEX + i);
+				return;
+			}
+		}
+		Hpack.writeInteger(out, 0x00, 4, STATUS_INDEX);
+		writeString(out, Integer.toString(statusCode));
+	}
+
+	/**
+	 * writes a literal header field without indexing
+	 *
+	 * @param out
+	 * @param name  lower case name
+	 * @param value
+	 */
+	void writeHeader(ByteArrayOutputStream out, String name, String value) {
+		Integer index = Hpack.STATIC_NAME_INDEX.get(name);
+		if (index != null)
+			Hpack.writeInteger(out, 0x00, 4, index);
+		else {
+			out.write(0x00);
+			writeString(out, name);
+		}
+		writeString(out, value);
+	}
+
+	private void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		Hpack.writeInteger(out, 0x00, 7, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+}
@@ -0,0 +1,940 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * cleartext HTTP/2 (RFC 7540) on top of an accepted socket. frames are read on
+ * the thread which calls {@link #serve(WebRequest, String)}, every stream is
+ * handled on the executor of the server as soon as its request is complete, so
+ * many requests share one connection concurrently. streams of asynchronous
+ * handlers do not occupy a thread while their response is pending and are
+ * cancelled by RST_STREAM.
+ */
+class Http2Connection {
+
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	static final String UPGRADE_TOKEN = "h2c";
+	static final String HF_HTTP2_SETTINGS = "HTTP2-Settings";
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private static final int FRAME_HEADER_SIZE = 9;
+	private static final int DEFAULT_WINDOW_SIZE = 65_535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+	private static final int MAX_MAX_FRAME_SIZE = 16_777_215;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+	private static final int HEADER_TABLE_SIZE = 4_096;
+	private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+	private static final long SHUTDOWN_TIMEOUT = 30_000;
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<>(
+			Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	/**
+	 * @param request
+	 * @return true if the request asks for an upgrade to h2c (section 3.2)
+	 */
+	static boolean isUpgrade(WebRequest request) {
+		return containsToken(request.getHeaderField(WebServer.HF_UPGRADE), UPGRADE_TOKEN)
+				&& containsToken(request.getHeaderField(WebServer.HF_CONNECTION), WebServer.HF_UPGRADE)
+				&& request.getHeaderField(HF_HTTP2_SETTINGS) != null;
+	}
+
+	private static boolean containsToken(String value, String token) {
+		if (value == null)
+			return false;
+		for (String element : value.split(","))
+			if (element.trim().equalsIgnoreCase(token))
+				return true;
+		return false;
+	}
+
+	private final class Stream {
+
+		private final int id;
+		private final long start;
+		private WebRequest request;
+		private ByteArrayOutputStream body;
+		private int sendWindow;
+		private boolean remoteClosed;
+		private boolean refused;
+		private volatile boolean reset;
+		private volatile CompletableFuture<WebResponse> future;
+		private volatile SseEmitter emitter;
+		private volatile boolean ended;
+		private long reserved;
+
+		private Stream(int id) {
+			this.id = id;
+			start = System.nanoTime();
+			body = null;
+			sendWindow = peerInitialWindowSize;
+			remoteClosed = false;
+			refused = false;
+			reset = false;
+			future = null;
+			emitter = null;
+			ended = false;
+			reserved = 0;
+		}
+
+	}
+
+	private final WebServer server;
+	private final InetAddress remoteAddress;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final Executor executor;
+	private final BufferArena arena;
+	private final HpackDecoder decoder;
+	private final HpackEncoder encoder;
+	private final Map<Integer, Stream> streams;
+	private final Object writeLock;
+	private final Object flowLock;
+	private int lastStreamId;
+	private int connectionSendWindow;
+	private int peerInitialWindowSize;
+	private int peerMaxFrameSize;
+	private int headerStreamId;
+	private int headerFlags;
+	private ByteArrayOutputStream headerBlock;
+	private boolean goAwayReceived;
+	private volatile boolean closed;
+
+	/**
+	 * @param server        handles the requests of all streams
+	 * @param remoteAddress address of the client, used for the access log
+	 * @param inputStream   stream positioned right after the connection preface
+	 *                      or, for an upgrade, after the upgrade request
+	 * @param outputStream
+	 * @param executor      runs the streams
+	 * @param arena         request bodies are accounted against this arena
+	 */
+	Http2Connection(WebServer server, InetAddress remoteAddress, InputStream inputStream, OutputStream outputStream,
+			Executor executor, BufferArena arena) {
+		this.server = server;
+		this.remoteAddress = remoteAddress;
+		in = new DataInputStream(inputStream);
+		out = new BufferedOutputStream(outputStream, DEFAULT_MAX_FRAME_SIZE + FRAME_HEADER_SIZE);
+		this.executor = executor;
+		this.arena = arena;
+		decoder = new HpackDecoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+		encoder = new HpackEncoder();
+		streams = new ConcurrentHashMap<>();
+		writeLock = new Object();
+		flowLock = new Object();
+		lastStreamId = 0;
+		connectionSendWindow = DEFAULT_WINDOW_SIZE;
+		peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+		peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+		headerStreamId = 0;
+		headerBlock = null;
+		goAwayReceived = false;
+		closed = false;
+	}
+
+	/**
+	 * runs the connection until the client closes it, sends GOAWAY or stays idle
+	 * for longer than the socket timeout
+	 *
+	 * @param upgradeRequest the request which asked for the upgrade or null if the
+	 *                       client started with the connection preface
+	 * @param http2Settings  value of the HTTP2-Settings header of the upgrade
+	 *                       request
+	 * @throws IOException
+	 */
+	void serve(WebRequest upgradeRequest, String http2Settings) throws IOException {
+		try {
+			writeSettings();
+			if (upgradeRequest != null) {
+				try {
+					applySettings(Base64.getUrlDecoder().decode(http2Settings.trim()));
+				} catch (IllegalArgumentException e) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "malformed " + HF_HTTP2_SETTINGS);
+				}
+				Stream stream = new Stream(1);
+				lastStreamId = 1;
+				streams.put(stream.id, stream);
+				stream.request = upgradeRequest;
+				dispatch(stream);
+				readPreface();
+			}
+			readFrames();
+		} catch (Http2Exception e) {
+			if (e.isConnectionError())
+				writeGoAway(e.getErrorCode(), e.getMessage());
+		} catch (EOFException e) {
+		} finally {
+			for (Stream stream : streams.values()) {
+				SseEmitter emitter = stream.emitter;
+				if (emitter != null)
+					emitter.close();
+			}
+			awaitStreams();
+		}
+	}
+
+	private void readPreface() throws IOException {
+		byte[] preface = new byte[PREFACE.length];
+		in.readFully(preface);
+		if (!Arrays.equals(preface, PREFACE))
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid connection preface");
+	}
+
+	private void readFrames() throws IOException {
+		byte[] header = new byte[FRAME_HEADER_SIZE];
+		boolean first = true;
+		while (!goAwayReceived) {
+			try {
+				int read = in.read();
+				if (read == -1)
+					return;
+				header[0] = (byte) read;
+			} catch (SocketTimeoutException e) {
+				if (streams.isEmpty()) {
+					writeGoAway(Http2Exception.NO_ERROR, "idle");
+					return;
+				}
+				continue;
+			}
+			in.readFully(header, 1, FRAME_HEADER_SIZE - 1);
+			int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+			int type = header[3] & 0xff;
+			int flags = header[4] & 0xff;
+			int streamId = readInt(header, 5) & 0x7fffffff;
+			if (length > DEFAULT_MAX_FRAME_SIZE)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame too large: " + length);
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			if (first && type != SETTINGS)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "first frame must be SETTINGS");
+			first = false;
+			if (headerBlock != null && (type != CONTINUATION || streamId != headerStreamId))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "expected CONTINUATION");
+			try {
+				handleFrame(type, flags, streamId, payload);
+			} catch (Http2Exception e) {
+				if (e.isConnectionError())
+					throw e;
+				resetStream(e.getStreamId(), e.getErrorCode());
+			}
+		}
+	}
+
+	private void handleFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+		switch (type) {
+		case DATA:
+			onData(streamId, flags, payload);
+			break;
+		case HEADERS:
+			onHeaders(streamId, flags, payload);
+			break;
+		case PRIORITY:
+			if (streamId == 0)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+			if (payload.length != 5)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "invalid PRIORITY frame");
+			break;
+		case RST_STREAM:
+			onResetStream(streamId, payload);
+			break;
+		case SETTINGS:
+			onSettings(streamId, flags, payload);
+			break;
+		case PUSH_PROMISE:
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "clients must not send PUSH_PROMISE");
+		case PING:
+			if (streamId != 0)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+			if (payload.length != 8)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid PING frame");
+			if ((flags & FLAG_ACK) == 0)
+				writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+			break;
+		case GOAWAY:
+			if (streamId != 0)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+			goAwayReceived = true;
+			break;
+		case WINDOW_UPDATE:
+			onWindowUpdate(streamId, payload);
+			break;
+		case CONTINUATION:
+			onContinuation(streamId, flags, payload);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+		if (streamId == 0 || streamId % 2 == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "illegal stream id for HEADERS: " + streamId);
+		int offset = 0;
+		int padding = 0;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (payload.length < 1)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "missing pad length");
+			padding = payload[0] & 0xff;
+			offset++;
+		}
+		if ((flags & FLAG_PRIORITY) != 0)
+			offset += 5;
+		if (offset + padding > payload.length)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding exceeds HEADERS frame");
+		headerStreamId = streamId;
+		headerFlags = flags;
+		headerBlock = new ByteArrayOutputStream();
+		headerBlock.write(payload, offset, payload.length - offset - padding);
+		if ((flags & FLAG_END_HEADERS) != 0)
+			onHeaderBlock();
+	}
+
+	private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+		if (headerBlock == null)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+		headerBlock.write(payload, 0, payload.length);
+		if (headerBlock.size() > MAX_HEADER_LIST_SIZE)
+			throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+		if ((flags & FLAG_END_HEADERS) != 0)
+			onHeaderBlock();
+	}
+
+	private void onHeaderBlock() throws IOException {
+		List<String[]> headers = decoder.decode(headerBlock.toByteArray());
+		int streamId = headerStreamId;
+		boolean endStream = (headerFlags & FLAG_END_STREAM) != 0;
+		headerBlock = null;
+		headerStreamId = 0;
+		Stream stream = streams.get(streamId);
+		if (stream != null) {
+			if (stream.remoteClosed)
+				throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS on half-closed stream");
+			if (!endStream)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "trailers without END_STREAM");
+			if (stream.refused)
+				stream.remoteClosed = true;
+			else
+				dispatch(stream);
+			return;
+		}
+		if (streamId <= lastStreamId)
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+		lastStreamId = streamId;
+		if (streams.size() >= MAX_CONCURRENT_STREAMS)
+			throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "too many streams");
+		stream = new Stream(streamId);
+		stream.request = createRequest(streamId, headers);
+		streams.put(streamId, stream);
+		// checked before any DATA is buffered, the body of a limited request is
+		// never read
+		WebResponse limited = server.rateLimit(remoteAddress, stream.request);
+		if (limited != null)
+			refuse(stream, limited, endStream);
+		else if (endStream)
+			dispatch(stream);
+	}
+
+	private void onData(int streamId, int flags, byte[] payload) throws IOException {
+		if (streamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+		int padding = 0;
+		int offset = 0;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (payload.length < 1)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "missing pad length");
+			padding = payload[0] & 0xff;
+			offset++;
+		}
+		if (offset + padding > payload.length)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding exceeds DATA frame");
+		if (payload.length > 0)
+			writeWindowUpdate(0, payload.length);
+		Stream stream = streams.get(streamId);
+		if (stream == null || stream.remoteClosed) {
+			if (streamId > lastStreamId)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream");
+		}
+		if (stream.refused) {
+			// the window of the connection has been replenished, the stream is reset
+			// once the response has been written
+			if ((flags & FLAG_END_STREAM) != 0)
+				stream.remoteClosed = true;
+			return;
+		}
+		int length = payload.length - offset - padding;
+		if (stream.body == null)
+			stream.body = new ByteArrayOutputStream();
+		if (stream.body.size() + length > arena.getMaxRequestSize())
+			throw new Http2Exception(Http2Exception.CANCEL, streamId, "request body too large");
+		if (!arena.reserve(length))
+			throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "buffer budget exhausted");
+		stream.reserved += length;
+		stream.body.write(payload, offset, length);
+		if ((flags & FLAG_END_STREAM) != 0)
+			dispatch(stream);
+		else if (payload.length > 0)
+			writeWindowUpdate(streamId, payload.length);
+	}
+
+	private void onResetStream(int streamId, byte[] payload) throws IOException {
+		if (streamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+		if (payload.length != 4)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid RST_STREAM frame");
+		if (streamId > lastStreamId)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+		Stream stream = streams.get(streamId);
+		if (stream != null) {
+			stream.reset = true;
+			CompletableFuture<WebResponse> future = stream.future;
+			if (future != null)
+				future.cancel(true);
+			SseEmitter emitter = stream.emitter;
+			if (emitter != null)
+				emitter.close();
+			synchronized (flowLock) {
+				flowLock.notifyAll();
+			}
+		}
+	}
+
+	private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+		if (streamId != 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		if ((flags & FLAG_ACK) != 0) {
+			if (payload.length != 0)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+			return;
+		}
+		applySettings(payload);
+		writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	private void applySettings(byte[] payload) throws Http2Exception {
+		if (payload.length % 6 != 0)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid SETTINGS frame");
+		for (int i = 0; i < payload.length; i += 6) {
+			int identifier = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+			int value = readInt(payload, i + 2);
+			switch (identifier) {
+			case SETTINGS_ENABLE_PUSH:
+				if (value != 0 && value != 1)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid ENABLE_PUSH: " + value);
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value < 0)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "invalid window size");
+				synchronized (flowLock) {
+					int delta = value - peerInitialWindowSize;
+					peerInitialWindowSize = value;
+					for (Stream stream : streams.values()) {
+						long window = (long) stream.sendWindow + delta;
+						if (window > MAX_WINDOW_SIZE)
+							throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+						stream.sendWindow = (int) window;
+					}
+					flowLock.notifyAll();
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE: " + value);
+				peerMaxFrameSize = Math.min(value, DEFAULT_MAX_FRAME_SIZE * 4);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+		if (payload.length != 4)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE frame");
+		int increment = readInt(payload, 0) & 0x7fffffff;
+		if (increment == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "window increment of 0");
+		synchronized (flowLock) {
+			if (streamId == 0) {
+				if ((long) connectionSendWindow + increment > MAX_WINDOW_SIZE)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window overflow");
+				connectionSendWindow += increment;
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null)
+					return;
+				if ((long) stream.sendWindow + increment > MAX_WINDOW_SIZE)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "stream window overflow");
+				stream.sendWindow += increment;
+			}
+			flowLock.notifyAll();
+		}
+	}
+
+	private WebRequest createRequest(int streamId, List<String[]> headers) throws Http2Exception {
+		RequestEvent event = RequestEvents.start();
+		WebRequest request = new WebRequest();
+		request.setEvent(event);
+		String method = null;
+		String path = null;
+		String authority = null;
+		boolean regularHeaderSeen = false;
+		for (String[] header : headers) {
+			String name = header[0];
+			String value = header[1];
+			if (!isValidValue(value))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "malformed value of " + name);
+			if (name.startsWith(":")) {
+				if (regularHeaderSeen)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "pseudo header after header");
+				switch (name) {
+				case ":method":
+					method = value;
+					break;
+				case ":path":
+					path = value;
+					break;
+				case ":authority":
+					authority = value;
+					break;
+				case ":scheme":
+					break;
+				default:
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "unknown pseudo header " + name);
+				}
+				continue;
+			}
+			regularHeaderSeen = true;
+			if (!isValidName(name) || CONNECTION_HEADERS.contains(name))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "malformed header " + name);
+			if (value.trim().isEmpty())
+				continue;
+			String previous = request.getHeaderField(name);
+			if (previous != null)
+				value = previous + (name.equals("cookie") ? "; " : ", ") + value;
+			request.setHeaderField(name, value);
+		}
+		if (method == null || path == null || path.isEmpty())
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "missing pseudo header");
+		try {
+			request.setMethod(RequestMethod.valueOf(method));
+		} catch (IllegalArgumentException e) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "unknown method " + method);
+		}
+		request.setUri(path);
+		if (authority != null && !authority.isEmpty() && request.getHeaderField(WebServer.HF_HOST) == null)
+			request.setHeaderField(WebServer.HF_HOST, authority);
+		if (event != null)
+			event.parsed();
+		return request;
+	}
+
+	/**
+	 * RFC 7540 section 8.1.2: field names are lower case tokens without control
+	 * characters, white space or colons
+	 *
+	 * @param name
+	 * @return true if the name can be passed on as a header field name
+	 */
+	private static boolean isValidName(String name) {
+		if (name.isEmpty())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c <= ' ' || c >= 0x7f || c == ':' || (c >= 'A' && c <= 'Z'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * RFC 7540 section 8.1.2.6: a value with NUL, CR or LF makes the request
+	 * malformed. otherwise it could end a header field or the request when it is
+	 * passed on over HTTP/1.1.
+	 *
+	 * @param value
+	 * @return true if the value can be passed on as a header field value
+	 */
+	private static boolean isValidValue(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\0' || c == '\r' || c == '\n')
+				return false;
+		}
+		return true;
+	}
+
+	private void dispatch(Stream stream) {
+		stream.remoteClosed = true;
+		if (stream.body != null) {
+			stream.request.setBody(stream.body.toByteArray());
+			stream.body = null;
+		}
+		try {
+			executor.execute(() -> respond(stream));
+		} catch (RejectedExecutionException e) {
+			closeStream(stream);
+		}
+	}
+
+	/**
+	 * answers a request without handling it or reading its body. if the client
+	 * has not ended the stream, it is reset with NO_ERROR after the response
+	 * (RFC 7540 section 8.1), so the client stops sending the body.
+	 *
+	 * @param stream
+	 * @param response
+	 * @param endStream true if the request has no body
+	 */
+	private void refuse(Stream stream, WebResponse response, boolean endStream) {
+		stream.refused = true;
+		stream.remoteClosed = endStream;
+		try {
+			executor.execute(() -> {
+				finish(stream, CompletableFuture.completedFuture(response));
+				if (!endStream && !stream.reset) {
+					try {
+						resetStream(stream.id, Http2Exception.NO_ERROR);
+					} catch (IOException e) {
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			closeStream(stream);
+		}
+	}
+
+	private void respond(Stream stream) {
+		CompletableFuture<WebResponse> future = server.respondAsync(stream.request);
+		stream.future = future;
+		if (stream.reset)
+			future.cancel(true);
+		if (future.isDone())
+			finish(stream, future);
+		else
+			future.whenCompleteAsync((response, error) -> finish(stream, future), executor);
+	}
+
+	private void finish(Stream stream, CompletableFuture<WebResponse> future) {
+		boolean open = false;
+		try {
+			if (!future.isCancelled()) {
+				WebResponse response = future.join();
+				// WebSocket over HTTP/2 (RFC 8441) is not supported
+				if (response instanceof WebSocketResponse && ((WebSocketResponse) response).isAccepted())
+					response = server.prepared(ResponseCode.BAD_REQUEST);
+				boolean headOnly = stream.request.getMethod() == RequestMethod.HEAD;
+				if (response instanceof SseResponse && !headOnly)
+					open = openEventStream(stream, (SseResponse) response);
+				else {
+					if (response instanceof SseResponse)
+						((SseResponse) response).getEmitter().close();
+					RequestEvent event = stream.request.getEvent();
+					long begin = event != null ? System.nanoTime() : 0;
+					writeResponse(stream, response, headOnly);
+					if (event != null)
+						event.written(begin);
+				}
+				server.logAccess(remoteAddress, stream.request, response, System.nanoTime() - stream.start);
+			}
+		} catch (IOException e) {
+		} finally {
+			if (!open)
+				closeStream(stream);
+		}
+	}
+
+	/**
+	 * sends the head of an event stream and keeps the stream open until the
+	 * emitter is closed
+	 *
+	 * @param stream
+	 * @param response
+	 * @return true if the stream has been handed over to the emitter
+	 * @throws IOException
+	 */
+	private boolean openEventStream(Stream stream, SseResponse response) throws IOException {
+		SseEmitter emitter = response.getEmitter();
+		try {
+			if (!writeHeaders(stream, response, false)) {
+				emitter.close();
+				return false;
+			}
+		} catch (IOException e) {
+			emitter.close();
+			throw e;
+		}
+		stream.emitter = emitter;
+		server.openEventStream(emitter, new StreamSink(stream));
+		return true;
+	}
+
+	/**
+	 * writes the events of an event stream as DATA frames
+	 */
+	private final class StreamSink implements SseEmitter.Sink {
+
+		private final Stream stream;
+
+		private StreamSink(Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			int end = offset + length;
+			while (offset < end) {
+				int frameLength = acquireSendWindow(stream, end - offset);
+				synchronized (writeLock) {
+					if (stream.ended)
+						throw new IOException("stream " + stream.id + " has been closed");
+					writeFrame(DATA, 0, stream.id, data, offset, frameLength);
+				}
+				offset += frameLength;
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				synchronized (writeLock) {
+					if (!stream.ended && !stream.reset && !closed)
+						writeFrame(DATA, FLAG_END_STREAM, stream.id, new byte[0], 0, 0);
+					stream.ended = true;
+				}
+			} catch (IOException e) {
+			} finally {
+				closeStream(stream);
+			}
+		}
+
+	}
+
+	/**
+	 * @param stream
+	 * @param response
+	 * @param endStream true if the response has no body
+	 * @return false if the stream has been reset
+	 * @throws IOException
+	 */
+	private boolean writeHeaders(Stream stream, WebResponse response, boolean endStream) throws IOException {
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		encoder.writeStatus(block, response.getStatusCode());
+		for (String field : response.getHeaderFieldNames()) {
+			String name = field.toLowerCase(Locale.ROOT);
+			if (!CONNECTION_HEADERS.contains(name))
+				encoder.writeHeader(block, name, response.getHeaderField(field));
+		}
+		byte[] blockBytes = block.toByteArray();
+		synchronized (writeLock) {
+			if (stream.reset)
+				return false;
+			int length = Math.min(blockBytes.length, peerMaxFrameSize);
+			writeFrameHeader(HEADERS, (endStream ? FLAG_END_STREAM : 0) | (length == blockBytes.length ? FLAG_END_HEADERS : 0),
+					stream.id, length);
+			out.write(blockBytes, 0, length);
+			for (int offset = length; offset < blockBytes.length; offset += length) {
+				length = Math.min(blockBytes.length - offset, peerMaxFrameSize);
+				writeFrameHeader(CONTINUATION, offset + length == blockBytes.length ? FLAG_END_HEADERS : 0, stream.id,
+						length);
+				out.write(blockBytes, offset, length);
+			}
+			out.flush();
+		}
+		return true;
+	}
+
+	private void writeResponse(Stream stream, WebResponse response, boolean headOnly) throws IOException {
+		byte[] body = response.getBody();
+		boolean endStream = headOnly || body.length == 0;
+		if (!writeHeaders(stream, response, endStream) || endStream)
+			return;
+		int offset = 0;
+		while (offset < body.length) {
+			int length = acquireSendWindow(stream, body.length - offset);
+			writeFrame(DATA, offset + length == body.length ? FLAG_END_STREAM : 0, stream.id, body, offset, length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * waits until the flow control windows of the connection and of the stream
+	 * allow to send data
+	 *
+	 * @param stream
+	 * @param wanted
+	 * @return number of bytes which may be sent, at least one
+	 * @throws IOException if the stream or the connection has been closed
+	 */
+	private int acquireSendWindow(Stream stream, int wanted) throws IOException {
+		synchronized (flowLock) {
+			while (connectionSendWindow <= 0 || stream.sendWindow <= 0) {
+				if (stream.reset || stream.ended || closed)
+					throw new IOException("stream " + stream.id + " has been closed");
+				try {
+					flowLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for window");
+				}
+			}
+			if (stream.reset || closed)
+				throw new IOException("stream " + stream.id + " has been closed");
+			int length = Math.min(Math.min(wanted, peerMaxFrameSize),
+					Math.min(connectionSendWindow, stream.sendWindow));
+			connectionSendWindow -= length;
+			stream.sendWindow -= length;
+			return length;
+		}
+	}
+
+	private void closeStream(Stream stream) {
+		if (stream.reserved > 0) {
+			arena.release(stream.reserved);
+			stream.reserved = 0;
+		}
+		streams.remove(stream.id);
+		synchronized (flowLock) {
+			flowLock.notifyAll();
+		}
+	}
+
+	private void resetStream(int streamId, int errorCode) throws IOException {
+		Stream stream = streams.get(streamId);
+		if (stream != null) {
+			stream.reset = true;
+			if (!stream.remoteClosed)
+				closeStream(stream);
+		}
+		byte[] payload = new byte[4];
+		writeInt(payload, 0, errorCode);
+		writeFrame(RST_STREAM, 0, streamId, payload, 0, payload.length);
+	}
+
+	/**
+	 * waits for running streams and wakes up all writers which still wait for a
+	 * window
+	 */
+	private void awaitStreams() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		synchronized (flowLock) {
+			long remaining;
+			while (!streams.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					flowLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			closed = true;
+			flowLock.notifyAll();
+		}
+	}
+
+	private void writeSettings() throws IOException {
+		byte[] payload = new byte[18];
+		writeSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		writeSetting(payload, 6, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+		writeSetting(payload, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+		writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeSetting(byte[] payload, int offset, int identifier, int value) {
+		payload[offset] = (byte) (identifier >>> 8);
+		payload[offset + 1] = (byte) identifier;
+		writeInt(payload, offset + 2, value);
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] payload = new byte[4];
+		writeInt(payload, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+	}
+
+	private void writeGoAway(int errorCode, String message) throws IOException {
+		byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		byte[] payload = new byte[8 + debug.length];
+		writeInt(payload, 0, lastStreamId);
+		writeInt(payload, 4, errorCode);
+		System.arraycopy(debug, 0, payload, 8, debug.length);
+		writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+			throws IOException {
+		synchronized (writeLock) {
+			writeFrameHeader(type, flags, streamId, length);
+			out.write(payload, offset, length);
+			out.flush();
+		}
+	}
+
+	private void writeFrameHeader(int type, int flags, int streamId, int length) throws IOException {
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(streamId >>> 24);
+		out.write(streamId >>> 16);
+		out.write(streamId >>> 8);
+		out.write(streamId);
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+}
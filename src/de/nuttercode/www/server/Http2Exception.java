@@ -0,0 +1,60 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+
+/**
+ * error of an HTTP/2 connection or of a single stream. the error codes are the
+ * ones defined in section 7 of RFC 7540.
+ */
+class Http2Exception extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+	static final int ENHANCE_YOUR_CALM = 0xb;
+
+	private final int errorCode;
+	private final int streamId;
+
+	/**
+	 * creates a connection error
+	 *
+	 * @param errorCode
+	 * @param message
+	 */
+	Http2Exception(int errorCode, String message) {
+		this(errorCode, 0, message);
+	}
+
+	/**
+	 * @param errorCode
+	 * @param streamId  id of the failed stream or 0 for a connection error
+	 * @param message
+	 */
+	Http2Exception(int errorCode, int streamId, String message) {
+		super(message);
+		this.errorCode = errorCode;
+		this.streamId = streamId;
+	}
+
+	int getErrorCode() {
+		return errorCode;
+	}
+
+	int getStreamId() {
+		return streamId;
+	}
+
+	boolean isConnectionError() {
+		return streamId == 0;
+	}
+
+}
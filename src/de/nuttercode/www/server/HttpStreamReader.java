@@ -1,62 +1,182 @@
 package de.nuttercode.www.server;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import de.nuttercode.util.buffer.DataQueue;
 
-class HttpStreamReader {
+class HttpStreamReader implements Closeable {
 
 	private final BufferedInputStream bin;
 	private final DataQueue dataQueue;
-	private final static int MAX_BUFFER_SIZE = 100 * 1024 * 1024; // 24MiB
+	private final BufferArena arena;
+	private byte[] buffer;
+	private long reserved;
+	private long consumed;
+	private final static int MAX_BUFFER_SIZE = 100 * 1024 * 1024; // 100MiB
 	private final static int BUFFER_SIZE = 1024;
 	private final static byte CR = '\r';
 	private final static byte LF = '\n';
 
 	HttpStreamReader(InputStream inputStream) throws IOException {
+		this(inputStream, BufferArena.UNBOUNDED);
+	}
+
+	HttpStreamReader(InputStream inputStream, BufferArena arena) throws IOException {
+		this.arena = arena;
 		bin = new BufferedInputStream(inputStream);
 		dataQueue = new DataQueue();
-		dataQueue.setMaxSize(MAX_BUFFER_SIZE);
+		dataQueue.setMaxSize(Math.min(MAX_BUFFER_SIZE, arena.getMaxRequestSize()));
+		buffer = null;
+		reserved = 0;
+		consumed = 0;
+	}
+
+	/**
+	 * makes sure that at least the given number of bytes has been reserved from
+	 * the arena. the size counts all bytes read by this reader so far.
+	 *
+	 * @param size
+	 * @throws RequestRejectedException if the request is larger than allowed or
+	 *                                  the budget of the arena is exhausted
+	 */
+	private void reserve(long size) throws RequestRejectedException {
+		if (size <= reserved)
+			return;
+		if (size > arena.getMaxRequestSize())
+			throw new RequestRejectedException(ResponseCode.PAYLOAD_TOO_LARGE,
+					"request exceeds " + arena.getMaxRequestSize() + " bytes");
+		long missing = Math.max(size - reserved, BUFFER_SIZE);
+		if (!arena.reserve(missing))
+			throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE, "buffer budget exhausted");
+		reserved += missing;
 	}
 
 	public String readLine() throws IOException {
 		dataQueue.clear();
+		int length = 0;
 		boolean crFlag = false;
 		boolean exitFlag = false;
 		while (!exitFlag) {
-			byte current = (byte) bin.read();
+			int read = bin.read();
+			if (read == -1)
+				throw new EOFException("stream ended before end of line");
+			byte current = (byte) read;
+			if (consumed + length >= reserved)
+				reserve(consumed + length + 1);
 			switch (current) {
 			case CR:
-				if (crFlag)
+				if (crFlag) {
 					dataQueue.putByte(CR);
+					length++;
+				}
 				crFlag = true;
 				break;
 			case LF:
 				if (crFlag)
 					exitFlag = true;
-				else
+				else {
 					dataQueue.putByte(current);
+					length++;
+				}
 				break;
 			default:
 				dataQueue.putByte(current);
+				length++;
 				crFlag = false;
 				break;
 			}
 		}
+		consumed += length;
 		return new String(dataQueue.getBytes(), WebServer.UTF_8);
 	}
 
+	/**
+	 * reads the request line and all header lines up to and including the empty
+	 * line without decoding them
+	 *
+	 * @return the raw bytes of the head
+	 * @throws IOException
+	 */
+	byte[] readHead() throws IOException {
+		dataQueue.clear();
+		int length = 0;
+		boolean lineEmpty = false;
+		while (true) {
+			int read = bin.read();
+			if (read == -1)
+				throw new EOFException("stream ended before end of head");
+			if (consumed + length >= reserved)
+				reserve(consumed + length + 1);
+			length++;
+			if (read == LF) {
+				if (lineEmpty)
+					break;
+				lineEmpty = true;
+			} else if (read != CR)
+				lineEmpty = false;
+			dataQueue.putByte((byte) read);
+		}
+		consumed += length;
+		return dataQueue.getBytes();
+	}
+
 	public byte[] readBytes(int length) throws IOException {
-		byte[] buffer = new byte[BUFFER_SIZE];
+		reserve(consumed + length);
+		if (buffer == null)
+			buffer = arena.acquire(BUFFER_SIZE);
 		int bytesRead;
 		while (dataQueue.available() < length) {
-			bytesRead = bin.read(buffer);
+			bytesRead = bin.read(buffer, 0, Math.min(buffer.length, length - dataQueue.available()));
 			if (bytesRead == -1)
 				throw new IllegalStateException("not enough data in stream");
 			dataQueue.putBytes(buffer, 0, bytesRead);
 		}
+		consumed += length;
 		return dataQueue.getBytes();
 	}
 
+	/**
+	 * consumes the HTTP/2 connection preface if the stream starts with it
+	 *
+	 * @return true if the preface has been consumed
+	 * @throws IOException
+	 */
+	boolean readHttp2Preface() throws IOException {
+		byte[] preface = Http2Connection.PREFACE;
+		bin.mark(preface.length);
+		for (int i = 0; i < preface.length; i++) {
+			if (bin.read() != (preface[i] & 0xff)) {
+				bin.reset();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the underlying stream, positioned after the data read so far
+	 */
+	InputStream getInputStream() {
+		return bin;
+	}
+
+	/**
+	 * releases all reserved bytes and the read buffer. data which has been read
+	 * before stays valid but is no longer accounted for.
+	 */
+	@Override
+	public void close() {
+		if (buffer != null) {
+			arena.recycle(buffer);
+			buffer = null;
+		}
+		if (reserved > 0) {
+			arena.release(reserved);
+			reserved = 0;
+		}
+	}
+
 }
@@ -2,54 +2,183 @@ package de.nuttercode.www.server;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
 import de.nuttercode.util.assurance.Assurance;
 import de.nuttercode.util.assurance.NotNull;
 
+/**
+ * accepts connections on one or more plain or TLS secured addresses with a
+ * configurable number of acceptor threads per address. if the JDK supports
+ * SO_REUSEPORT every acceptor binds its own socket and the kernel balances new
+ * connections between them. otherwise all acceptors of an address share one
+ * socket. plain addresses are accepted through a channel, which the WebSocket
+ * event loop needs. secure addresses are accepted through a
+ * {@link ServerSocket}, because on Java 8 and 11 the streams of a channel's
+ * socket adaptor share a lock, so such a socket can not be read and written at
+ * the same time as HTTP/2 and WebSocket connections do.
+ */
 class ListenerThread implements Closeable {
 
 	private final static int DEFAULT_BACKLOG = 10;
 	private final static int DEFAULT_PORT = 80;
+	private final static int DEFAULT_ACCEPTORS = 1;
+	private final static SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
 
-	private ServerSocket serverSocket;
+	/**
+	 * SO_REUSEPORT has been added to {@link StandardSocketOptions} in Java 9.
+	 *
+	 * @return the option or null if this JDK does not know it
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupReusePort() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private final List<ServerSocketChannel> serverChannels;
+	private final List<ServerSocket> serverSockets;
+	private final List<Thread> threads;
+	private final List<InetSocketAddress> addresses;
+	private final List<InetSocketAddress> secureAddresses;
+	private TlsConfiguration tlsConfiguration;
 	private int port;
 	private int backlog;
+	private int acceptors;
 	private final Consumer<Socket> socketHandler;
-	private final Thread thread;
 
+	/**
+	 * @param socketHandler called on a new thread for every accepted socket. the
+	 *                      handler is responsible for closing the socket.
+	 */
 	ListenerThread(@NotNull Consumer<Socket> socketHandler) {
 		Assurance.assureNotNull(socketHandler);
 		this.socketHandler = socketHandler;
-		thread = new Thread(this::run);
+		serverChannels = new ArrayList<>();
+		serverSockets = new ArrayList<>();
+		threads = new ArrayList<>();
+		addresses = new ArrayList<>();
+		secureAddresses = new ArrayList<>();
+		tlsConfiguration = null;
 		port = DEFAULT_PORT;
 		backlog = DEFAULT_BACKLOG;
+		acceptors = DEFAULT_ACCEPTORS;
 	}
 
-	private void run() {
-		try {
-			serverSocket = new ServerSocket(port, backlog);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return;
+	private void run(ServerSocketChannel serverChannel) {
+		while (serverChannel.isOpen()) {
+			try {
+				Socket socket = serverChannel.accept().socket();
+				new Thread(() -> socketHandler.accept(socket)).start();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+			}
 		}
+	}
+
+	private void run(ServerSocket serverSocket) {
 		while (!serverSocket.isClosed()) {
 			try {
-				final Socket socket = serverSocket.accept();
-				new Thread(() -> {
-					socketHandler.accept(socket);
-					try {
-						socket.close();
-					} catch (IOException e) {
-					}
-				}).start();
+				Socket accepted = serverSocket.accept();
+				final Socket socket;
+				try {
+					socket = tlsConfiguration.wrap(accepted);
+				} catch (IOException e) {
+					accepted.close();
+					continue;
+				}
+				new Thread(() -> socketHandler.accept(socket)).start();
 			} catch (IOException e) {
 			}
 		}
 	}
 
+	private ServerSocketChannel bind(InetSocketAddress address, boolean reusePort) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			if (reusePort)
+				serverChannel.setOption(SO_REUSEPORT, true);
+			serverChannel.bind(address, backlog);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		serverChannels.add(serverChannel);
+		return serverChannel;
+	}
+
+	private ServerSocket bindSecure(InetSocketAddress address, boolean reusePort) throws IOException {
+		ServerSocket serverSocket = new ServerSocket();
+		try {
+			serverSocket.setReuseAddress(true);
+			if (reusePort)
+				setReusePort(serverSocket);
+			serverSocket.bind(address, backlog);
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		serverSockets.add(serverSocket);
+		return serverSocket;
+	}
+
+	/**
+	 * {@link ServerSocket} has no setOption method before Java 9
+	 *
+	 * @param serverSocket
+	 * @throws IOException if the option can not be set
+	 */
+	private static void setReusePort(ServerSocket serverSocket) throws IOException {
+		try {
+			Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(serverSocket, SO_REUSEPORT, true);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void startAcceptor(ServerSocketChannel serverChannel) {
+		startAcceptor(new Thread(() -> run(serverChannel)), serverChannel.socket().getLocalPort());
+	}
+
+	private void startAcceptor(ServerSocket serverSocket) {
+		startAcceptor(new Thread(() -> run(serverSocket)), serverSocket.getLocalPort());
+	}
+
+	private void startAcceptor(Thread thread, int localPort) {
+		thread.setName("acceptor-" + localPort + "-" + threads.size());
+		threads.add(thread);
+		thread.start();
+	}
+
+	private boolean supportsReusePort() throws IOException {
+		if (SO_REUSEPORT == null)
+			return false;
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			return probe.supportedOptions().contains(SO_REUSEPORT);
+		}
+	}
+
 	void setPort(int port) {
 		this.port = port;
 	}
@@ -58,16 +187,104 @@ class ListenerThread implements Closeable {
 		this.backlog = backlog;
 	}
 
+	/**
+	 * @param acceptors number of threads accepting connections on every address
+	 */
+	void setAcceptors(int acceptors) {
+		if (acceptors < 1)
+			throw new IllegalArgumentException("at least one acceptor is required: " + acceptors);
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * adds an address to listen on. if no address has been added the listener
+	 * binds to all interfaces on {@link #getPort()}.
+	 *
+	 * @param address
+	 */
+	void addAddress(@NotNull InetSocketAddress address) {
+		Assurance.assureNotNull(address);
+		addresses.add(address);
+	}
+
+	/**
+	 * adds an address on which connections are secured with TLS
+	 *
+	 * @param address
+	 */
+	void addSecureAddress(@NotNull InetSocketAddress address) {
+		Assurance.assureNotNull(address);
+		secureAddresses.add(address);
+	}
+
+	/**
+	 * @param tlsConfiguration initialized configuration used for all secure
+	 *                         addresses
+	 */
+	void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+		this.tlsConfiguration = tlsConfiguration;
+	}
+
 	@Override
 	public void close() throws IOException {
-		if (serverSocket != null)
-			serverSocket.close();
-		if (thread.isAlive())
-			thread.interrupt();
+		IOException exception = null;
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		serverChannels.clear();
+		for (ServerSocket serverSocket : serverSockets) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				exception = e;
+			}
+		}
+		serverSockets.clear();
+		for (Thread thread : threads)
+			if (thread.isAlive())
+				thread.interrupt();
+		threads.clear();
+		if (exception != null)
+			throw exception;
 	}
 
-	public void start() {
-		thread.start();
+	/**
+	 * binds all addresses and starts the acceptor threads
+	 *
+	 * @throws IOException if an address could not be bound
+	 */
+	public void start() throws IOException {
+		List<InetSocketAddress> bindAddresses = new ArrayList<>(addresses);
+		if (bindAddresses.isEmpty() && secureAddresses.isEmpty())
+			bindAddresses.add(new InetSocketAddress(port));
+		if (!secureAddresses.isEmpty() && tlsConfiguration == null)
+			throw new IllegalStateException("secure addresses require a tls configuration");
+		boolean reusePort = acceptors > 1 && supportsReusePort();
+		try {
+			for (InetSocketAddress address : bindAddresses)
+				startAcceptors(address, false, reusePort);
+			for (InetSocketAddress address : secureAddresses)
+				startAcceptors(address, true, reusePort);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void startAcceptors(InetSocketAddress address, boolean secure, boolean reusePort) throws IOException {
+		if (secure) {
+			ServerSocket serverSocket = reusePort ? null : bindSecure(address, false);
+			for (int i = 0; i < acceptors; i++)
+				startAcceptor(reusePort ? bindSecure(address, true) : serverSocket);
+		} else {
+			ServerSocketChannel serverChannel = reusePort ? null : bind(address, false);
+			for (int i = 0; i < acceptors; i++)
+				startAcceptor(reusePort ? bind(address, true) : serverChannel);
+		}
 	}
 
 	public int getPort() {
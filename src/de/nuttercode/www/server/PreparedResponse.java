@@ -0,0 +1,146 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * an immutable response whose head and body are encoded once. only the Date
+ * field is added when the response is sent, from a value which changes once per
+ * second. a prepared response can be returned to any number of requests from
+ * any thread and is written with a single write. the server does not add its
+ * Host field to prepared responses.
+ */
+public class PreparedResponse extends WebResponse {
+
+	private final static String HF_DATE = "Date";
+	private final static DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * the encoded Date field of one second
+	 */
+	private static class Encoded {
+
+		private final long second;
+		private final byte[] bytes;
+
+		private Encoded(long second, byte[] bytes) {
+			this.second = second;
+			this.bytes = bytes;
+		}
+
+	}
+
+	private static volatile Encoded date = new Encoded(-1, new byte[0]);
+
+	/**
+	 * @param second epoch second
+	 * @return the Date field with the empty line which ends the head
+	 */
+	private static Encoded dateOf(long second) {
+		Encoded current = date;
+		if (current.second != second) {
+			current = new Encoded(second,
+					(HF_DATE + ": " + HTTP_DATE.format(Instant.ofEpochSecond(second)) + WebServer.CRLF + WebServer.CRLF)
+							.getBytes(StandardCharsets.US_ASCII));
+			date = current;
+		}
+		return current;
+	}
+
+	private final byte[] head;
+	private final boolean sealed;
+	private volatile Encoded encoded;
+
+	/**
+	 * @param response status, header fields and body are copied, a Date field is
+	 *                 replaced
+	 */
+	public PreparedResponse(@NotNull WebResponse response) {
+		super(response);
+		super.removeHeaderField(HF_DATE);
+		StringBuilder head = new StringBuilder(256);
+		head.append(getStatusLine()).append(WebServer.CRLF);
+		for (String field : getHeaderFieldNames())
+			head.append(field).append(": ").append(getHeaderField(field)).append(WebServer.CRLF);
+		this.head = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		encoded = new Encoded(-1, null);
+		sealed = true;
+	}
+
+	/**
+	 * @return the encoded response with the Date field of the current second
+	 */
+	byte[] toBytes() {
+		long second = System.currentTimeMillis() / 1000;
+		Encoded current = encoded;
+		if (current.second != second) {
+			byte[] body = getBody();
+			byte[] dateField = dateOf(second).bytes;
+			byte[] bytes = new byte[head.length + dateField.length + body.length];
+			System.arraycopy(head, 0, bytes, 0, head.length);
+			System.arraycopy(dateField, 0, bytes, head.length, dateField.length);
+			System.arraycopy(body, 0, bytes, head.length + dateField.length, body.length);
+			current = new Encoded(second, bytes);
+			encoded = current;
+		}
+		return current.bytes;
+	}
+
+	@Override
+	public void sendTo(OutputStream outputStream) throws IOException {
+		outputStream.write(toBytes());
+		outputStream.flush();
+	}
+
+	private void assureMutable() {
+		if (sealed)
+			throw new UnsupportedOperationException("prepared responses are immutable");
+	}
+
+	@Override
+	public void setStatusCode(int errorCode) {
+		assureMutable();
+		super.setStatusCode(errorCode);
+	}
+
+	@Override
+	public void setStatusReason(@NotNull String statusReason) {
+		assureMutable();
+		super.setStatusReason(statusReason);
+	}
+
+	@Override
+	public void setHeaderField(String field, String value) {
+		assureMutable();
+		super.setHeaderField(field, value);
+	}
+
+	@Override
+	public void removeHeaderField(String field) {
+		assureMutable();
+		super.removeHeaderField(field);
+	}
+
+	@Override
+	public void setBody(@NotNull byte[] body) {
+		assureMutable();
+		super.setBody(body);
+	}
+
+	@Override
+	void setReceivedBody(@NotNull byte[] body) {
+		assureMutable();
+		Assurance.assureNotNull(body);
+		super.setReceivedBody(body.clone());
+	}
+
+}
@@ -0,0 +1,167 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * forwards requests to the upstreams of an {@link UpstreamPool} and streams
+ * their responses back to the client. the handler is meant to be subclassed
+ * by a {@link WebAppComponent} which passes a shared pool to this constructor.
+ * requests which can not be forwarded are answered with 502, requests to an
+ * upstream which does not answer in time with 504 and requests to a pool
+ * without available upstreams with 503. idempotent requests without a body are
+ * repeated once if the connection fails before the response arrives. the
+ * server reads request bodies by their Content-Length only, so requests with a
+ * Transfer-Encoding field are answered with 411 instead of being forwarded
+ * without their body.
+ */
+public class ProxyHandler implements WebRequestHandler {
+
+	private final static int BUFFER_SIZE = 16 * 1024;
+	private final static String HF_CONTENT_LENGTH = "Content-Length";
+	private final static String HF_EXPECT = "Expect";
+	private final static String HF_TRANSFER_ENCODING = "Transfer-Encoding";
+
+	private final UpstreamPool pool;
+
+	/**
+	 * @param pool the upstreams which receive the requests
+	 */
+	public ProxyHandler(@NotNull UpstreamPool pool) {
+		Assurance.assureNotNull(pool);
+		this.pool = pool;
+	}
+
+	public UpstreamPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @param request
+	 * @return the request target which is sent to the upstream, the target of the
+	 *         request by default
+	 */
+	protected String rewriteUri(WebRequest request) {
+		return request.getUri();
+	}
+
+	/**
+	 * @param method
+	 * @return true if a request with this method may be repeated without changing
+	 *         the result
+	 */
+	private static boolean isIdempotent(RequestMethod method) {
+		return method != RequestMethod.POST && method != RequestMethod.PATCH && method != RequestMethod.CONNECT;
+	}
+
+	@Override
+	public WebResponse handleRequest(WebRequest request) {
+		if (request.getHeaderField(HF_TRANSFER_ENCODING) != null)
+			return WebResponse.from(ResponseCode.LENGTH_REQUIRED);
+		String uri = rewriteUri(request);
+		boolean headRequest = request.getMethod() == RequestMethod.HEAD;
+		long bodyLength;
+		try {
+			bodyLength = request.hasPendingBody() ? request.readContentLength() : request.getBody().length;
+		} catch (IOException e) {
+			return WebResponse.from(ResponseCode.BAD_REQUEST);
+		}
+		boolean retryable = bodyLength == 0 && isIdempotent(request.getMethod());
+		Set<Upstream> failed = new HashSet<>();
+		boolean retried = false;
+		while (true) {
+			Upstream upstream = pool.select(request, failed);
+			if (upstream == null)
+				return WebResponse.from(failed.isEmpty() ? ResponseCode.SERVICE_UNAVAILABLE : ResponseCode.BAD_GATEWAY);
+			UpstreamConnection connection;
+			try {
+				connection = upstream.acquire();
+			} catch (IOException e) {
+				pool.reportFailure(upstream);
+				failed.add(upstream);
+				continue;
+			}
+			ProxyResponse response = null;
+			try {
+				writeRequest(connection, request, uri, bodyLength);
+				response = new ProxyResponse(connection, headRequest);
+				if (response.getStatusCode() >= 500)
+					pool.reportFailure(upstream);
+				else
+					pool.reportSuccess(upstream);
+				return response;
+			} catch (SocketTimeoutException e) {
+				upstream.release(connection, false);
+				pool.reportFailure(upstream);
+				return WebResponse.from(ResponseCode.GATEWAY_TIMEOUT);
+			} catch (IOException e) {
+				upstream.release(connection, false);
+				// a reused connection may have been closed by the upstream while the
+				// request was on its way, which is not a failure of the upstream
+				if (!connection.isReused()) {
+					pool.reportFailure(upstream);
+					failed.add(upstream);
+				}
+				if (retryable && !retried) {
+					retried = true;
+					continue;
+				}
+				return WebResponse.from(ResponseCode.BAD_GATEWAY);
+			} catch (RuntimeException | Error e) {
+				if (response == null)
+					upstream.release(connection, false);
+				else
+					response.discard();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * writes the request without the fields which only apply to the connection
+	 * of the client and streams its body
+	 *
+	 * @param connection
+	 * @param request
+	 * @param uri
+	 * @param bodyLength
+	 * @throws IOException
+	 */
+	private void writeRequest(UpstreamConnection connection, WebRequest request, String uri, long bodyLength)
+			throws IOException {
+		Set<String> excluded = ProxyResponse.hopByHopFields(request.getHeaderField(WebServer.HF_CONNECTION));
+		excluded.add(HF_CONTENT_LENGTH);
+		excluded.add(HF_EXPECT);
+		StringBuilder head = new StringBuilder(256);
+		head.append(request.getMethod()).append(' ').append(uri).append(' ').append(WebServer.HTTP_VERSION)
+				.append(WebServer.CRLF);
+		for (String field : request.getHeaderFieldNames())
+			if (!excluded.contains(field))
+				head.append(field).append(": ").append(request.getHeaderField(field)).append(WebServer.CRLF);
+		if (request.getHeaderField(WebServer.HF_HOST) == null)
+			head.append(WebServer.HF_HOST).append(": ").append(connection.getUpstream().getAddress().getHostString())
+					.append(WebServer.CRLF);
+		if (bodyLength > 0)
+			head.append(HF_CONTENT_LENGTH).append(": ").append(bodyLength).append(WebServer.CRLF);
+		head.append(WebServer.CRLF);
+		OutputStream out = connection.getOutputStream();
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (bodyLength > 0) {
+			InputStream body = request.getBodyStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = body.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		}
+		out.flush();
+	}
+
+}
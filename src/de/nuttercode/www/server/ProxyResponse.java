@@ -0,0 +1,248 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * the response of an upstream to a proxied request. the body is streamed from
+ * the upstream connection to the client while the response is sent, so it is
+ * never held in memory completely. the connection returns to its pool once the
+ * body has been read, or is closed if the response is discarded.
+ */
+class ProxyResponse extends WebResponse {
+
+	private final static int BUFFER_SIZE = 16 * 1024;
+	private final static String HF_TRANSFER_ENCODING = "Transfer-Encoding";
+	private final static String HF_CONTENT_LENGTH = "Content-Length";
+	private final static String CHUNKED = "chunked";
+	private final static String CLOSE = "close";
+	private final static String HTTP_1_0 = "HTTP/1.0";
+	private final static String[] HOP_BY_HOP_FIELDS = { WebServer.HF_CONNECTION, "Keep-Alive", "Proxy-Connection",
+			"Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer", HF_TRANSFER_ENCODING, WebServer.HF_UPGRADE };
+	private final static byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @param connection value of the Connection field, may be null
+	 * @return the names of the fields which apply only to a single connection
+	 *         and must not be forwarded
+	 */
+	static Set<String> hopByHopFields(String connection) {
+		Set<String> fields = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		for (String field : HOP_BY_HOP_FIELDS)
+			fields.add(field);
+		if (connection != null)
+			for (String token : connection.split(","))
+				if (!token.trim().isEmpty())
+					fields.add(token.trim());
+		return fields;
+	}
+
+	private UpstreamConnection connection;
+	private InputStream body;
+	private long remaining;
+	private boolean keepAlive;
+	private long bodyLength;
+
+	/**
+	 * reads the head of the response. HTTP/1.0 upstreams are accepted, but their
+	 * connections are not reused.
+	 *
+	 * @param connection  the request has been written to it
+	 * @param headRequest true if the request has no response body
+	 * @throws ProtocolException if the response is malformed
+	 * @throws IOException
+	 */
+	ProxyResponse(UpstreamConnection connection, boolean headRequest) throws ProtocolException, IOException {
+		HttpStreamReader reader = connection.getReader();
+		boolean http10 = parseStatusLine(reader.readLine());
+		readHeader(reader);
+		while (getStatusCode() / 100 == 1) {
+			if (getStatusCode() == ResponseCode.SWITCHING_PROTOCOLS.getCode())
+				throw new ProtocolException("upstream switched protocols without being asked to");
+			for (String field : new ArrayList<>(getHeaderFieldNames()))
+				removeHeaderField(field);
+			http10 = parseStatusLine(reader.readLine());
+			readHeader(reader);
+		}
+		String connectionField = getHeaderField(WebServer.HF_CONNECTION);
+		String transferEncoding = getHeaderField(HF_TRANSFER_ENCODING);
+		keepAlive = !http10 && (connectionField == null || !connectionField.toLowerCase().contains(CLOSE));
+		if (headRequest || getStatusCode() == 204 || getStatusCode() == 304) {
+			body = null;
+			remaining = 0;
+		} else if (transferEncoding != null) {
+			if (!transferEncoding.trim().equalsIgnoreCase(CHUNKED))
+				throw new ProtocolException("unsupported transfer coding: " + transferEncoding);
+			removeHeaderField(HF_CONTENT_LENGTH);
+			body = new ChunkedInputStream(reader.getInputStream());
+			remaining = -1;
+		} else if (getHeaderField(HF_CONTENT_LENGTH) != null) {
+			remaining = readContentLength();
+			body = remaining > 0 ? reader.getInputStream() : null;
+		} else {
+			body = reader.getInputStream();
+			remaining = -1;
+			keepAlive = false;
+		}
+		for (String field : hopByHopFields(connectionField))
+			removeHeaderField(field);
+		bodyLength = 0;
+		this.connection = connection;
+		if (body == null)
+			release(true);
+	}
+
+	/**
+	 * @param line status line of an upstream response
+	 * @return true if the upstream speaks HTTP/1.0
+	 * @throws ProtocolException if the line is not an HTTP/1.0 or HTTP/1.1
+	 *                           status line
+	 */
+	private boolean parseStatusLine(String line) throws ProtocolException {
+		if (line == null || line.isEmpty())
+			throw new ProtocolException("status line is missing");
+		// HTTP-version SP 3DIGIT SP [reason-phrase], the last space is missing in
+		// the status lines of some upstreams
+		if (line.length() < 12 || line.charAt(8) != ' ' || (line.length() > 12 && line.charAt(12) != ' '))
+			throw new ProtocolException("invalid status line: " + line);
+		String version = line.substring(0, 8);
+		if (!version.equals(WebServer.HTTP_VERSION) && !version.equals(HTTP_1_0))
+			throw new ProtocolException("unsupported http version: " + version);
+		int statusCode = 0;
+		for (int i = 9; i < 12; i++) {
+			char digit = line.charAt(i);
+			if (digit < '0' || digit > '9')
+				throw new ProtocolException("not a status code: " + line.substring(9, 12));
+			statusCode = statusCode * 10 + digit - '0';
+		}
+		setStatusCode(statusCode);
+		setStatusReason(line.length() > 12 ? line.substring(13) : "");
+		return version.equals(HTTP_1_0);
+	}
+
+	private void release(boolean complete) {
+		if (connection != null) {
+			connection.getUpstream().release(connection, complete && keepAlive);
+			connection = null;
+		}
+	}
+
+	/**
+	 * closes the upstream connection unless the body has been read already
+	 */
+	@Override
+	public void discard() {
+		release(false);
+	}
+
+	/**
+	 * @param buffer
+	 * @return number of bytes read or -1 at the end of the body
+	 * @throws IOException if the upstream closes the connection before the end of
+	 *                     the body
+	 */
+	private int readBody(byte[] buffer) throws IOException {
+		if (remaining == 0)
+			return -1;
+		int read = body.read(buffer, 0, remaining > 0 ? (int) Math.min(buffer.length, remaining) : buffer.length);
+		if (read == -1) {
+			if (remaining > 0)
+				throw new EOFException("upstream closed the connection before the end of the body");
+			remaining = 0;
+			return -1;
+		}
+		if (remaining > 0)
+			remaining -= read;
+		return read;
+	}
+
+	/**
+	 * reads the whole body, e.g. to send it over HTTP/2
+	 *
+	 * @throws UncheckedIOException if the body can not be read
+	 */
+	@Override
+	protected void loadBody() {
+		if (connection == null)
+			return;
+		boolean complete = false;
+		try (ByteArrayOutputStream buffered = new ByteArrayOutputStream()) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = readBody(buffer)) != -1)
+				buffered.write(buffer, 0, read);
+			complete = true;
+			setBody(buffered.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			release(complete);
+		}
+	}
+
+	/**
+	 * @return number of bytes which have been streamed or the size of the loaded
+	 *         body
+	 */
+	@Override
+	long getBodyLength() {
+		return bodyLength > 0 ? bodyLength : super.getBodyLength();
+	}
+
+	/**
+	 * writes the head and streams the body from the upstream. a body whose length
+	 * is not known in advance is sent with the chunked transfer coding.
+	 */
+	@Override
+	public void sendTo(OutputStream outputStream) throws IOException {
+		if (connection == null) {
+			super.sendTo(outputStream);
+			return;
+		}
+		boolean chunked = remaining < 0;
+		if (chunked)
+			setHeaderField(HF_TRANSFER_ENCODING, CHUNKED);
+		boolean complete = false;
+		try {
+			OutputStream out = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+			writer.write(getStatusLine());
+			writer.write(WebServer.CRLF);
+			writeHeaderFields(writer);
+			writer.flush();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = readBody(buffer)) != -1) {
+				if (chunked) {
+					out.write(Integer.toHexString(read).getBytes(StandardCharsets.US_ASCII));
+					out.write(WebServer.CRLF.getBytes(StandardCharsets.US_ASCII));
+				}
+				out.write(buffer, 0, read);
+				if (chunked)
+					out.write(WebServer.CRLF.getBytes(StandardCharsets.US_ASCII));
+				bodyLength += read;
+				if (body.available() == 0)
+					out.flush();
+			}
+			complete = true;
+			if (chunked)
+				out.write(LAST_CHUNK);
+			out.flush();
+		} finally {
+			release(complete);
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+package de.nuttercode.www.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * limits the request rate per client with the generic cell rate algorithm. the
+ * state of a client is a single theoretical arrival time which is advanced by
+ * compare-and-set, so permitting a request never takes a lock. clients whose
+ * bucket has refilled completely carry no information and are evicted
+ * periodically by {@link #evict()}. a new client which finds the table full
+ * evicts only among a few entries, so a request never scans the whole table.
+ * if none of them has refilled, the client is limited by its remote address,
+ * which it can not choose, and the sampled entry closest to being refilled
+ * makes room for it.
+ */
+class RateLimiter {
+
+	/**
+	 * what identifies a client
+	 */
+	enum Scope {
+
+		/**
+		 * the remote address of the connection
+		 */
+		ADDRESS,
+
+		/**
+		 * the value of a header field, the remote address if the field is missing
+		 */
+		HEADER,
+
+		/**
+		 * the reduced URI, which limits all clients of a route together
+		 */
+		ROUTE
+
+	}
+
+	private final static String HF_RETRY_AFTER = "Retry-After";
+	private final static long NANOS_PER_SECOND = 1_000_000_000L;
+	private final static int EVICTION_SAMPLE = 8;
+
+	private final long interval;
+	private final long capacity;
+	private final int maxClients;
+	private final Scope scope;
+	private final String headerField;
+	private final ConcurrentHashMap<Object, AtomicLong> arrivals;
+	private final AtomicBoolean evicting;
+	private final PreparedResponse response;
+
+	/**
+	 * @param rate        permitted requests per second
+	 * @param burst       number of requests a client may send at once
+	 * @param maxClients  maximum number of clients which are tracked
+	 * @param scope
+	 * @param headerField identifies the client if the scope is
+	 *                    {@link Scope#HEADER}
+	 * @param response    sent to rejected clients, prepared with a Retry-After
+	 *                    field
+	 */
+	RateLimiter(double rate, int burst, int maxClients, Scope scope, String headerField, WebResponse response) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be positive: " + burst);
+		if (maxClients < 1)
+			throw new IllegalArgumentException("maxClients must be positive: " + maxClients);
+		interval = Math.max(1, (long) (NANOS_PER_SECOND / rate));
+		capacity = burst * interval;
+		this.maxClients = maxClients;
+		this.scope = scope;
+		this.headerField = headerField;
+		arrivals = new ConcurrentHashMap<>();
+		evicting = new AtomicBoolean();
+		response.setHeaderField(HF_RETRY_AFTER, Long.toString((interval + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND));
+		this.response = new PreparedResponse(response);
+	}
+
+	/**
+	 * @param remoteAddress
+	 * @param request       only the head is accessed
+	 * @return true if the request may be handled, false if it has to be
+	 *         answered with {@link #getResponse()}
+	 */
+	boolean permits(InetAddress remoteAddress, WebRequest request) {
+		Object key;
+		switch (scope) {
+		case HEADER:
+			key = request.getHeaderField(headerField);
+			if (key == null)
+				key = remoteAddress;
+			break;
+		case ROUTE:
+			key = request.getReducedUri();
+			break;
+		default:
+			key = remoteAddress;
+			break;
+		}
+		long now = System.nanoTime();
+		AtomicLong arrival = arrivals.get(key);
+		if (arrival == null) {
+			if (arrivals.size() >= maxClients && !evictSample(now, false)) {
+				// header values and routes are chosen by the client, so rejecting unknown
+				// keys would let one client lock out all new ones
+				key = remoteAddress;
+				arrival = arrivals.get(key);
+				if (arrival == null)
+					evictSample(now, true);
+			}
+			if (arrival == null)
+				arrival = arrivals.computeIfAbsent(key, k -> new AtomicLong(now));
+		}
+		while (true) {
+			long current = arrival.get();
+			long next = (current - now > 0 ? current : now) + interval;
+			if (next - now > capacity)
+				return false;
+			if (arrival.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * removes the clients whose bucket has refilled completely
+	 */
+	void evict() {
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try {
+			long now = System.nanoTime();
+			arrivals.values().removeIf(arrival -> arrival.get() - now <= 0);
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * removes the clients among the first {@value #EVICTION_SAMPLE} entries of the
+	 * table whose bucket has refilled. the sample changes as entries are removed
+	 * and added.
+	 *
+	 * @param now
+	 * @param force if true and none of the sampled clients has refilled, the one
+	 *              closest to being refilled is removed
+	 * @return true if a client with a refilled bucket has been removed
+	 */
+	private boolean evictSample(long now, boolean force) {
+		boolean evicted = false;
+		Object oldest = null;
+		AtomicLong oldestArrival = null;
+		int sampled = 0;
+		for (Map.Entry<Object, AtomicLong> entry : arrivals.entrySet()) {
+			AtomicLong arrival = entry.getValue();
+			if (arrival.get() - now <= 0)
+				evicted |= arrivals.remove(entry.getKey(), arrival);
+			else if (oldest == null || arrival.get() - oldestArrival.get() < 0) {
+				oldest = entry.getKey();
+				oldestArrival = arrival;
+			}
+			if (++sampled == EVICTION_SAMPLE)
+				break;
+		}
+		if (!evicted && force && oldest != null)
+			arrivals.remove(oldest, oldestArrival);
+		return evicted;
+	}
+
+	/**
+	 * @return number of tracked clients
+	 */
+	int getClients() {
+		return arrivals.size();
+	}
+
+	/**
+	 * @return the response to a rejected request
+	 */
+	PreparedResponse getResponse() {
+		return response;
+	}
+
+}
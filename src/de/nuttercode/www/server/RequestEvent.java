@@ -0,0 +1,126 @@
+package de.nuttercode.www.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * a flight recorder event which spans a request from reading its head until its
+ * response has been written. the event is only created while a recording is
+ * running which enables it, so a request which is not recorded costs a single
+ * check of a cached flag. the phases are measured by the code which runs them
+ * and add up to less than the duration, the remainder is spent waiting for a
+ * thread or a pooled instance.
+ */
+@Name("de.nuttercode.www.Request")
+@Label("HTTP Request")
+@Category({ "nuttercode-www", "HTTP" })
+@Description("a request from reading its head until its response has been written")
+@StackTrace(false)
+class RequestEvent extends Event {
+
+	private final static EventType TYPE = EventType.getEventType(RequestEvent.class);
+
+	@Label("Method")
+	String method;
+
+	@Label("Route")
+	@Description("the reduced URI")
+	String route;
+
+	@Label("Status")
+	int status;
+
+	@Label("Request Body Size")
+	@DataAmount
+	long requestBodySize;
+
+	@Label("Response Body Size")
+	@DataAmount
+	long responseBodySize;
+
+	@Label("Parse Time")
+	@Timespan
+	long parseTime;
+
+	@Label("Handler Time")
+	@Description("from calling the handler until its response is complete")
+	@Timespan
+	long handlerTime;
+
+	@Label("Compress Time")
+	@Description("part of the handler time")
+	@Timespan
+	long compressTime;
+
+	@Label("Write Time")
+	@Timespan
+	long writeTime;
+
+	private transient long start;
+
+	/**
+	 * @return a begun event or null if requests are not recorded
+	 */
+	static RequestEvent start() {
+		if (!TYPE.isEnabled())
+			return null;
+		RequestEvent event = new RequestEvent();
+		event.start = System.nanoTime();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * the head of the request has been read
+	 */
+	void parsed() {
+		parseTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * @param begin {@link System#nanoTime()} when the handler was called
+	 */
+	void handled(long begin) {
+		handlerTime = System.nanoTime() - begin;
+	}
+
+	/**
+	 * @param begin {@link System#nanoTime()} when the compression began
+	 */
+	void compressed(long begin) {
+		compressTime += System.nanoTime() - begin;
+	}
+
+	/**
+	 * @param begin {@link System#nanoTime()} when the writing began
+	 */
+	void written(long begin) {
+		writeTime += System.nanoTime() - begin;
+	}
+
+	/**
+	 * commits the event unless it is below the threshold of the recording
+	 *
+	 * @param request
+	 * @param response
+	 */
+	void finish(WebRequest request, WebResponse response) {
+		end();
+		if (!shouldCommit())
+			return;
+		method = request.getMethod().toString();
+		route = request.getReducedUri();
+		status = response.getStatusCode();
+		requestBodySize = request.getBodyLength();
+		responseBodySize = response.getBodyLength();
+		commit();
+	}
+
+}
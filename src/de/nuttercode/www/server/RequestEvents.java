@@ -0,0 +1,47 @@
+package de.nuttercode.www.server;
+
+import java.net.InetAddress;
+
+/**
+ * creates the flight recorder events of requests. runtime images may be linked
+ * without the jdk.jfr module, so the event classes are only loaded if it is
+ * available.
+ */
+final class RequestEvents {
+
+	private final static boolean AVAILABLE = isAvailable();
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	private RequestEvents() {
+	}
+
+	/**
+	 * @return a begun event or null if requests are not recorded
+	 */
+	static RequestEvent start() {
+		return AVAILABLE ? RequestEvent.start() : null;
+	}
+
+	/**
+	 * records a request which took longer than the slow request threshold
+	 *
+	 * @param remoteAddress may be null
+	 * @param request
+	 * @param response
+	 * @param latencyNanos
+	 */
+	static void slowRequest(InetAddress remoteAddress, WebRequest request, WebResponse response,
+			long latencyNanos) {
+		if (AVAILABLE)
+			SlowRequestEvent.capture(remoteAddress, request, response, latencyNanos);
+	}
+
+}
@@ -0,0 +1,175 @@
+package de.nuttercode.www.server;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * raw bytes of a request head. the request line and the positions of the
+ * header lines are determined once, names and values of header fields are only
+ * decoded when they are accessed.
+ */
+class RequestHead {
+
+	private final static byte SP = ' ';
+	private final static byte CR = '\r';
+	private final static byte LF = '\n';
+	private final static byte COLON = ':';
+	private final static int INITIAL_FIELDS = 16;
+
+	private final byte[] data;
+	private final RequestMethod method;
+	private final int targetStart;
+	private final int targetEnd;
+	/**
+	 * start, colon and end of every header line, the end excludes the line
+	 * terminator
+	 */
+	private int[] fields;
+	private int fieldCount;
+	private String target;
+
+	/**
+	 * @param data request line and header lines, each terminated by a line feed
+	 * @throws ProtocolException if the request line or a header line is malformed
+	 */
+	RequestHead(byte[] data) throws ProtocolException {
+		this.data = data;
+		fields = new int[3 * INITIAL_FIELDS];
+		fieldCount = 0;
+		int lineEnd = lineEnd(0);
+		if (lineEnd == 0)
+			throw new ProtocolException("command line is missing: ");
+		int firstSpace = indexOf(SP, 0, lineEnd);
+		int secondSpace = firstSpace == -1 ? -1 : indexOf(SP, firstSpace + 1, lineEnd);
+		if (secondSpace == -1 || indexOf(SP, secondSpace + 1, lineEnd) != -1 || firstSpace == 0
+				|| secondSpace == firstSpace + 1)
+			throw new ProtocolException("command line has the wrong format: " + string(0, lineEnd));
+		method = RequestMethod.valueOf(string(0, firstSpace));
+		targetStart = firstSpace + 1;
+		targetEnd = secondSpace;
+		if (!string(secondSpace + 1, lineEnd).equals(WebServer.HTTP_VERSION))
+			throw new ProtocolException("wrong http version, expected: " + WebServer.HTTP_VERSION);
+		int start = nextLine(lineEnd);
+		while (start < data.length) {
+			int end = lineEnd(start);
+			if (end == start)
+				break;
+			int colon = indexOf(COLON, start, end);
+			if (colon == -1)
+				throw new ProtocolException("wrong header field format, expected colon in: " + string(start, end));
+			if (3 * fieldCount == fields.length)
+				fields = Arrays.copyOf(fields, 2 * fields.length);
+			fields[3 * fieldCount] = start;
+			fields[3 * fieldCount + 1] = colon;
+			fields[3 * fieldCount + 2] = end;
+			fieldCount++;
+			start = nextLine(end);
+		}
+	}
+
+	private int indexOf(byte value, int from, int to) {
+		for (int i = from; i < to; i++)
+			if (data[i] == value)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param start
+	 * @return end of the line which starts at the given position, without CR LF
+	 */
+	private int lineEnd(int start) {
+		int end = start;
+		while (end < data.length && data[end] != LF)
+			end++;
+		if (end > start && data[end - 1] == CR)
+			end--;
+		return end;
+	}
+
+	private int nextLine(int lineEnd) {
+		int next = lineEnd;
+		if (next < data.length && data[next] == CR)
+			next++;
+		return next + 1;
+	}
+
+	private String string(int start, int end) {
+		return new String(data, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	private String trimmed(int start, int end) {
+		while (start < end && (data[start] & 0xff) <= SP)
+			start++;
+		while (end > start && (data[end - 1] & 0xff) <= SP)
+			end--;
+		return start == end ? "" : string(start, end);
+	}
+
+	private boolean nameEquals(int field, String name) {
+		int start = fields[3 * field];
+		int end = fields[3 * field + 1];
+		while (start < end && (data[start] & 0xff) <= SP)
+			start++;
+		while (end > start && (data[end - 1] & 0xff) <= SP)
+			end--;
+		if (end - start != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = (char) (data[start + i] & 0xff);
+			char n = name.charAt(i);
+			if (c != n && Character.toLowerCase(c) != Character.toLowerCase(n))
+				return false;
+		}
+		return true;
+	}
+
+	RequestMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the request target exactly as received
+	 */
+	String getTarget() {
+		if (target == null)
+			target = string(targetStart, targetEnd);
+		return target;
+	}
+
+	/**
+	 * looks up a single field without decoding the others. like in
+	 * {@link WebObject} the last occurrence of a field wins and empty values are
+	 * ignored.
+	 *
+	 * @param name case insensitive
+	 * @return the trimmed value or null
+	 */
+	String getHeaderField(String name) {
+		String value = null;
+		for (int i = 0; i < fieldCount; i++) {
+			if (nameEquals(i, name)) {
+				String current = trimmed(fields[3 * i + 1] + 1, fields[3 * i + 2]);
+				if (!current.isEmpty())
+					value = current;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * decodes all header fields into the given object
+	 *
+	 * @param target
+	 */
+	void copyHeaderFields(WebObject target) {
+		for (int i = 0; i < fieldCount; i++) {
+			String name = trimmed(fields[3 * i], fields[3 * i + 1]);
+			String value = trimmed(fields[3 * i + 1] + 1, fields[3 * i + 2]);
+			if (!name.isEmpty() && !value.isEmpty())
+				target.setHeaderField(name, value);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * thrown if a request can not be processed. the server answers with
+ * {@link #getResponseCode()} instead of calling a handler.
+ */
+public class RequestRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ResponseCode responseCode;
+
+	public RequestRejectedException(@NotNull ResponseCode responseCode, String message) {
+		super(message);
+		Assurance.assureNotNull(responseCode);
+		this.responseCode = responseCode;
+	}
+
+	public @NotNull ResponseCode getResponseCode() {
+		return responseCode;
+	}
+
+}
@@ -4,7 +4,43 @@ public enum ResponseCode {
 
 	ACCESS_DENIED("access denied", 403), NOT_FOUND("not found", 404),
 	INTERNAL_SERVER_ERROR("internal server error", 500), BAD_REQUEST("bad request", 400), OK("ok", 200),
-	UNAUTHORIZED("unauthorized", 401);
+	UNAUTHORIZED("unauthorized", 401), PAYLOAD_TOO_LARGE("payload too large", 413),
+	SERVICE_UNAVAILABLE("service unavailable", 503), SWITCHING_PROTOCOLS("switching protocols", 101),
+	GATEWAY_TIMEOUT("gateway timeout", 504), UPGRADE_REQUIRED("upgrade required", 426),
+	BAD_GATEWAY("bad gateway", 502), TOO_MANY_REQUESTS("too many requests", 429), CONTINUE("continue", 100),
+	CREATED("created", 201), ACCEPTED("accepted", 202),
+	NON_AUTHORITATIVE_INFORMATION("non-authoritative information", 203), NO_CONTENT("no content", 204),
+	RESET_CONTENT("reset content", 205), PARTIAL_CONTENT("partial content", 206),
+	MULTIPLE_CHOICES("multiple choices", 300), MOVED_PERMANENTLY("moved permanently", 301), FOUND("found", 302),
+	SEE_OTHER("see other", 303), NOT_MODIFIED("not modified", 304), USE_PROXY("use proxy", 305),
+	TEMPORARY_REDIRECT("temporary redirect", 307), PERMANENT_REDIRECT("permanent redirect", 308),
+	PAYMENT_REQUIRED("payment required", 402), METHOD_NOT_ALLOWED("method not allowed", 405),
+	NOT_ACCEPTABLE("not acceptable", 406), PROXY_AUTHENTICATION_REQUIRED("proxy authentication required", 407),
+	REQUEST_TIMEOUT("request timeout", 408), CONFLICT("conflict", 409), GONE("gone", 410),
+	LENGTH_REQUIRED("length required", 411), PRECONDITION_FAILED("precondition failed", 412),
+	URI_TOO_LONG("uri too long", 414), UNSUPPORTED_MEDIA_TYPE("unsupported media type", 415),
+	RANGE_NOT_SATISFIABLE("range not satisfiable", 416), EXPECTATION_FAILED("expectation failed", 417),
+	MISDIRECTED_REQUEST("misdirected request", 421), UNPROCESSABLE_CONTENT("unprocessable content", 422),
+	PRECONDITION_REQUIRED("precondition required", 428),
+	REQUEST_HEADER_FIELDS_TOO_LARGE("request header fields too large", 431),
+	UNAVAILABLE_FOR_LEGAL_REASONS("unavailable for legal reasons", 451), NOT_IMPLEMENTED("not implemented", 501),
+	HTTP_VERSION_NOT_SUPPORTED("http version not supported", 505),
+	NETWORK_AUTHENTICATION_REQUIRED("network authentication required", 511);
+
+	private final static ResponseCode[] BY_CODE = new ResponseCode[600];
+
+	static {
+		for (ResponseCode responseCode : values())
+			BY_CODE[responseCode.code] = responseCode;
+	}
+
+	/**
+	 * @param code
+	 * @return the response code with the given number or null if it is unknown
+	 */
+	public static ResponseCode of(int code) {
+		return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+	}
 
 	private final String message;
 	private final int code;
@@ -0,0 +1,102 @@
+package de.nuttercode.www.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * bounded lock-free queue for many producers and a single consumer. every slot
+ * carries a sequence number which tells producers and the consumer whether the
+ * slot is free or filled, so neither side has to take a lock.
+ *
+ * @param <T> type of the elements
+ */
+class RingBuffer<T> {
+
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail;
+	private long head;
+
+	/**
+	 * @param capacity will be rounded up to the next power of two
+	 */
+	RingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("illegal capacity: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		slots = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		mask = size - 1;
+		tail = new AtomicLong();
+		head = 0;
+	}
+
+	/**
+	 * may be called by any thread
+	 *
+	 * @param element
+	 * @return false if the buffer is full
+	 */
+	boolean offer(T element) {
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (difference < 0)
+				return false;
+		}
+		slots.set(index, element);
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * must only be called by the consumer thread
+	 *
+	 * @return the oldest element or null if the buffer is empty
+	 */
+	T poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1)
+			return null;
+		T element = slots.get(index);
+		slots.lazySet(index, null);
+		sequences.lazySet(index, head + mask + 1);
+		head++;
+		return element;
+	}
+
+	/**
+	 * must only be called by the consumer thread
+	 *
+	 * @param consumer
+	 * @param maxElements
+	 * @return number of elements passed to the consumer
+	 */
+	int drain(Consumer<T> consumer, int maxElements) {
+		int count = 0;
+		T element;
+		while (count < maxElements && (element = poll()) != null) {
+			consumer.accept(element);
+			count++;
+		}
+		return count;
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+}
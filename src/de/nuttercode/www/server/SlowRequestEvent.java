@@ -0,0 +1,121 @@
+package de.nuttercode.www.server;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * a flight recorder event with the complete head of a request which took longer
+ * than the slow request threshold of the server. the phase times are only known
+ * if the request has been recorded as a {@link RequestEvent} as well. the values
+ * of fields which carry credentials are not recorded.
+ */
+@Name("de.nuttercode.www.SlowRequest")
+@Label("Slow HTTP Request")
+@Category({ "nuttercode-www", "HTTP" })
+@Description("a request which took longer than the slow request threshold of the server")
+@StackTrace(false)
+class SlowRequestEvent extends Event {
+
+	private final static EventType TYPE = EventType.getEventType(SlowRequestEvent.class);
+	private final static String REDACTED = "<redacted>";
+	private final static Set<String> REDACTED_FIELDS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+	static {
+		REDACTED_FIELDS.addAll(Arrays.asList("Authorization", "Proxy-Authorization", "Cookie"));
+	}
+
+	@Label("Remote Address")
+	String remoteAddress;
+
+	@Label("Method")
+	String method;
+
+	@Label("URI")
+	@Description("the URI with its parameters")
+	String uri;
+
+	@Label("Header Fields")
+	@Description("the values of Authorization, Proxy-Authorization and Cookie are redacted")
+	String headerFields;
+
+	@Label("Status")
+	int status;
+
+	@Label("Request Body Size")
+	@DataAmount
+	long requestBodySize;
+
+	@Label("Response Body Size")
+	@DataAmount
+	long responseBodySize;
+
+	@Label("Latency")
+	@Timespan
+	long latency;
+
+	@Label("Parse Time")
+	@Timespan
+	long parseTime;
+
+	@Label("Handler Time")
+	@Timespan
+	long handlerTime;
+
+	@Label("Compress Time")
+	@Timespan
+	long compressTime;
+
+	@Label("Write Time")
+	@Timespan
+	long writeTime;
+
+	/**
+	 * commits an event if slow requests are recorded
+	 *
+	 * @param remoteAddress may be null
+	 * @param request
+	 * @param response
+	 * @param latencyNanos
+	 */
+	static void capture(InetAddress remoteAddress, WebRequest request, WebResponse response, long latencyNanos) {
+		if (!TYPE.isEnabled())
+			return;
+		SlowRequestEvent event = new SlowRequestEvent();
+		if (!event.shouldCommit())
+			return;
+		event.remoteAddress = remoteAddress != null ? remoteAddress.getHostAddress() : null;
+		event.method = request.getMethod().toString();
+		event.uri = request.getUri();
+		StringBuilder headerFields = new StringBuilder(512);
+		for (String field : request.getHeaderFieldNames())
+			headerFields.append(field).append(": ")
+					.append(REDACTED_FIELDS.contains(field) ? REDACTED : request.getHeaderField(field))
+					.append(WebServer.CRLF);
+		event.headerFields = headerFields.toString();
+		event.status = response.getStatusCode();
+		event.requestBodySize = request.getBodyLength();
+		event.responseBodySize = response.getBodyLength();
+		event.latency = latencyNanos;
+		RequestEvent phases = request.getEvent();
+		if (phases != null) {
+			event.parseTime = phases.parseTime;
+			event.handlerTime = phases.handlerTime;
+			event.compressTime = phases.compressTime;
+			event.writeTime = phases.writeTime;
+		}
+		event.commit();
+	}
+
+}
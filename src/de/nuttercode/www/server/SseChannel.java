@@ -0,0 +1,67 @@
+package de.nuttercode.www.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * a topic which broadcasts events to all of its subscribers. closed emitters
+ * unsubscribe themselves.
+ */
+public class SseChannel {
+
+	private final Set<SseEmitter> emitters;
+
+	public SseChannel() {
+		emitters = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * @param emitter receives all events broadcasted until it is closed
+	 */
+	public void subscribe(@NotNull SseEmitter emitter) {
+		Assurance.assureNotNull(emitter);
+		emitters.add(emitter);
+		emitter.onClose(() -> emitters.remove(emitter));
+	}
+
+	public void unsubscribe(SseEmitter emitter) {
+		emitters.remove(emitter);
+	}
+
+	/**
+	 * @param event encoded once for all subscribers
+	 * @return number of subscribers which have accepted the event
+	 */
+	public int broadcast(@NotNull SseEvent event) {
+		Assurance.assureNotNull(event);
+		int accepted = 0;
+		for (SseEmitter emitter : emitters)
+			if (emitter.send(event))
+				accepted++;
+		return accepted;
+	}
+
+	/**
+	 * @param data
+	 * @return see {@link #broadcast(SseEvent)}
+	 */
+	public int broadcast(@NotNull String data) {
+		return broadcast(new SseEvent(data));
+	}
+
+	public int getSubscriberCount() {
+		return emitters.size();
+	}
+
+	/**
+	 * closes the streams of all subscribers
+	 */
+	public void close() {
+		for (SseEmitter emitter : emitters)
+			emitter.close();
+	}
+
+}
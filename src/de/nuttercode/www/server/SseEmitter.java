@@ -0,0 +1,271 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * sends events to one subscriber of an event stream. events are queued and
+ * written by a task on the executor of the server, so no thread waits for an
+ * idle subscriber. all events which are queued while a write is in progress
+ * are coalesced into a single write. a subscriber which can not keep up is
+ * disconnected as soon as its queue is full, the client reconnects with its
+ * Last-Event-ID.
+ */
+public class SseEmitter {
+
+	/**
+	 * the connection an emitter writes to
+	 */
+	interface Sink {
+
+		/**
+		 * writes and flushes the data
+		 *
+		 * @param data
+		 * @param offset
+		 * @param length
+		 * @throws IOException
+		 */
+		void write(byte[] data, int offset, int length) throws IOException;
+
+		/**
+		 * ends the stream. may be called while a write is in progress, the write
+		 * fails then.
+		 */
+		void close();
+
+	}
+
+	/**
+	 * writes to the socket of an HTTP/1.1 connection. the end of the body is
+	 * signalled by closing the connection.
+	 */
+	static class SocketSink implements Sink {
+
+		private final Socket socket;
+		private final OutputStream out;
+
+		SocketSink(Socket socket) throws IOException {
+			this.socket = socket;
+			out = socket.getOutputStream();
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			out.write(data, offset, length);
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+	private final static int DEFAULT_MAX_QUEUED_EVENTS = 64;
+	private final static int COALESCE_SIZE = 16 * 1024;
+
+	private final ArrayDeque<byte[]> queue;
+	private final List<Runnable> closeListeners;
+	private int maxQueuedEvents;
+	private Sink sink;
+	private Executor executor;
+	private boolean writing;
+	private volatile boolean closed;
+	private volatile long lastWrite;
+	private volatile long writeStart;
+	private byte[] coalesceBuffer;
+
+	SseEmitter() {
+		queue = new ArrayDeque<>();
+		closeListeners = new ArrayList<>(1);
+		maxQueuedEvents = DEFAULT_MAX_QUEUED_EVENTS;
+		sink = null;
+		executor = null;
+		writing = false;
+		closed = false;
+		lastWrite = System.nanoTime();
+		writeStart = 0;
+		coalesceBuffer = null;
+	}
+
+	/**
+	 * connects the emitter after the head of the response has been sent. events
+	 * which have been sent before are written now.
+	 *
+	 * @param sink
+	 * @param executor        runs the writes
+	 * @param maxQueuedEvents
+	 */
+	void open(Sink sink, Executor executor, int maxQueuedEvents) {
+		boolean close;
+		synchronized (this) {
+			this.sink = sink;
+			this.executor = executor;
+			this.maxQueuedEvents = maxQueuedEvents;
+			lastWrite = System.nanoTime();
+			close = closed;
+			if (!close)
+				scheduleWrite();
+		}
+		if (close)
+			sink.close();
+	}
+
+	/**
+	 * queues the event
+	 *
+	 * @param event
+	 * @return false if the emitter has been closed or the subscriber has been
+	 *         disconnected because its queue is full
+	 */
+	public boolean send(@NotNull SseEvent event) {
+		Assurance.assureNotNull(event);
+		synchronized (this) {
+			if (closed)
+				return false;
+			if (queue.size() < maxQueuedEvents) {
+				queue.add(event.getBytes());
+				scheduleWrite();
+				return true;
+			}
+		}
+		close();
+		return false;
+	}
+
+	/**
+	 * @param data
+	 * @return see {@link #send(SseEvent)}
+	 */
+	public boolean send(@NotNull String data) {
+		return send(new SseEvent(data));
+	}
+
+	private void scheduleWrite() {
+		if (writing || sink == null || queue.isEmpty())
+			return;
+		writing = true;
+		try {
+			executor.execute(this::write);
+		} catch (RejectedExecutionException e) {
+			writing = false;
+		}
+	}
+
+	private void write() {
+		while (true) {
+			byte[] data;
+			int length;
+			synchronized (this) {
+				if (closed || queue.isEmpty()) {
+					writing = false;
+					return;
+				}
+				data = queue.poll();
+				length = data.length;
+				if (!queue.isEmpty() && length < COALESCE_SIZE) {
+					if (coalesceBuffer == null)
+						coalesceBuffer = new byte[COALESCE_SIZE];
+					System.arraycopy(data, 0, coalesceBuffer, 0, length);
+					while (!queue.isEmpty() && length + queue.peek().length <= COALESCE_SIZE) {
+						byte[] next = queue.poll();
+						System.arraycopy(next, 0, coalesceBuffer, length, next.length);
+						length += next.length;
+					}
+					data = coalesceBuffer;
+				}
+				writeStart = System.nanoTime();
+			}
+			try {
+				sink.write(data, 0, length);
+				lastWrite = System.nanoTime();
+			} catch (IOException e) {
+				synchronized (this) {
+					writing = false;
+				}
+				close();
+				return;
+			} finally {
+				writeStart = 0;
+			}
+		}
+	}
+
+	/**
+	 * sends a heartbeat if nothing has been written for the interval and
+	 * disconnects the subscriber if a write has been blocked for the interval
+	 *
+	 * @param now      {@link System#nanoTime()}
+	 * @param interval in nanoseconds
+	 */
+	void heartbeat(long now, long interval) {
+		long start = writeStart;
+		if (start != 0 && now - start > interval) {
+			close();
+			return;
+		}
+		if (now - lastWrite < interval)
+			return;
+		synchronized (this) {
+			if (closed || !queue.isEmpty())
+				return;
+			queue.add(SseEvent.HEARTBEAT.getBytes());
+			scheduleWrite();
+		}
+	}
+
+	/**
+	 * @param listener called once when the emitter is closed
+	 */
+	public void onClose(@NotNull Runnable listener) {
+		Assurance.assureNotNull(listener);
+		boolean run;
+		synchronized (this) {
+			run = closed;
+			if (!run)
+				closeListeners.add(listener);
+		}
+		if (run)
+			listener.run();
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * ends the event stream and drops all queued events
+	 */
+	public void close() {
+		Sink sink;
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			queue.clear();
+			sink = this.sink;
+			listeners = new ArrayList<>(closeListeners);
+			closeListeners.clear();
+		}
+		if (sink != null)
+			sink.close();
+		for (Runnable listener : listeners)
+			listener.run();
+	}
+
+}
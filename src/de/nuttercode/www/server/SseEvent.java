@@ -0,0 +1,89 @@
+package de.nuttercode.www.server;
+
+import java.nio.charset.StandardCharsets;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * an immutable server-sent event. the event is encoded once when it is created,
+ * so broadcasting it to many subscribers shares the same bytes.
+ */
+public final class SseEvent {
+
+	/**
+	 * a comment line which keeps idle connections open
+	 */
+	final static SseEvent HEARTBEAT = new SseEvent(":\n\n".getBytes(StandardCharsets.UTF_8));
+
+	private final byte[] bytes;
+
+	private SseEvent(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param data may contain line breaks
+	 */
+	public SseEvent(@NotNull String data) {
+		this(null, null, data);
+	}
+
+	/**
+	 * @param name the event type or null for a message
+	 * @param id   the id the client sends back as Last-Event-ID after a reconnect
+	 *             or null
+	 * @param data may contain line breaks
+	 */
+	public SseEvent(String name, String id, @NotNull String data) {
+		Assurance.assureNotNull(data);
+		StringBuilder builder = new StringBuilder(data.length() + 16);
+		if (id != null)
+			appendField(builder, "id", id);
+		if (name != null)
+			appendField(builder, "event", name);
+		int start = 0;
+		int end;
+		while ((end = nextLineBreak(data, start)) != -1) {
+			builder.append("data: ").append(data, start, end).append('\n');
+			start = end + (data.charAt(end) == '\r' && end + 1 < data.length() && data.charAt(end + 1) == '\n' ? 2 : 1);
+		}
+		builder.append("data: ").append(data, start, data.length()).append("\n\n");
+		bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int nextLineBreak(String data, int start) {
+		for (int i = start; i < data.length(); i++) {
+			char c = data.charAt(i);
+			if (c == '\n' || c == '\r')
+				return i;
+		}
+		return -1;
+	}
+
+	private static void appendField(StringBuilder builder, String field, String value) {
+		if (nextLineBreak(value, 0) != -1)
+			throw new IllegalArgumentException(field + " contains a line break");
+		builder.append(field).append(": ").append(value).append('\n');
+	}
+
+	/**
+	 * @return the encoded event, must not be modified
+	 */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return size of the encoded event in bytes
+	 */
+	public int getSize() {
+		return bytes.length;
+	}
+
+	@Override
+	public String toString() {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
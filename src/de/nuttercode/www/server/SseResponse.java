@@ -0,0 +1,52 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * response which opens an event stream (text/event-stream). the server sends
+ * the head and keeps the connection open without occupying a thread, events
+ * are sent with the emitter of the response, e.g. by subscribing it to an
+ * {@link SseChannel}.
+ */
+public class SseResponse extends WebResponse {
+
+	private final static String HF_CONTENT_TYPE = "Content-Type";
+	private final static String HF_CACHE_CONTROL = "Cache-Control";
+	private final static String EVENT_STREAM = "text/event-stream; charset=utf-8";
+	private final static String NO_CACHE = "no-cache";
+
+	private final SseEmitter emitter;
+
+	public SseResponse() {
+		emitter = new SseEmitter();
+		setHeaderField(HF_CONTENT_TYPE, EVENT_STREAM);
+		setHeaderField(HF_CACHE_CONTROL, NO_CACHE);
+	}
+
+	/**
+	 * @return the emitter which writes to the stream of this response. events
+	 *         sent before the head has been written are queued.
+	 */
+	public @NotNull SseEmitter getEmitter() {
+		return emitter;
+	}
+
+	/**
+	 * writes only the head, the body is the event stream
+	 */
+	@Override
+	public void sendTo(OutputStream outputStream) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+		writer.write(getStatusLine());
+		writer.write(WebServer.CRLF);
+		writeHeaderFields(writer);
+		writer.flush();
+		outputStream.flush();
+	}
+
+}
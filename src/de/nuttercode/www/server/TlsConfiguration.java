@@ -0,0 +1,140 @@
+package de.nuttercode.www.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * server side TLS settings. accepted sockets are wrapped by
+ * {@link #wrap(Socket)}, the handshake happens on the first read or write of
+ * the connection thread and not on the acceptor.
+ */
+class TlsConfiguration {
+
+	private final static String PROTOCOL = "TLS";
+	private final static String[] APPLICATION_PROTOCOLS = { "h2", "http/1.1" };
+	private String keyStorePath;
+	private String keyStorePassword;
+	private String keyStoreType;
+	private String[] protocols;
+	private String[] cipherSuites;
+	private int sessionCacheSize;
+	private int sessionTimeout;
+	private boolean alpn;
+	private SSLSocketFactory socketFactory;
+
+	TlsConfiguration() {
+		keyStorePath = null;
+		keyStorePassword = "";
+		keyStoreType = KeyStore.getDefaultType();
+		protocols = null;
+		cipherSuites = null;
+		sessionCacheSize = 0;
+		sessionTimeout = 0;
+		alpn = true;
+		socketFactory = null;
+	}
+
+	/**
+	 * loads the key store and creates the context. has to be called before
+	 * sockets are wrapped.
+	 *
+	 * @throws IOException if the key store can not be loaded
+	 */
+	void init() throws IOException {
+		if (keyStorePath == null)
+			throw new IllegalStateException("tls_keystore is not configured in the configuration file");
+		try {
+			KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+			try (InputStream in = new FileInputStream(keyStorePath)) {
+				keyStore.load(in, keyStorePassword.toCharArray());
+			}
+			KeyManagerFactory keyManagerFactory = KeyManagerFactory
+					.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
+			SSLContext context = SSLContext.getInstance(PROTOCOL);
+			context.init(keyManagerFactory.getKeyManagers(), null, null);
+			SSLSessionContext sessionContext = context.getServerSessionContext();
+			if (sessionCacheSize > 0)
+				sessionContext.setSessionCacheSize(sessionCacheSize);
+			if (sessionTimeout > 0)
+				sessionContext.setSessionTimeout(sessionTimeout);
+			socketFactory = context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("could not initialize tls: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param socket accepted plain socket
+	 * @return a server side TLS socket on top of the given socket
+	 * @throws IOException
+	 */
+	SSLSocket wrap(Socket socket) throws IOException {
+		if (socketFactory == null)
+			throw new IllegalStateException("tls has not been initialized");
+		SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(socket, null, true);
+		sslSocket.setUseClientMode(false);
+		SSLParameters parameters = sslSocket.getSSLParameters();
+		if (protocols != null)
+			parameters.setProtocols(protocols);
+		if (cipherSuites != null)
+			parameters.setCipherSuites(cipherSuites);
+		parameters.setUseCipherSuitesOrder(true);
+		if (alpn)
+			parameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+		sslSocket.setSSLParameters(parameters);
+		return sslSocket;
+	}
+
+	void setKeyStorePath(String keyStorePath) {
+		this.keyStorePath = keyStorePath;
+	}
+
+	void setKeyStorePassword(String keyStorePassword) {
+		this.keyStorePassword = keyStorePassword;
+	}
+
+	void setKeyStoreType(String keyStoreType) {
+		this.keyStoreType = keyStoreType;
+	}
+
+	void setProtocols(String[] protocols) {
+		this.protocols = protocols;
+	}
+
+	void setCipherSuites(String[] cipherSuites) {
+		this.cipherSuites = cipherSuites;
+	}
+
+	/**
+	 * @param sessionCacheSize maximum number of cached sessions, 0 for the JDK
+	 *                         default
+	 */
+	void setSessionCacheSize(int sessionCacheSize) {
+		this.sessionCacheSize = sessionCacheSize;
+	}
+
+	/**
+	 * @param sessionTimeout lifetime of cached sessions in seconds, 0 for the JDK
+	 *                       default
+	 */
+	void setSessionTimeout(int sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	void setAlpn(boolean alpn) {
+		this.alpn = alpn;
+	}
+
+}
@@ -0,0 +1,190 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a server of an {@link UpstreamPool}. keeps the idle connections to the server
+ * and its state as determined by health checks and outlier ejection.
+ */
+public class Upstream {
+
+	private final UpstreamPool pool;
+	private final InetSocketAddress address;
+	private final ArrayDeque<UpstreamConnection> idleConnections;
+	private final AtomicInteger activeRequests;
+	private volatile boolean healthy;
+	private volatile long ejectedUntil;
+	private int checkFailures;
+	private int checkSuccesses;
+	private int consecutiveFailures;
+	private int ejections;
+
+	Upstream(UpstreamPool pool, InetSocketAddress address) {
+		this.pool = pool;
+		this.address = address;
+		idleConnections = new ArrayDeque<>();
+		activeRequests = new AtomicInteger();
+		healthy = true;
+		ejectedUntil = System.nanoTime();
+		checkFailures = 0;
+		checkSuccesses = 0;
+		consecutiveFailures = 0;
+		ejections = 0;
+	}
+
+	/**
+	 * takes an idle connection or opens a new one. the connection counts as an
+	 * active request until it is released.
+	 *
+	 * @return the connection
+	 * @throws IOException if the upstream can not be reached
+	 */
+	UpstreamConnection acquire() throws IOException {
+		activeRequests.incrementAndGet();
+		while (true) {
+			UpstreamConnection connection;
+			synchronized (idleConnections) {
+				connection = idleConnections.pollFirst();
+			}
+			if (connection == null)
+				break;
+			if (connection.isUsable(pool.getIdleTimeoutNanos()))
+				return connection;
+			connection.close();
+		}
+		try {
+			return new UpstreamConnection(this, pool.getConnectTimeout(), pool.getReadTimeout());
+		} catch (IOException e) {
+			activeRequests.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * ends the request of the connection
+	 *
+	 * @param connection
+	 * @param reusable   true if the response has been read completely and the
+	 *                   upstream keeps the connection open
+	 */
+	void release(UpstreamConnection connection, boolean reusable) {
+		activeRequests.decrementAndGet();
+		if (reusable) {
+			connection.idle();
+			synchronized (idleConnections) {
+				if (idleConnections.size() < pool.getMaxIdleConnections()) {
+					idleConnections.addFirst(connection);
+					return;
+				}
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()}
+	 * @return true if requests may be sent to the upstream
+	 */
+	boolean isAvailable(long now) {
+		return healthy && now - ejectedUntil >= 0;
+	}
+
+	/**
+	 * counts the result of a health check
+	 *
+	 * @param passed
+	 * @param threshold number of consecutive results which change the state
+	 */
+	synchronized void reportCheck(boolean passed, int threshold) {
+		if (passed) {
+			checkFailures = 0;
+			if (!healthy && ++checkSuccesses >= threshold) {
+				healthy = true;
+				checkSuccesses = 0;
+			}
+		} else {
+			checkSuccesses = 0;
+			if (healthy && ++checkFailures >= threshold) {
+				healthy = false;
+				checkFailures = 0;
+				closeIdleConnections();
+			}
+		}
+	}
+
+	/**
+	 * counts a failed request. the upstream is ejected after too many
+	 * consecutive failures, every ejection in a row lasts longer.
+	 *
+	 * @param threshold   consecutive failures which eject the upstream
+	 * @param ejectionTime base duration of an ejection in nanoseconds
+	 * @param maxEjections maximum multiplier of the ejection time
+	 * @param ejectable   false if the upstream must not be ejected, e.g. because
+	 *                    it is the last available one
+	 * @return true if the upstream has been ejected
+	 */
+	synchronized boolean reportFailure(int threshold, long ejectionTime, int maxEjections, boolean ejectable) {
+		if (++consecutiveFailures < threshold || !ejectable)
+			return false;
+		consecutiveFailures = 0;
+		ejections = Math.min(ejections + 1, maxEjections);
+		ejectedUntil = System.nanoTime() + ejections * ejectionTime;
+		closeIdleConnections();
+		return true;
+	}
+
+	synchronized void reportSuccess() {
+		consecutiveFailures = 0;
+		ejections = 0;
+	}
+
+	void closeIdleConnections() {
+		synchronized (idleConnections) {
+			for (UpstreamConnection connection : idleConnections)
+				connection.close();
+			idleConnections.clear();
+		}
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return false if the health checks have failed
+	 */
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * @return true if the upstream has been ejected because of failed requests
+	 */
+	public boolean isEjected() {
+		return System.nanoTime() - ejectedUntil < 0;
+	}
+
+	/**
+	 * @return number of requests which are being sent or whose responses are
+	 *         being read
+	 */
+	public int getActiveRequests() {
+		return activeRequests.get();
+	}
+
+	public int getIdleConnections() {
+		synchronized (idleConnections) {
+			return idleConnections.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Upstream [address=" + address + ", healthy=" + healthy + ", ejected=" + isEjected()
+				+ ", activeRequests=" + getActiveRequests() + "]";
+	}
+
+}
@@ -0,0 +1,114 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * a keep-alive connection to an {@link Upstream}. the connection keeps its
+ * reader for its whole lifetime, so data buffered after a response is not
+ * lost.
+ */
+class UpstreamConnection implements Closeable {
+
+	private final static int BUFFER_SIZE = 16 * 1024;
+
+	private final Upstream upstream;
+	private final SocketChannel channel;
+	private final HttpStreamReader reader;
+	private final OutputStream out;
+	private final ByteBuffer probe;
+	private long idleSince;
+	private boolean reused;
+
+	/**
+	 * connects to the upstream
+	 *
+	 * @param upstream
+	 * @param connectTimeout in milliseconds
+	 * @param readTimeout    in milliseconds
+	 * @throws IOException
+	 */
+	UpstreamConnection(Upstream upstream, int connectTimeout, int readTimeout) throws IOException {
+		this.upstream = upstream;
+		channel = SocketChannel.open();
+		try {
+			channel.socket().connect(upstream.getAddress(), connectTimeout);
+			channel.socket().setSoTimeout(readTimeout);
+			channel.socket().setTcpNoDelay(true);
+			reader = new HttpStreamReader(channel.socket().getInputStream());
+			out = new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_SIZE);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		probe = ByteBuffer.allocate(1);
+		idleSince = 0;
+		reused = false;
+	}
+
+	Upstream getUpstream() {
+		return upstream;
+	}
+
+	HttpStreamReader getReader() {
+		return reader;
+	}
+
+	OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * @return true if the connection has carried a response before
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * called when the connection is returned to the pool
+	 */
+	void idle() {
+		idleSince = System.nanoTime();
+		reused = true;
+	}
+
+	/**
+	 * checks without blocking that the upstream has neither closed the idle
+	 * connection nor sent unexpected data
+	 *
+	 * @param idleTimeout in nanoseconds
+	 * @return true if the connection can carry another request
+	 */
+	boolean isUsable(long idleTimeout) {
+		if (System.nanoTime() - idleSince > idleTimeout)
+			return false;
+		try {
+			if (reader.getInputStream().available() > 0)
+				return false;
+			channel.configureBlocking(false);
+			try {
+				probe.clear();
+				return channel.read(probe) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		reader.close();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+package de.nuttercode.www.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotEmpty;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * a group of servers which serve the same content. each request is sent to an
+ * upstream chosen by the {@link Balancing} of the pool. upstreams which fail
+ * their health checks or too many requests in a row are skipped until they
+ * recover.
+ */
+public class UpstreamPool implements Closeable {
+
+	/**
+	 * how an upstream is chosen for a request
+	 */
+	public enum Balancing {
+
+		/**
+		 * the upstreams take turns
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * the upstream with the fewest active requests
+		 */
+		LEAST_CONNECTIONS,
+
+		/**
+		 * the upstream is determined by the hash key of the request, so requests
+		 * with the same key go to the same upstream as long as it is available
+		 */
+		CONSISTENT_HASH
+
+	}
+
+	private final static int DEFAULT_CONNECT_TIMEOUT = 2_000;
+	private final static int DEFAULT_READ_TIMEOUT = 30_000;
+	private final static int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+	private final static int DEFAULT_IDLE_TIMEOUT = 30_000;
+	private final static int DEFAULT_EJECTION_THRESHOLD = 5;
+	private final static int DEFAULT_EJECTION_TIME = 30_000;
+	private final static int MAX_EJECTIONS = 10;
+	private final static int HEALTH_THRESHOLD = 2;
+	private final static int VIRTUAL_NODES = 160;
+	private final static int FNV_OFFSET_BASIS = 0x811c9dc5;
+	private final static int FNV_PRIME = 0x01000193;
+
+	/**
+	 * FNV-1a followed by the finalizer of MurmurHash3, which spreads the hashes
+	 * of similar keys over the whole ring
+	 *
+	 * @param key
+	 * @return the position of the key on the ring
+	 */
+	private static int hash(String key) {
+		int hash = FNV_OFFSET_BASIS;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private static InetSocketAddress parseAddress(String address) {
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0 || colon == address.length() - 1)
+			throw new IllegalArgumentException("upstream address is not host:port: " + address);
+		try {
+			return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("illegal port in upstream address: " + address);
+		}
+	}
+
+	private final Balancing balancing;
+	private final List<Upstream> upstreams;
+	private final TreeMap<Integer, Upstream> ring;
+	private final AtomicInteger next;
+	private Function<WebRequest, String> hashKey;
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxIdleConnections;
+	private long idleTimeoutNanos;
+	private int ejectionThreshold;
+	private long ejectionTimeNanos;
+	private ScheduledExecutorService healthChecker;
+
+	/**
+	 * @param balancing
+	 * @param addresses host:port of each upstream
+	 */
+	public UpstreamPool(@NotNull Balancing balancing, @NotEmpty String... addresses) {
+		Assurance.assureNotNull(balancing);
+		Assurance.assureNotNull(addresses);
+		if (addresses.length == 0)
+			throw new IllegalArgumentException("no upstreams");
+		this.balancing = balancing;
+		List<Upstream> upstreams = new ArrayList<>(addresses.length);
+		for (String address : addresses) {
+			Assurance.assureNotEmpty(address);
+			upstreams.add(new Upstream(this, parseAddress(address.trim())));
+		}
+		this.upstreams = Collections.unmodifiableList(upstreams);
+		ring = new TreeMap<>();
+		for (Upstream upstream : upstreams)
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+				ring.put(hash(upstream.getAddress().getHostString() + ':' + upstream.getAddress().getPort() + '#' + i),
+						upstream);
+		next = new AtomicInteger();
+		hashKey = WebRequest::getReducedUri;
+		connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		readTimeout = DEFAULT_READ_TIMEOUT;
+		maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+		idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+		ejectionThreshold = DEFAULT_EJECTION_THRESHOLD;
+		ejectionTimeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EJECTION_TIME);
+		healthChecker = null;
+	}
+
+	/**
+	 * chooses the upstream for the request
+	 *
+	 * @param request
+	 * @param excluded upstreams which have already failed the request
+	 * @return the upstream or null if no upstream is available
+	 */
+	Upstream select(WebRequest request, Set<Upstream> excluded) {
+		long now = System.nanoTime();
+		switch (balancing) {
+		case CONSISTENT_HASH:
+			int hash = hash(hashKey.apply(request));
+			for (Map.Entry<Integer, Upstream> node : ring.tailMap(hash).entrySet())
+				if (isCandidate(node.getValue(), excluded, now))
+					return node.getValue();
+			for (Map.Entry<Integer, Upstream> node : ring.headMap(hash).entrySet())
+				if (isCandidate(node.getValue(), excluded, now))
+					return node.getValue();
+			return null;
+		case LEAST_CONNECTIONS:
+			Upstream least = null;
+			int offset = next.getAndIncrement();
+			for (int i = 0; i < upstreams.size(); i++) {
+				Upstream upstream = upstreams.get(Math.floorMod(offset + i, upstreams.size()));
+				if (isCandidate(upstream, excluded, now)
+						&& (least == null || upstream.getActiveRequests() < least.getActiveRequests()))
+					least = upstream;
+			}
+			return least;
+		default:
+			int start = next.getAndIncrement();
+			for (int i = 0; i < upstreams.size(); i++) {
+				Upstream upstream = upstreams.get(Math.floorMod(start + i, upstreams.size()));
+				if (isCandidate(upstream, excluded, now))
+					return upstream;
+			}
+			return null;
+		}
+	}
+
+	private boolean isCandidate(Upstream upstream, Set<Upstream> excluded, long now) {
+		return upstream.isAvailable(now) && (excluded == null || !excluded.contains(upstream));
+	}
+
+	void reportSuccess(Upstream upstream) {
+		upstream.reportSuccess();
+	}
+
+	/**
+	 * counts a failed request. the last available upstream is never ejected, so
+	 * the pool keeps trying instead of rejecting every request.
+	 *
+	 * @param upstream
+	 */
+	void reportFailure(Upstream upstream) {
+		long now = System.nanoTime();
+		boolean ejectable = false;
+		for (Upstream other : upstreams)
+			if (other != upstream && other.isAvailable(now)) {
+				ejectable = true;
+				break;
+			}
+		upstream.reportFailure(ejectionThreshold, ejectionTimeNanos, MAX_EJECTIONS, ejectable);
+	}
+
+	/**
+	 * sends a GET request for the path to every upstream in the given interval.
+	 * an upstream which does not answer with 2xx twice in a row is skipped until
+	 * it passes two checks in a row.
+	 *
+	 * @param path     e.g. "/health"
+	 * @param interval in milliseconds
+	 */
+	public synchronized void startHealthChecks(@NotEmpty String path, int interval) {
+		Assurance.assureNotEmpty(path);
+		if (healthChecker != null)
+			throw new IllegalStateException("health checks have already been started");
+		healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "upstream-health");
+			thread.setDaemon(true);
+			return thread;
+		});
+		healthChecker.scheduleWithFixedDelay(() -> {
+			for (Upstream upstream : upstreams)
+				upstream.reportCheck(check(upstream, path), HEALTH_THRESHOLD);
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean check(Upstream upstream, String path) {
+		try (Socket socket = new Socket()) {
+			socket.connect(upstream.getAddress(), connectTimeout);
+			socket.setSoTimeout(connectTimeout);
+			WebRequest request = new WebRequest(path);
+			request.setHeaderField(WebServer.HF_HOST, upstream.getAddress().getHostString());
+			request.setHeaderField(WebServer.HF_CONNECTION, "close");
+			int statusCode = request.sendTo(socket.getOutputStream(), socket.getInputStream()).getStatusCode();
+			return statusCode >= 200 && statusCode < 300;
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	public Balancing getBalancing() {
+		return balancing;
+	}
+
+	/**
+	 * @return all upstreams of the pool
+	 */
+	public List<Upstream> getUpstreams() {
+		return upstreams;
+	}
+
+	/**
+	 * @param hashKey determines the upstream of a request if the balancing is
+	 *                {@link Balancing#CONSISTENT_HASH}, the reduced URI by
+	 *                default
+	 */
+	public void setHashKey(@NotNull Function<WebRequest, String> hashKey) {
+		Assurance.assureNotNull(hashKey);
+		this.hashKey = hashKey;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout in milliseconds
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param readTimeout maximum time in milliseconds an upstream may stay
+	 *                    silent while a response is expected
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+
+	/**
+	 * @param maxIdleConnections maximum number of connections kept open per
+	 *                           upstream between requests
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	long getIdleTimeoutNanos() {
+		return idleTimeoutNanos;
+	}
+
+	/**
+	 * @param idleTimeout in milliseconds, idle connections are not reused
+	 *                    afterwards
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+	public int getEjectionThreshold() {
+		return ejectionThreshold;
+	}
+
+	/**
+	 * @param ejectionThreshold number of failed requests in a row which eject an
+	 *                          upstream
+	 */
+	public void setEjectionThreshold(int ejectionThreshold) {
+		this.ejectionThreshold = ejectionThreshold;
+	}
+
+	/**
+	 * @param ejectionTime in milliseconds, multiplied by the number of ejections
+	 *                     in a row
+	 */
+	public void setEjectionTime(int ejectionTime) {
+		ejectionTimeNanos = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+	}
+
+	/**
+	 * stops the health checks and closes all idle connections
+	 */
+	@Override
+	public synchronized void close() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+		for (Upstream upstream : upstreams)
+			upstream.closeIdleConnections();
+	}
+
+}
@@ -7,4 +7,54 @@ import java.lang.annotation.Retention;
 @Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
 public @interface WebAppComponent {
 
+	/**
+	 * how instances of a component are created and shared between requests
+	 */
+	enum Scope {
+
+		/**
+		 * a single instance handles all requests concurrently
+		 */
+		SINGLETON,
+
+		/**
+		 * up to {@link WebAppComponent#poolSize()} instances, each of them handles
+		 * one request at a time. for handlers which are not thread-safe.
+		 */
+		POOLED,
+
+		/**
+		 * a new instance for every request, the scope of handlers without this
+		 * annotation
+		 */
+		PER_REQUEST
+
+	}
+
+	/**
+	 * @return the scope of the instances
+	 */
+	Scope scope() default Scope.SINGLETON;
+
+	/**
+	 * requests wait up to the async timeout of the server for a free instance and
+	 * are answered with 503 afterwards
+	 *
+	 * @return maximum number of instances if the scope is {@link Scope#POOLED}
+	 */
+	int poolSize() default 8;
+
+	/**
+	 * concurrent identical GET and HEAD requests to a {@link WebRequestHandler}
+	 * wait for a single call of the handler and receive copies of its response.
+	 * requests are identical if their method, reduced URI, URI parameters and
+	 * Accept-Encoding field are equal, so the response must not depend on
+	 * anything else. requests with an Authorization or Cookie field are never
+	 * coalesced, and a response with a Set-Cookie field is not shared: the
+	 * waiting requests call the handler themselves.
+	 *
+	 * @return true to coalesce identical requests
+	 */
+	boolean coalesce() default false;
+
 }
@@ -0,0 +1,26 @@
+package de.nuttercode.www.server;
+
+/**
+ * optional hooks of a {@link WebAppComponent}. every instance is initialized
+ * once before it handles its first request and closed once when it is
+ * discarded: singletons and pooled instances when the server is closed or
+ * initialized again, instances with the scope
+ * {@link WebAppComponent.Scope#PER_REQUEST} after their request.
+ */
+public interface WebAppLifecycle {
+
+	/**
+	 * @param server the server which has created the instance
+	 * @throws Exception if the instance can not be used, the request is answered
+	 *                   with 500
+	 */
+	default void onInit(WebAppServer server) throws Exception {
+	}
+
+	/**
+	 * @throws Exception is logged
+	 */
+	default void onClose() throws Exception {
+	}
+
+}
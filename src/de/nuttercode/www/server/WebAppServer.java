@@ -1,73 +1,270 @@
 package de.nuttercode.www.server;
 
 import java.io.File;
-import java.lang.annotation.Annotation;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class WebAppServer extends WebServer {
 
-	private final Map<String, WebRequestHandler> handlerMap;
+	private final static int DEFAULT_COALESCE_TIMEOUT = 5_000;
+	private final static String HF_ACCEPT_ENCODING = "Accept-Encoding";
+	private final static String HF_AUTHORIZATION = "Authorization";
+	private final static String HF_COOKIE = "Cookie";
+	private final static String HF_SET_COOKIE = "Set-Cookie";
+
+	private final Map<String, AppComponent> components;
+	private final Map<String, CompletableFuture<WebResponse>> inFlight;
 	private String apiPackageRoot;
+	private int coalesceTimeout;
+	private volatile boolean closed;
 
 	public WebAppServer(File configurationFile) {
 		super(configurationFile);
-		handlerMap = new HashMap<>();
+		components = new ConcurrentHashMap<>();
+		inFlight = new ConcurrentHashMap<>();
 		apiPackageRoot = "";
+		coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+		closed = false;
 	}
 
 	@Override
 	protected void onInit() {
 		super.onInit();
+		closed = false;
 		apiPackageRoot = getConfiguration("app_package_root");
 		if (apiPackageRoot.isEmpty())
 			throw new IllegalArgumentException("app_package_root is not configured in the configuration file");
+		String timeout = getConfiguration("coalesce_timeout");
+		if (!timeout.isEmpty()) {
+			try {
+				coalesceTimeout = Integer.parseInt(timeout);
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException("illegal coalesce timeout in server segment: " + timeout, e);
+			}
+		}
 	}
 
+	/**
+	 * blocks until {@link #handleRequestAsync(WebRequest)} completes. a response
+	 * which completes after the timeout is discarded.
+	 */
 	@Override
 	public WebResponse handleRequest(WebRequest request) {
-		WebResponse response = null;
+		CompletableFuture<WebResponse> future = null;
+		try {
+			future = handleRequestAsync(request).toCompletableFuture();
+			return future.get(getAsyncTimeout(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.thenAccept(response -> {
+				if (response != null)
+					response.discard();
+			});
+			return WebResponse.from(ResponseCode.GATEWAY_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			ResponseCode code = rejectionOf(e);
+			if (code != null)
+				return WebResponse.from(code);
+			if (hasLog())
+				getLog().logError(String.valueOf(e.getCause().getMessage()));
+		}
+		return WebResponse.from(ResponseCode.INTERNAL_SERVER_ERROR);
+	}
+
+	@Override
+	public CompletionStage<WebResponse> handleRequestAsync(WebRequest request) {
 		try {
+			if (closed)
+				throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE, "the server has been closed");
 			String uriClass = request.getReducedUri().replace("/", ".");
-			WebRequestHandler handler = handlerMap.get(uriClass);
-			Class<?> cl = null;
-			if (handler == null) {
-				boolean isApiFunction = false;
-				boolean isWebRequestHandler = false;
-				String classPath = apiPackageRoot + "." + uriClass;
+			AppComponent component = components.get(uriClass);
+			if (component == null) {
+				component = load(uriClass);
+				if (component == null)
+					return CompletableFuture.completedFuture(WebResponse.from(ResponseCode.NOT_FOUND));
+			}
+			if (component.isAsync()) {
+				Object handler = component.acquire(getAsyncTimeout());
+				CompletionStage<WebResponse> stage;
 				try {
-					cl = ClassLoader.getSystemClassLoader().loadClass(classPath);
-					for (Annotation a : cl.getAnnotations()) {
-						if (a.annotationType().equals(WebAppComponent.class)) {
-							isApiFunction = true;
-							break;
-						}
-					}
-				} catch (ClassNotFoundException | NoClassDefFoundError e) {
-					if (hasLog())
-						getLog().logInfo("class " + classPath + " not found");
+					stage = ((AsyncWebRequestHandler) handler).handleRequestAsync(request);
+				} catch (Exception | Error e) {
+					component.release(handler);
+					throw e;
 				}
-				if (cl != null) {
-					if (!isApiFunction && hasLog())
-						getLog().logInfo("class " + classPath + " is not an ApiFunction");
-					for (Class<?> intf : cl.getInterfaces()) {
-						if (intf.equals(WebRequestHandler.class)) {
-							isWebRequestHandler = true;
-						}
-					}
-					if (!isWebRequestHandler && hasLog())
-						getLog().logInfo("class " + classPath + " is not a WebRequestHandler");
-					handler = (WebRequestHandler) cl.getConstructor().newInstance();
-					if (isApiFunction && isWebRequestHandler)
-						handlerMap.put(uriClass, handler);
+				if (stage == null) {
+					component.release(handler);
+					return null;
 				}
+				AppComponent owner = component;
+				// the stage of the handler is returned, not the dependent one, so that
+				// cancelling it still reaches the handler
+				stage.whenComplete((response, error) -> owner.release(handler));
+				return stage;
 			}
-			response = handler != null ? handler.handleRequest(request) : WebResponse.from(ResponseCode.NOT_FOUND);
+			if (component.isCoalesced() && isCoalescable(request))
+				return CompletableFuture.completedFuture(coalesce(component, request));
+			return CompletableFuture.completedFuture(handle(component, request));
 		} catch (Exception e) {
+			ResponseCode code = rejectionOf(e);
+			if (code != null)
+				return CompletableFuture.completedFuture(WebResponse.from(code));
 			if (hasLog())
 				getLog().logError(e.getMessage());
 		}
-		return response != null ? response : WebResponse.from(ResponseCode.INTERNAL_SERVER_ERROR);
+		return CompletableFuture.completedFuture(WebResponse.from(ResponseCode.INTERNAL_SERVER_ERROR));
+	}
+
+	/**
+	 * loads the handler class of a reduced URI
+	 *
+	 * @param uriClass reduced URI with dots instead of slashes
+	 * @return the component or null if there is no such class
+	 * @throws ReflectiveOperationException if the class can not be instantiated
+	 * @throws RequestRejectedException     if the server has been closed
+	 */
+	private AppComponent load(String uriClass) throws ReflectiveOperationException, RequestRejectedException {
+		String classPath = apiPackageRoot + "." + uriClass;
+		Class<?> cl;
+		try {
+			cl = ClassLoader.getSystemClassLoader().loadClass(classPath);
+		} catch (ClassNotFoundException | NoClassDefFoundError e) {
+			if (hasLog())
+				getLog().logInfo("class " + classPath + " not found");
+			return null;
+		}
+		WebAppComponent annotation = cl.getAnnotation(WebAppComponent.class);
+		if (annotation == null && hasLog())
+			getLog().logInfo("class " + classPath + " is not an ApiFunction");
+		if (!AsyncWebRequestHandler.class.isAssignableFrom(cl) && !WebRequestHandler.class.isAssignableFrom(cl)) {
+			if (hasLog())
+				getLog().logInfo("class " + classPath + " is not a WebRequestHandler");
+			throw new IllegalStateException(classPath + " can not handle requests");
+		}
+		AppComponent component = new AppComponent(this, cl, annotation);
+		AppComponent present = components.putIfAbsent(uriClass, component);
+		if (present != null)
+			return present;
+		// close() may have passed the components already, nobody else would close
+		// this one
+		if (closed) {
+			components.remove(uriClass, component);
+			component.close();
+			throw new RequestRejectedException(ResponseCode.SERVICE_UNAVAILABLE, "the server has been closed");
+		}
+		return component;
+	}
+
+	/**
+	 * @param component a synchronous component
+	 * @param request
+	 * @return the response of an instance of the component
+	 * @throws Exception if no instance is available
+	 */
+	private WebResponse handle(AppComponent component, WebRequest request) throws Exception {
+		Object handler = component.acquire(getAsyncTimeout());
+		try {
+			return ((WebRequestHandler) handler).handleRequest(request);
+		} finally {
+			component.release(handler);
+		}
+	}
+
+	/**
+	 * @param request
+	 * @return true if the request is a GET or HEAD request without credentials,
+	 *         whose response can not be personalized
+	 */
+	private static boolean isCoalescable(WebRequest request) {
+		return (request.getMethod() == RequestMethod.GET || request.getMethod() == RequestMethod.HEAD)
+				&& request.getHeaderField(HF_AUTHORIZATION) == null && request.getHeaderField(HF_COOKIE) == null;
+	}
+
+	/**
+	 * @param request
+	 * @return method, reduced URI, sorted URI parameters and accepted encodings
+	 */
+	private static String coalescingKey(WebRequest request) {
+		StringBuilder key = new StringBuilder(128);
+		key.append(request.getMethod()).append(' ').append(request.getReducedUri());
+		for (String name : new TreeSet<>(request.getUriParameterNames()))
+			for (String value : request.getUriParameters(name))
+				key.append('\n').append(name).append('=').append(value);
+		String acceptEncoding = request.getHeaderField(HF_ACCEPT_ENCODING);
+		if (acceptEncoding != null)
+			key.append('\n').append(HF_ACCEPT_ENCODING).append(": ").append(acceptEncoding);
+		return key.toString();
+	}
+
+	/**
+	 * calls the handler unless an identical request is being handled already, in
+	 * which case the request waits for that call and receives a copy of its
+	 * response. if the call takes longer than the coalesce timeout, fails or
+	 * returns a response which can neither be copied nor shared, the handler is
+	 * called for this request as well. responses which set a cookie are never
+	 * shared.
+	 *
+	 * @param component a synchronous component
+	 * @param request
+	 * @return the response to the request
+	 * @throws Exception if no instance is available
+	 */
+	private WebResponse coalesce(AppComponent component, WebRequest request) throws Exception {
+		String key = coalescingKey(request);
+		CompletableFuture<WebResponse> flight = new CompletableFuture<>();
+		CompletableFuture<WebResponse> leader = inFlight.putIfAbsent(key, flight);
+		if (leader != null) {
+			try {
+				WebResponse shared = leader.get(coalesceTimeout, TimeUnit.MILLISECONDS);
+				if (shared instanceof PreparedResponse)
+					return shared;
+				if (shared != null)
+					return new WebResponse(shared);
+			} catch (TimeoutException | ExecutionException e) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return WebResponse.from(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+			return handle(component, request);
+		}
+		WebResponse response = null;
+		try {
+			response = handle(component, request);
+			return response;
+		} finally {
+			inFlight.remove(key, flight);
+			// the copy is taken before the server completes the response of this
+			// request, the waiting requests copy it again. prepared responses are
+			// immutable and shared as they are.
+			if (response == null || response.getHeaderField(HF_SET_COOKIE) != null)
+				flight.complete(null);
+			else if (response instanceof PreparedResponse)
+				flight.complete(response);
+			else
+				flight.complete(response.getClass() == WebResponse.class ? new WebResponse(response) : null);
+		}
+	}
+
+	/**
+	 * closes the instances of all components before the server. requests which
+	 * arrive until the server is initialized again are answered with
+	 * {@link ResponseCode#SERVICE_UNAVAILABLE}.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for (AppComponent component : components.values())
+			component.close();
+		components.clear();
+		super.close();
 	}
 
 }
@@ -7,9 +7,9 @@ import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import de.nuttercode.util.assurance.Assurance;
 import de.nuttercode.util.assurance.NotEmpty;
@@ -26,16 +26,30 @@ abstract class WebObject {
 
 	WebObject() {
 		body = DEFAULT_BODY;
-		headerFields = new HashMap<>();
+		headerFields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 	}
 
-	protected void readBody(HttpStreamReader reader) throws IOException {
+	/**
+	 * @return the value of the Content-Length field or 0 if it is missing
+	 * @throws ProtocolException if the value is not a non-negative number
+	 */
+	protected int readContentLength() throws ProtocolException {
 		String cl = getHeaderField(HF_CONTENT_LENGTH);
 		if (cl == null || cl.isEmpty())
-			return;
-		int length = Integer.parseInt(cl);
+			return 0;
+		int length;
+		try {
+			length = Integer.parseInt(cl);
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("invalid value for field: " + HF_CONTENT_LENGTH);
+		}
 		if (length < 0)
 			throw new ProtocolException("negative value for field: " + HF_CONTENT_LENGTH);
+		return length;
+	}
+
+	protected void readBody(HttpStreamReader reader) throws IOException {
+		int length = readContentLength();
 		if (length == 0)
 			return;
 		setBody(reader.readBytes(length));
@@ -53,12 +67,30 @@ abstract class WebObject {
 		}
 	}
 
+	/**
+	 * called before the body is accessed. subclasses which read their body
+	 * lazily set it here with {@link #setReceivedBody(byte[])}.
+	 */
+	protected void loadBody() {
+	}
+
+	/**
+	 * sets a body whose Content-Length is already part of the header fields
+	 *
+	 * @param body
+	 */
+	void setReceivedBody(@NotNull byte[] body) {
+		Assurance.assureNotNull(body);
+		this.body = body;
+	}
+
 	public @NotNull byte[] getBody() {
+		loadBody();
 		return body;
 	}
 
 	public @NotNull String getBodyAsString() {
-		return new String(body);
+		return new String(getBody());
 	}
 
 	public void setBody(@NotNull String body, @NotEmpty String charsetName) throws UnsupportedEncodingException {
@@ -77,7 +109,15 @@ abstract class WebObject {
 		setHeaderField(HF_CONTENT_LENGTH, Integer.toString(body.length));
 	}
 
+	/**
+	 * called before the header fields are enumerated or modified. subclasses
+	 * which decode their header fields lazily add them here.
+	 */
+	protected void loadHeaderFields() {
+	}
+
 	public void setHeaderField(@NotEmpty String field, @NotEmpty String value) {
+		loadHeaderFields();
 		Assurance.assureNotNull(field);
 		field = field.trim();
 		Assurance.assureNotEmpty(field);
@@ -91,7 +131,16 @@ abstract class WebObject {
 		return headerFields.get(field);
 	}
 
+	/**
+	 * @param field case insensitive
+	 */
+	public void removeHeaderField(String field) {
+		loadHeaderFields();
+		headerFields.remove(field);
+	}
+
 	public Set<String> getHeaderFieldNames() {
+		loadHeaderFields();
 		return Collections.unmodifiableSet(headerFields.keySet());
 	}
 
@@ -106,6 +155,7 @@ abstract class WebObject {
 	}
 
 	public void writeBody(OutputStream outputStream) throws IOException {
+		loadBody();
 		if (body != null)
 			outputStream.write(body);
 	}
@@ -114,6 +164,8 @@ abstract class WebObject {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		loadHeaderFields();
+		loadBody();
 		result = prime * result + Arrays.hashCode(body);
 		result = prime * result + ((headerFields == null) ? 0 : headerFields.hashCode());
 		return result;
@@ -128,6 +180,10 @@ abstract class WebObject {
 		if (getClass() != obj.getClass())
 			return false;
 		WebObject other = (WebObject) obj;
+		loadHeaderFields();
+		other.loadHeaderFields();
+		loadBody();
+		other.loadBody();
 		if (!Arrays.equals(body, other.body))
 			return false;
 		if (headerFields == null) {
@@ -140,6 +196,8 @@ abstract class WebObject {
 
 	@Override
 	public String toString() {
+		loadHeaderFields();
+		loadBody();
 		return "WebObject [body=" + Arrays.toString(body) + ", headerFields=" + headerFields + "]";
 	}
 
@@ -1,38 +1,80 @@
 package de.nuttercode.www.server;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import de.nuttercode.util.assurance.Assurance;
 import de.nuttercode.util.assurance.NotEmpty;
 import de.nuttercode.util.assurance.NotNull;
 
+/**
+ * a request which has been read from a stream keeps the raw bytes of its head.
+ * the uri, its parameters and the header fields are decoded when they are
+ * accessed for the first time and cached afterwards.
+ */
 public class WebRequest extends WebObject {
 
 	private RequestMethod method;
+	private RequestHead head;
+	private boolean headerFieldsLoaded;
+	/**
+	 * request target whose query has not been split yet or null
+	 */
+	private String target;
 	private String uriBase;
-	private final Map<String, String> uriParameterMap;
+	private Map<String, List<String>> uriParameterMap;
+	private String uri;
+	private String reducedUri;
+	private HttpStreamReader bodyReader;
+	private BodyInputStream bodyStream;
+	private int bodyLength;
+	private RequestEvent event;
 
 	public WebRequest() {
 		this("/");
 	}
 
 	public WebRequest(String uriBase) {
-		setUriBase(uriBase);
+		head = null;
+		headerFieldsLoaded = true;
+		target = null;
+		uriParameterMap = new LinkedHashMap<>();
+		Assurance.assureNotEmpty(uriBase);
+		this.uriBase = uriBase;
 		setMethod(RequestMethod.GET);
-		uriParameterMap = new HashMap<>();
 	}
 
 	public WebRequest(WebRequest request) {
-		this.uriParameterMap = request.uriParameterMap;
-		setUriBase(request.getUri());
+		request.interpretUri();
+		head = null;
+		headerFieldsLoaded = true;
+		target = null;
+		uriBase = request.uriBase;
+		uriParameterMap = new LinkedHashMap<>(request.uriParameterMap);
+		uri = request.uri;
+		reducedUri = request.reducedUri;
 		setMethod(request.getMethod());
 		for (String field : request.getHeaderFieldNames())
 			setHeaderField(field, request.getHeaderField(field));
@@ -40,79 +82,297 @@ public class WebRequest extends WebObject {
 	}
 
 	public WebRequest(InputStream inputStream) throws ProtocolException, IOException {
-		this();
-		HttpStreamReader reader = new HttpStreamReader(inputStream);
-		String line = reader.readLine();
-		if (line == null || line.isEmpty())
-			throw new ProtocolException("command line is missing: " + line);
-		String[] commandSplit = line.split(" ");
-		if (commandSplit.length != 3)
-			throw new ProtocolException("command line has the wrong format: " + line);
-		setMethod(RequestMethod.valueOf(commandSplit[0]));
-		setUriBase(commandSplit[1]);
-		if (!commandSplit[2].equals(WebServer.HTTP_VERSION))
-			throw new ProtocolException("wrong http version, expected: " + WebServer.HTTP_VERSION);
-		readHeader(reader);
-		if (getMethod() != RequestMethod.HEAD)
-			readBody(reader);
-		interpretUri();
+		this(new HttpStreamReader(inputStream));
+	}
+
+	WebRequest(HttpStreamReader reader) throws ProtocolException, IOException {
+		event = RequestEvents.start();
+		head = new RequestHead(reader.readHead());
+		headerFieldsLoaded = false;
+		setMethod(head.getMethod());
+		if (getMethod() != RequestMethod.HEAD) {
+			bodyLength = readContentLength();
+			if (bodyLength > 0)
+				bodyReader = reader;
+		}
+		if (event != null)
+			event.parsed();
+	}
+
+	/**
+	 * @return the flight recorder event of a request which is handled by this
+	 *         server or null if it is not recorded
+	 */
+	RequestEvent getEvent() {
+		return event;
+	}
+
+	void setEvent(RequestEvent event) {
+		this.event = event;
+	}
+
+	/**
+	 * @return size of the body in bytes as it has been or will be received
+	 */
+	long getBodyLength() {
+		return head != null ? bodyLength : getBody().length;
+	}
+
+	/**
+	 * reads the body from the connection when it is accessed for the first time
+	 *
+	 * @throws UncheckedIOException if the body can not be read, e.g. because it
+	 *                              is larger than allowed
+	 */
+	@Override
+	protected void loadBody() {
+		if (bodyReader == null)
+			return;
+		HttpStreamReader reader = bodyReader;
+		bodyReader = null;
+		try {
+			setReceivedBody(reader.readBytes(bodyLength));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * streams the body without buffering it. the body of a request which has been
+	 * read from a stream can only be consumed once, afterwards {@link #getBody()}
+	 * is empty.
+	 *
+	 * @return the body
+	 */
+	public @NotNull InputStream getBodyStream() {
+		if (bodyReader == null)
+			return new ByteArrayInputStream(getBody());
+		bodyStream = new BodyInputStream(bodyReader.getInputStream(), bodyLength);
+		bodyReader = null;
+		return bodyStream;
+	}
+
+	/**
+	 * @return true if a part of the body has not been read from the connection
+	 */
+	boolean hasPendingBody() {
+		return bodyReader != null || (bodyStream != null && bodyStream.remaining > 0);
 	}
 
+	/**
+	 * skips the unread part of the body, so the client does not receive a reset
+	 * before it has read the response
+	 *
+	 * @param limit bodies with more unread bytes are not skipped
+	 */
+	void discardBody(long limit) {
+		if (bodyReader != null) {
+			bodyStream = new BodyInputStream(bodyReader.getInputStream(), bodyLength);
+			bodyReader = null;
+		}
+		if (bodyStream == null || bodyStream.remaining > limit)
+			return;
+		try {
+			while (bodyStream.remaining > 0 && bodyStream.skip(bodyStream.remaining) > 0)
+				;
+		} catch (IOException e) {
+		}
+	}
+
+	@Override
+	protected void loadHeaderFields() {
+		if (headerFieldsLoaded)
+			return;
+		headerFieldsLoaded = true;
+		head.copyHeaderFields(this);
+	}
+
+	/**
+	 * single fields of a request which has been read from a stream are looked up
+	 * in the raw head until the header fields are enumerated or modified
+	 */
+	@Override
+	public String getHeaderField(String field) {
+		if (!headerFieldsLoaded)
+			return head.getHeaderField(field);
+		return super.getHeaderField(field);
+	}
+
+	/**
+	 * splits the request target into the base and the decoded parameters
+	 */
 	private void interpretUri() {
-		int paramStart = uriBase.indexOf("?");
+		if (uriBase != null)
+			return;
+		String rawTarget = target != null ? target : head.getTarget();
+		target = null;
+		if (uri == null)
+			uri = rawTarget;
+		uriParameterMap = new LinkedHashMap<>();
+		int paramStart = rawTarget.indexOf('?');
 		if (paramStart >= 0) {
-			for (String parameter : uriBase.substring(paramStart + 1).split("&")) {
-				int parameterDelim = parameter.indexOf("=");
-				if (parameterDelim > 0)
-					uriParameterMap.put(parameter.substring(0, parameterDelim),
-							parameter.substring(parameterDelim + 1));
+			for (String parameter : rawTarget.substring(paramStart + 1).split("&")) {
+				int parameterDelim = parameter.indexOf('=');
+				String name = decode(parameterDelim >= 0 ? parameter.substring(0, parameterDelim) : parameter, true);
+				if (name.isEmpty())
+					continue;
+				String value = parameterDelim >= 0 ? decode(parameter.substring(parameterDelim + 1), true) : "";
+				List<String> values = uriParameterMap.get(name);
+				if (values == null) {
+					values = new ArrayList<>(1);
+					uriParameterMap.put(name, values);
+				}
+				values.add(value);
 			}
-			uriBase = uriBase.substring(0, paramStart);
+			uriBase = rawTarget.substring(0, paramStart);
+		} else
+			uriBase = rawTarget;
+	}
+
+	/**
+	 * decodes percent-encoded UTF-8. malformed escapes are kept as they are.
+	 *
+	 * @param value
+	 * @param plusAsSpace true for the query, false for the path
+	 * @return the decoded value
+	 */
+	static String decode(String value, boolean plusAsSpace) {
+		if (value.indexOf('%') == -1 && (!plusAsSpace || value.indexOf('+') == -1))
+			return value;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i++) {
+			byte b = bytes[i];
+			if (b == '+' && plusAsSpace)
+				out.write(' ');
+			else if (b == '%' && i + 2 < bytes.length && hexValue(bytes[i + 1]) >= 0
+					&& hexValue(bytes[i + 2]) >= 0) {
+				out.write(hexValue(bytes[i + 1]) << 4 | hexValue(bytes[i + 2]));
+				i += 2;
+			} else
+				out.write(b);
 		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static int hexValue(byte b) {
+		return Character.digit(b, 16);
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, WebServer.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * sets the uri including its parameters. the parameters are split when they
+	 * are accessed.
+	 *
+	 * @param uri path and optional query string
+	 */
+	void setUri(@NotEmpty String uri) {
+		Assurance.assureNotEmpty(uri);
+		target = uri;
+		uriBase = null;
+		uriParameterMap = null;
+		this.uri = uri;
+		reducedUri = null;
 	}
 
 	public boolean hasUriParameter(String name) {
+		interpretUri();
 		return uriParameterMap.containsKey(name);
 	}
 
+	/**
+	 * @param name
+	 * @return the first decoded value of the parameter or an empty string
+	 */
 	public @NotNull String getUriParameter(String name) {
-		String value = uriParameterMap.get(name);
-		return value != null ? value : "";
+		interpretUri();
+		List<String> values = uriParameterMap.get(name);
+		return values != null ? values.get(0) : "";
+	}
+
+	/**
+	 * @param name
+	 * @return all decoded values of the parameter in the order of the query
+	 */
+	public @NotNull List<String> getUriParameters(String name) {
+		interpretUri();
+		List<String> values = uriParameterMap.get(name);
+		return values != null ? Collections.unmodifiableList(values) : Collections.emptyList();
 	}
 
+	public @NotNull Set<String> getUriParameterNames() {
+		interpretUri();
+		return Collections.unmodifiableSet(uriParameterMap.keySet());
+	}
+
+	/**
+	 * replaces all values of the parameter. the value is encoded by
+	 * {@link #getUri()}.
+	 *
+	 * @param name
+	 * @param value
+	 */
 	public void addUriParameter(String name, String value) {
 		if (value.contains("\n"))
 			throw new IllegalArgumentException("parameter value contains linefeed");
-
-		uriParameterMap.put(name, value);
+		interpretUri();
+		uriParameterMap.put(name, Collections.singletonList(value));
+		uri = null;
 	}
 
+	/**
+	 * @return the request target as received or, if it has been modified, built
+	 *         from the base and the encoded parameters
+	 */
 	public @NotEmpty String getUri() {
+		if (uri != null)
+			return uri;
+		if (uriBase == null)
+			return uri = target != null ? target : head.getTarget();
 		StringBuilder uri = new StringBuilder();
 		uri.append(uriBase);
 		if (!uriParameterMap.isEmpty()) {
 			boolean isFirst = true;
 			uri.append('?');
-			for (String name : uriParameterMap.keySet()) {
-				if (isFirst)
-					isFirst = false;
-				else
-					uri.append('&');
-				uri.append(name);
-				uri.append('=');
-				uri.append(uriParameterMap.get(name));
+			for (Map.Entry<String, List<String>> parameter : uriParameterMap.entrySet()) {
+				for (String value : parameter.getValue()) {
+					if (isFirst)
+						isFirst = false;
+					else
+						uri.append('&');
+					uri.append(encode(parameter.getKey()));
+					uri.append('=');
+					uri.append(encode(value));
+				}
 			}
 		}
-		return uri.toString();
+		return this.uri = uri.toString();
 	}
 
+	/**
+	 * @return the decoded path without the leading slash
+	 */
 	public @NotNull String getReducedUri() {
-		return uriBase.substring(1);
+		if (reducedUri == null) {
+			interpretUri();
+			reducedUri = decode(uriBase.substring(1), false);
+		}
+		return reducedUri;
 	}
 
 	public void setUriBase(@NotEmpty String uri) {
 		Assurance.assureNotEmpty(uri);
+		interpretUri();
 		this.uriBase = uri;
+		this.uri = null;
+		reducedUri = null;
 	}
 
 	public @NotNull RequestMethod getMethod() {
@@ -134,6 +394,55 @@ public class WebRequest extends WebObject {
 		}
 	}
 
+	/**
+	 * sends the request over TLS to port 443 of the host
+	 *
+	 * @param hostname
+	 * @return the response
+	 * @throws ProtocolException
+	 * @throws IOException
+	 */
+	public WebResponse sendSecureTo(String hostname) throws ProtocolException, IOException {
+		return sendSecureTo(hostname, 443);
+	}
+
+	/**
+	 * sends the request over TLS with the default {@link SSLSocketFactory}. the
+	 * default factory caches sessions per host and port, so subsequent requests
+	 * resume the session instead of doing a full handshake.
+	 *
+	 * @param hostname
+	 * @param port
+	 * @return the response
+	 * @throws ProtocolException
+	 * @throws IOException
+	 */
+	public WebResponse sendSecureTo(String hostname, int port) throws ProtocolException, IOException {
+		return sendTo(hostname, port, (SSLSocketFactory) SSLSocketFactory.getDefault());
+	}
+
+	/**
+	 * sends the request over TLS. the certificate of the host is verified against
+	 * the hostname. sessions are resumed if the same factory is used again.
+	 *
+	 * @param hostname
+	 * @param port
+	 * @param socketFactory e.g. from an SSLContext with a custom trust store
+	 * @return the response
+	 * @throws ProtocolException
+	 * @throws IOException
+	 */
+	public WebResponse sendTo(String hostname, int port, @NotNull SSLSocketFactory socketFactory)
+			throws ProtocolException, IOException {
+		Assurance.assureNotNull(socketFactory);
+		try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(hostname, port)) {
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(parameters);
+			return sendTo(socket);
+		}
+	}
+
 	public WebResponse sendTo(Socket socket) throws ProtocolException, IOException {
 		setHeaderField(WebServer.HF_HOST, socket.getInetAddress().getHostName());
 		return sendTo(socket.getOutputStream(), socket.getInputStream());
@@ -155,10 +464,62 @@ public class WebRequest extends WebObject {
 		return new WebResponse(inputStream);
 	}
 
+	/**
+	 * the part of the connection stream which belongs to the body
+	 */
+	private static class BodyInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining;
+
+		private BodyInputStream(InputStream in, long length) {
+			this.in = in;
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0)
+				return -1;
+			int read = in.read();
+			if (read == -1)
+				throw new EOFException("stream ended before end of body");
+			remaining--;
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining == 0)
+				return -1;
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read == -1)
+				throw new EOFException("stream ended before end of body");
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
+		interpretUri();
 		result = prime * result + ((method == null) ? 0 : method.hashCode());
 		result = prime * result + ((uriBase == null) ? 0 : uriBase.hashCode());
 		return result;
@@ -173,6 +534,8 @@ public class WebRequest extends WebObject {
 		if (getClass() != obj.getClass())
 			return false;
 		WebRequest other = (WebRequest) obj;
+		interpretUri();
+		other.interpretUri();
 		if (method != other.method)
 			return false;
 		if (uriBase == null) {
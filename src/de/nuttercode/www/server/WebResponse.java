@@ -8,9 +8,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.zip.GZIPOutputStream;
 
 import de.nuttercode.util.assurance.Assurance;
@@ -18,13 +20,28 @@ import de.nuttercode.util.assurance.NotNull;
 
 public class WebResponse extends WebObject {
 
+	/**
+	 * encoded bodies of {@link #from(ResponseCode)} by ordinal of the code
+	 */
+	private final static byte[][] ERROR_BODIES;
+
+	static {
+		ResponseCode[] codes = ResponseCode.values();
+		ERROR_BODIES = new byte[codes.length][];
+		for (ResponseCode code : codes)
+			ERROR_BODIES[code.ordinal()] = ("<html><h1>" + code.getMessage() + "</h1></html>")
+					.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param code
+	 * @return a new response to the code. the server sends its shared
+	 *         {@link PreparedResponse} instead if the response is still unchanged
+	 *         when it is written.
+	 */
 	public static WebResponse from(ResponseCode code) {
 		WebResponse response = new WebResponse(code.getCode(), code.getMessage());
-		try {
-			response.setBody("<html><h1>" + code.getMessage() + "</h1></html>");
-		} catch (UnsupportedEncodingException e) {
-			throw new IllegalStateException(e);
-		}
+		response.setBody(ERROR_BODIES[code.ordinal()].clone());
 		return response;
 	}
 
@@ -47,6 +64,7 @@ public class WebResponse extends WebObject {
 	private static final String DEFAULT_STATUS_REASON = "OK";
 	private static final int DEFAULT_STATUS_CODE = 200;
 	private static final String HF_EXPIRES = "Expires";
+	private static final String HF_CONTENT_LENGTH = "Content-Length";
 	private static final String HF_CONTENT_ENCODING = "Content-Encoding";
 	private final static String HF_ACCEPT_ENCODING = "Accept-Encoding";
 	private final static String GZIP = "gzip";
@@ -68,8 +86,36 @@ public class WebResponse extends WebObject {
 		setStatusReason(statusReason);
 	}
 
+	/**
+	 * copies status, header fields and body of the response. the body is not
+	 * copied but shared, which is safe because bodies are only ever replaced.
+	 *
+	 * @param response
+	 */
+	public WebResponse(@NotNull WebResponse response) {
+		Assurance.assureNotNull(response);
+		setStatusCode(response.getStatusCode());
+		setStatusReason(response.getStatusReason());
+		for (String field : response.getHeaderFieldNames())
+			setHeaderField(field, response.getHeaderField(field));
+		setReceivedBody(response.getBody());
+	}
+
 	public WebResponse(InputStream inputStream) throws ProtocolException, IOException {
 		HttpStreamReader reader = new HttpStreamReader(inputStream);
+		readStatusLine(reader);
+		readHeader(reader);
+		readBody(reader);
+	}
+
+	/**
+	 * reads the status line and sets status code and reason
+	 *
+	 * @param reader
+	 * @throws ProtocolException if the status line is malformed
+	 * @throws IOException
+	 */
+	void readStatusLine(HttpStreamReader reader) throws ProtocolException, IOException {
 		String line = reader.readLine();
 		if (line == null || line.isEmpty())
 			throw new ProtocolException("status line is missing");
@@ -93,8 +139,29 @@ public class WebResponse extends WebObject {
 		if (spacePosition == subline.length() - 1)
 			throw new ProtocolException("no status reason supplied: " + line);
 		setStatusReason(subline.substring(spacePosition + 1));
-		readHeader(reader);
-		readBody(reader);
+	}
+
+	/**
+	 * @return the code if the response is equal to {@link #from(ResponseCode)} of
+	 *         an error code or null
+	 */
+	ResponseCode getUnchangedErrorCode() {
+		if (statusCode < 400 || getClass() != WebResponse.class)
+			return null;
+		ResponseCode code = ResponseCode.of(statusCode);
+		if (code == null || !code.getMessage().equals(statusReason) || getHeaderFieldNames().size() != 1)
+			return null;
+		byte[] body = ERROR_BODIES[code.ordinal()];
+		if (!Integer.toString(body.length).equals(getHeaderField(HF_CONTENT_LENGTH)))
+			return null;
+		return Arrays.equals(body, getBody()) ? code : null;
+	}
+
+	/**
+	 * @return size of the body in bytes as it has been or will be sent
+	 */
+	long getBodyLength() {
+		return getBody().length;
 	}
 
 	public int getStatusCode() {
@@ -135,6 +202,8 @@ public class WebResponse extends WebObject {
 		if (acceptEncoding == null || !acceptEncoding.contains(GZIP))
 			return;
 		setHeaderField(HF_CONTENT_ENCODING, GZIP);
+		RequestEvent event = request.getEvent();
+		long begin = event != null ? System.nanoTime() : 0;
 		byte[] body = getBody();
 		try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(body.length)) {
 			try (GZIPOutputStream gout = new GZIPOutputStream(outputStream)) {
@@ -145,6 +214,9 @@ public class WebResponse extends WebObject {
 			setBody(outputStream.toByteArray());
 		} catch (IOException e) {
 			return;
+		} finally {
+			if (event != null)
+				event.compressed(begin);
 		}
 	}
 
@@ -162,6 +234,16 @@ public class WebResponse extends WebObject {
 		outputStream.flush();
 	}
 
+	/**
+	 * releases the resources of a response which will not be sent, e.g. the
+	 * upstream connection of a proxied response. the server calls it for
+	 * responses which complete after their request has timed out or been
+	 * cancelled. handlers which replace a response they have obtained from
+	 * another handler have to call it themselves.
+	 */
+	public void discard() {
+	}
+
 	public boolean isOk() {
 		return statusCode == ResponseCode.OK.getCode();
 	}
@@ -1,28 +1,63 @@
 package de.nuttercode.www.server;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
 
 import de.nuttercode.log.Log;
 import de.nuttercode.log.LogException;
 import de.nuttercode.util.assurance.Assurance;
 import de.nuttercode.util.assurance.NotNull;
 
-public abstract class WebServer implements Closeable, WebRequestHandler {
+public abstract class WebServer implements Closeable, WebRequestHandler, AsyncWebRequestHandler {
 
 	final static String CRLF = "\r\n";
 	final static String HTTP_VERSION = "HTTP/1.1";
 	final static String UTF_8 = "UTF-8";
 	private final static int DEFAULT_SOCKET_TIMEOUT = 5_000;
+	private final static int DEFAULT_MAX_REQUEST_SIZE = 100 * 1024 * 1024;
+	private final static int DEFAULT_LOG_QUEUE_SIZE = 64 * 1024;
+	private final static int DEFAULT_ASYNC_TIMEOUT = 30_000;
+	private final static int PROBE_INTERVAL = 1_000;
+	private final static int DEFAULT_SSE_HEARTBEAT = 15_000;
+	private final static int DEFAULT_SSE_QUEUE_SIZE = 64;
+	private final static int DEFAULT_WEBSOCKET_MAX_MESSAGE_SIZE = 1024 * 1024;
+	private final static int DEFAULT_RATE_LIMIT_MAX_CLIENTS = 64 * 1024;
+	private final static int DEFAULT_SLOW_REQUEST_THRESHOLD = 1_000;
+	private final static Set<String> CASE_SENSITIVE_KEYS = new HashSet<>(
+			Arrays.asList("tls_keystore", "tls_keystore_password", "tls_protocols", "tls_ciphers"));
+	final static long DISCARD_LIMIT = 64 * 1024;
+	private final static int LINGER_TIMEOUT = 2_000;
 	protected static final String HF_HOST = "Host";
+	final static String HF_CONNECTION = "Connection";
+	final static String HF_UPGRADE = "Upgrade";
 
 	public static void run(WebServer server) throws FileNotFoundException, IOException {
 		server.init();
@@ -37,6 +72,33 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 	private boolean devMode;
 	private String logDirectory;
 	private final Map<String, String> configuration;
+	private long bufferBudget;
+	private int maxRequestSize;
+	private BufferArena bufferArena;
+	private boolean asyncLog;
+	private boolean accessLogEnabled;
+	private int logQueueSize;
+	private AccessLog accessLog;
+	private ExecutorService workerExecutor;
+	private TlsConfiguration tlsConfiguration;
+	private ScheduledExecutorService scheduler;
+	private int asyncTimeout;
+	private final Set<AsyncExchange> pendingExchanges;
+	private int sseHeartbeat;
+	private int sseQueueSize;
+	private final Set<SseEmitter> eventStreams;
+	private final Map<ResponseCode, PreparedResponse> preparedResponses;
+	private int webSocketMaxMessageSize;
+	private boolean webSocketDeflate;
+	private WebSocketLoop webSocketLoop;
+	private final Set<WebSocketSession> webSockets;
+	private double rateLimit;
+	private int rateLimitBurst;
+	private RateLimiter.Scope rateLimitScope;
+	private String rateLimitHeader;
+	private int rateLimitMaxClients;
+	private volatile RateLimiter rateLimiter;
+	private long slowRequestThreshold;
 
 	public WebServer(@NotNull File configurationFile) {
 		Assurance.assureNotNull(configurationFile);
@@ -48,19 +110,461 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 		setDevMode(false);
 		logDirectory = null;
 		configuration = new HashMap<>();
+		bufferBudget = Runtime.getRuntime().maxMemory() / 2;
+		maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+		bufferArena = null;
+		asyncLog = false;
+		accessLogEnabled = false;
+		logQueueSize = DEFAULT_LOG_QUEUE_SIZE;
+		accessLog = null;
+		workerExecutor = null;
+		tlsConfiguration = null;
+		scheduler = null;
+		asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+		pendingExchanges = ConcurrentHashMap.newKeySet();
+		sseHeartbeat = DEFAULT_SSE_HEARTBEAT;
+		sseQueueSize = DEFAULT_SSE_QUEUE_SIZE;
+		eventStreams = ConcurrentHashMap.newKeySet();
+		preparedResponses = new ConcurrentHashMap<>();
+		webSocketMaxMessageSize = DEFAULT_WEBSOCKET_MAX_MESSAGE_SIZE;
+		webSocketDeflate = true;
+		webSocketLoop = null;
+		webSockets = ConcurrentHashMap.newKeySet();
+		rateLimit = 0;
+		rateLimitBurst = 0;
+		rateLimitScope = RateLimiter.Scope.ADDRESS;
+		rateLimitHeader = null;
+		rateLimitMaxClients = DEFAULT_RATE_LIMIT_MAX_CLIENTS;
+		rateLimiter = null;
+		slowRequestThreshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_REQUEST_THRESHOLD);
 	}
 
 	private void handleSocket(Socket socket) {
+		long start = System.nanoTime();
+		HttpStreamReader reader = null;
+		boolean pending = false;
+		boolean linger = false;
 		try {
+			reader = new HttpStreamReader(socket.getInputStream(), bufferArena);
 			socket.setSoTimeout(socketTimeout);
-			WebResponse response = handleRequest(new WebRequest(socket.getInputStream()));
-			if (response == null)
-				response = WebResponse.from(ResponseCode.INTERNAL_SERVER_ERROR);
-			response.setHeaderField(HF_HOST, getHostname());
-			response.sendTo(socket.getOutputStream());
+			if (reader.readHttp2Preface()) {
+				serveHttp2(socket, reader, null);
+				return;
+			}
+			WebRequest request = null;
+			CompletableFuture<WebResponse> future;
+			try {
+				request = new WebRequest(reader);
+				WebResponse limited = rateLimit(socket.getInetAddress(), request);
+				if (limited != null) {
+					request.discardBody(DISCARD_LIMIT);
+					limited.sendTo(socket.getOutputStream());
+					linger = request.hasPendingBody();
+					logAccess(socket.getInetAddress(), request, limited, System.nanoTime() - start);
+					return;
+				}
+				if (!(socket instanceof SSLSocket) && Http2Connection.isUpgrade(request)) {
+					upgradeToHttp2(socket, reader, request);
+					return;
+				}
+				future = respondAsync(request);
+			} catch (RequestRejectedException e) {
+				future = CompletableFuture.completedFuture(prepared(e.getResponseCode()));
+			}
+			if (future.isDone()) {
+				WebResponse response = future.join();
+				if (request != null)
+					request.discardBody(DISCARD_LIMIT);
+				pending = send(socket, reader, request, response);
+				// the body of a request whose head has been rejected may still be arriving
+				linger = request == null || request.hasPendingBody();
+				logAccess(socket.getInetAddress(), request, response, System.nanoTime() - start);
+			} else {
+				pending = true;
+				AsyncExchange exchange = new AsyncExchange(this, socket, reader, request, future, start);
+				pendingExchanges.add(exchange);
+				future.whenCompleteAsync((response, error) -> {
+					pendingExchanges.remove(exchange);
+					exchange.finish(response);
+				}, workerExecutor);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			if (!pending)
+				closeConnection(socket, reader, linger);
+		}
+	}
+
+	/**
+	 * closes an HTTP/1.1 connection. closing a connection with unread data resets
+	 * it, which may discard the response before the client has read it. so if the
+	 * body of the request has not been read, e.g. because it exceeds
+	 * {@link #DISCARD_LIMIT}, the output is shut down first and the rest of the
+	 * body is read and dropped for up to {@value #LINGER_TIMEOUT} milliseconds.
+	 *
+	 * @param socket
+	 * @param reader may be null
+	 * @param linger true if a response has been sent and the client may still be
+	 *               sending the body of its request
+	 */
+	void closeConnection(Socket socket, HttpStreamReader reader, boolean linger) {
+		try {
+			if (linger && reader != null)
+				linger(socket, reader.getInputStream());
+		} finally {
+			if (reader != null)
+				reader.close();
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void linger(Socket socket, InputStream in) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_TIMEOUT);
+		try {
+			// TLS connections can not be half-closed
+			if (!(socket instanceof SSLSocket))
+				socket.shutdownOutput();
+			byte[] buffer = new byte[8 * 1024];
+			long remaining;
+			while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+				socket.setSoTimeout((int) remaining);
+				if (in.read(buffer) == -1)
+					return;
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * checks the request against the rate limit of its client. only the head of
+	 * the request is accessed.
+	 *
+	 * @param remoteAddress
+	 * @param request
+	 * @return null if the request may be handled, otherwise the prepared
+	 *         response to a rejected request
+	 */
+	WebResponse rateLimit(InetAddress remoteAddress, WebRequest request) {
+		RateLimiter limiter = rateLimiter;
+		if (limiter == null || limiter.permits(remoteAddress, request))
+			return null;
+		return limiter.getResponse();
+	}
+
+	/**
+	 * writes the response to an HTTP/1.1 connection
+	 *
+	 * @param socket
+	 * @param reader
+	 * @param request  null if the request has been rejected
+	 * @param response
+	 * @return true if the connection has been handed over to an event stream or
+	 *         a WebSocket session, false if the caller has to close it
+	 * @throws IOException
+	 */
+	boolean send(Socket socket, HttpStreamReader reader, WebRequest request, WebResponse response)
+			throws IOException {
+		if (response instanceof SseResponse)
+			return openEventStream(socket, reader, request, (SseResponse) response);
+		if (response instanceof WebSocketResponse && ((WebSocketResponse) response).isAccepted())
+			return openWebSocket(socket, reader, request, (WebSocketResponse) response);
+		RequestEvent event = request != null ? request.getEvent() : null;
+		long begin = event != null ? System.nanoTime() : 0;
+		response.sendTo(socket.getOutputStream());
+		if (event != null)
+			event.written(begin);
+		return false;
+	}
+
+	/**
+	 * sends the head of an event stream over an HTTP/1.1 connection and hands the
+	 * connection over to the emitter of the response
+	 *
+	 * @param socket
+	 * @param reader
+	 * @param request
+	 * @param response
+	 * @return false if the caller has to close the connection
+	 * @throws IOException
+	 */
+	private boolean openEventStream(Socket socket, HttpStreamReader reader, WebRequest request, SseResponse response)
+			throws IOException {
+		SseEmitter emitter = response.getEmitter();
+		try {
+			response.sendTo(socket.getOutputStream());
+		} catch (IOException e) {
+			emitter.close();
+			throw e;
+		}
+		if (request.getMethod() == RequestMethod.HEAD) {
+			emitter.close();
+			return false;
+		}
+		reader.close();
+		openEventStream(emitter, new SseEmitter.SocketSink(socket));
+		return true;
+	}
+
+	/**
+	 * connects the emitter of an event stream whose head has been sent
+	 *
+	 * @param emitter
+	 * @param sink
+	 */
+	void openEventStream(SseEmitter emitter, SseEmitter.Sink sink) {
+		eventStreams.add(emitter);
+		emitter.onClose(() -> eventStreams.remove(emitter));
+		emitter.open(sink, workerExecutor, sseQueueSize);
+	}
+
+	/**
+	 * completes the handshake and hands the connection over to a WebSocket
+	 * session. plain connections are read by the {@link WebSocketLoop}, others
+	 * by a blocking task on the worker executor.
+	 *
+	 * @param socket
+	 * @param reader
+	 * @param request
+	 * @param response an accepted handshake
+	 * @return true
+	 * @throws IOException
+	 */
+	private boolean openWebSocket(Socket socket, HttpStreamReader reader, WebRequest request,
+			WebSocketResponse response) throws IOException {
+		response.negotiate(webSocketDeflate);
+		response.sendTo(socket.getOutputStream());
+		WebSocketSession session = new WebSocketSession(request, response.getHandler(),
+				response.createCodec(webSocketMaxMessageSize), workerExecutor, scheduler);
+		webSockets.add(session);
+		session.onTerminate(() -> webSockets.remove(session));
+		socket.setSoTimeout(0);
+		InputStream in = reader.getInputStream();
+		SocketChannel channel = socket.getChannel();
+		if (channel == null || socket instanceof SSLSocket) {
+			reader.close();
+			new WebSocketSession.StreamTransport(socket, in, workerExecutor, bufferArena).start(session);
+			return true;
+		}
+		byte[] buffered = readBuffered(in);
+		reader.close();
+		webSocketLoop().register(channel, session, buffered);
+		return true;
+	}
+
+	private synchronized WebSocketLoop webSocketLoop() throws IOException {
+		if (webSocketLoop == null)
+			webSocketLoop = new WebSocketLoop();
+		return webSocketLoop;
+	}
+
+	private void sendHeartbeats() {
+		long now = System.nanoTime();
+		long interval = TimeUnit.MILLISECONDS.toNanos(sseHeartbeat);
+		for (SseEmitter emitter : eventStreams)
+			emitter.heartbeat(now, interval);
+	}
+
+	private void upgradeToHttp2(Socket socket, HttpStreamReader reader, WebRequest request) throws IOException {
+		request.getBody();
+		WebResponse switching = new WebResponse(ResponseCode.SWITCHING_PROTOCOLS.getCode(),
+				ResponseCode.SWITCHING_PROTOCOLS.getMessage());
+		switching.setHeaderField(HF_CONNECTION, HF_UPGRADE);
+		switching.setHeaderField(HF_UPGRADE, Http2Connection.UPGRADE_TOKEN);
+		switching.sendTo(socket.getOutputStream());
+		serveHttp2(socket, reader, request);
+	}
+
+	/**
+	 * serves an HTTP/2 connection until it is closed. the streams of a plain
+	 * connection are replaced by {@link ChannelStreams}, so that responses can be
+	 * written while the connection is read.
+	 *
+	 * @param socket
+	 * @param reader         positioned after the preface or the upgrade request
+	 * @param upgradeRequest the request which asked for the upgrade or null
+	 * @throws IOException
+	 */
+	private void serveHttp2(Socket socket, HttpStreamReader reader, WebRequest upgradeRequest) throws IOException {
+		String http2Settings = upgradeRequest != null
+				? upgradeRequest.getHeaderField(Http2Connection.HF_HTTP2_SETTINGS)
+				: null;
+		SocketChannel channel = socket.getChannel();
+		if (channel == null || socket instanceof SSLSocket) {
+			new Http2Connection(this, socket.getInetAddress(), reader.getInputStream(), socket.getOutputStream(),
+					workerExecutor, bufferArena).serve(upgradeRequest, http2Settings);
+			return;
 		}
+		try (ChannelStreams streams = new ChannelStreams(channel, socket.getSoTimeout(),
+				readBuffered(reader.getInputStream()))) {
+			new Http2Connection(this, socket.getInetAddress(), new BufferedInputStream(streams.getInputStream()),
+					streams.getOutputStream(), workerExecutor, bufferArena).serve(upgradeRequest, http2Settings);
+		}
+	}
+
+	/**
+	 * @param in
+	 * @return the bytes which can be read without blocking
+	 * @throws IOException
+	 */
+	private static byte[] readBuffered(InputStream in) throws IOException {
+		byte[] buffered = new byte[in.available()];
+		int count = 0;
+		while (count < buffered.length)
+			count += in.read(buffered, count, buffered.length - count);
+		return buffered;
+	}
+
+	/**
+	 * answers the request with {@link #handleRequest(WebRequest)}. override this
+	 * method or {@link #handleRequest(WebRequest)}, not both.
+	 */
+	@Override
+	public CompletionStage<WebResponse> handleRequestAsync(WebRequest request) {
+		return CompletableFuture.completedFuture(handleRequest(request));
+	}
+
+	/**
+	 * calls {@link #handleRequestAsync(WebRequest)}. the returned future completes
+	 * with the completed response, with a response to a timeout after
+	 * {@link #getAsyncTimeout()} or with a response to an internal server error.
+	 * cancelling the returned future cancels the future of the handler.
+	 *
+	 * @param request
+	 * @return the response which will be sent to the client
+	 */
+	CompletableFuture<WebResponse> respondAsync(WebRequest request) {
+		long begin = request.getEvent() != null ? System.nanoTime() : 0;
+		CompletableFuture<WebResponse> source;
+		try {
+			CompletionStage<WebResponse> stage = handleRequestAsync(request);
+			source = stage != null ? stage.toCompletableFuture() : CompletableFuture.completedFuture(null);
+		} catch (RuntimeException e) {
+			source = CompletableFuture.completedFuture(failureResponse(e));
+		}
+		CompletableFuture<WebResponse> result = new CompletableFuture<>();
+		final CompletableFuture<WebResponse> handlerFuture = source;
+		ScheduledFuture<?> timeout = source.isDone() ? null : scheduler.schedule(() -> {
+			handled(request, begin);
+			if (result.complete(prepared(ResponseCode.GATEWAY_TIMEOUT)))
+				handlerFuture.cancel(true);
+		}, asyncTimeout, TimeUnit.MILLISECONDS);
+		source.whenComplete((response, error) -> {
+			if (timeout != null)
+				timeout.cancel(false);
+			// measured before the result completes, which may commit the event
+			handled(request, begin);
+			if (!result.complete(complete(error == null ? response : failureResponse(error))) && response != null)
+				// the request has timed out or been cancelled in the meantime
+				response.discard();
+		});
+		result.whenComplete((response, error) -> {
+			if (result.isCancelled())
+				handlerFuture.cancel(true);
+		});
+		return result;
+	}
+
+	/**
+	 * the lambdas of {@link #respondAsync(WebRequest)} must not capture the event,
+	 * which would load its class even if jdk.jfr is missing
+	 *
+	 * @param request
+	 * @param begin   {@link System#nanoTime()} when the handler was called
+	 */
+	private static void handled(WebRequest request, long begin) {
+		RequestEvent event = request.getEvent();
+		if (event != null)
+			event.handled(begin);
+	}
+
+	/**
+	 * @param throwable thrown by a handler
+	 * @return the response code of the {@link RequestRejectedException} which
+	 *         caused the throwable or null
+	 */
+	static ResponseCode rejectionOf(Throwable throwable) {
+		for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+			if (cause instanceof RequestRejectedException)
+				return ((RequestRejectedException) cause).getResponseCode();
+		return null;
+	}
+
+	/**
+	 * @param error
+	 * @return the response to a rejected request or null
+	 */
+	private WebResponse failureResponse(Throwable error) {
+		ResponseCode code = rejectionOf(error);
+		if (code != null)
+			return prepared(code);
+		if (!(error instanceof CancellationException))
+			logException(error);
+		return null;
+	}
+
+	private void logException(Throwable throwable) {
+		if (hasLog())
+			getLog().logError(throwable.toString());
+	}
+
+	private void probePendingExchanges() {
+		for (AsyncExchange exchange : pendingExchanges)
+			exchange.probe();
+	}
+
+	/**
+	 * @param response may be null
+	 * @return the response with all fields set by the server or a response to an
+	 *         internal server error if the response is null. prepared responses
+	 *         are returned unchanged, unchanged responses of
+	 *         {@link WebResponse#from(ResponseCode)} are replaced by the prepared
+	 *         response to their code.
+	 */
+	WebResponse complete(WebResponse response) {
+		if (response == null)
+			return prepared(ResponseCode.INTERNAL_SERVER_ERROR);
+		if (response instanceof PreparedResponse)
+			return response;
+		ResponseCode code = response.getUnchangedErrorCode();
+		if (code != null)
+			return prepared(code);
+		response.setHeaderField(HF_HOST, getHostname());
+		return response;
+	}
+
+	/**
+	 * the response is encoded when it is requested for the first time and shared
+	 * afterwards, which keeps the error paths cheap
+	 *
+	 * @param code
+	 * @return the prepared response to the code with all fields set by the server
+	 */
+	protected WebResponse prepared(@NotNull ResponseCode code) {
+		Assurance.assureNotNull(code);
+		PreparedResponse response = preparedResponses.get(code);
+		if (response == null)
+			response = preparedResponses.computeIfAbsent(code, c -> {
+				WebResponse source = WebResponse.from(c);
+				source.setHeaderField(HF_HOST, getHostname());
+				return new PreparedResponse(source);
+			});
+		return response;
+	}
+
+	void logAccess(InetAddress remoteAddress, WebRequest request, WebResponse response, long latencyNanos) {
+		if (accessLog != null)
+			accessLog.log(remoteAddress, request, response, latencyNanos);
+		if (request == null)
+			return;
+		RequestEvent event = request.getEvent();
+		if (event != null)
+			event.finish(request, response);
+		if (slowRequestThreshold > 0 && latencyNanos > slowRequestThreshold)
+			RequestEvents.slowRequest(remoteAddress, request, response, latencyNanos);
 	}
 
 	private void readConfiguration() throws IOException {
@@ -84,14 +588,16 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 	private void readServerEntry(BufferedReader reader, int lineNumber) throws IOException {
 		String line;
 		while ((line = reader.readLine()) != null) {
-			line = line.trim().toLowerCase();
+			line = line.trim();
 			lineNumber++;
-			if (line.equals("[/server]"))
+			if (line.equalsIgnoreCase("[/server]"))
 				break;
-			String[] split = line.split(":");
+			String[] split = line.split(":", 2);
 			if (split.length == 2) {
 				split[0] = split[0].trim().toLowerCase();
-				split[1] = split[1].trim().toLowerCase();
+				split[1] = split[1].trim();
+				if (!CASE_SENSITIVE_KEYS.contains(split[0]))
+					split[1] = split[1].toLowerCase();
 				configuration.put(split[0], split[1]);
 				switch (split[0]) {
 				case "port":
@@ -107,15 +613,193 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 					break;
 				case "backlog":
 					try {
-						listenerThread.setPort(Integer.parseInt(split[1]));
+						listenerThread.setBacklog(Integer.parseInt(split[1]));
 					} catch (NumberFormatException e) {
 						throw new IllegalStateException(
-								"illegal port number in server segment: " + split[1] + " on line " + lineNumber, e);
+								"illegal backlog in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "listen":
+					for (String address : split[1].split(","))
+						listenerThread.addAddress(parseAddress(address.trim(), lineNumber));
+					break;
+				case "tls_listen":
+					for (String address : split[1].split(","))
+						listenerThread.addSecureAddress(parseAddress(address.trim(), lineNumber));
+					break;
+				case "tls_keystore":
+					tlsConfiguration().setKeyStorePath(split[1]);
+					break;
+				case "tls_keystore_password":
+					tlsConfiguration().setKeyStorePassword(split[1]);
+					break;
+				case "tls_keystore_type":
+					tlsConfiguration().setKeyStoreType(split[1]);
+					break;
+				case "tls_protocols":
+					tlsConfiguration().setProtocols(parseList(split[1]));
+					break;
+				case "tls_ciphers":
+					tlsConfiguration().setCipherSuites(parseList(split[1]));
+					break;
+				case "tls_session_cache_size":
+					try {
+						tlsConfiguration().setSessionCacheSize(Integer.parseInt(split[1]));
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal tls session cache size in server segment: "
+								+ split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "tls_session_timeout":
+					try {
+						tlsConfiguration().setSessionTimeout(Integer.parseInt(split[1]));
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal tls session timeout in server segment: " + split[1]
+								+ " on line " + lineNumber, e);
+					}
+					break;
+				case "tls_alpn":
+					tlsConfiguration().setAlpn(Boolean.parseBoolean(split[1]));
+					break;
+				case "sse_heartbeat":
+					try {
+						sseHeartbeat = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal sse heartbeat in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					if (sseHeartbeat <= 0)
+						throw new IllegalStateException(
+								"illegal sse heartbeat in server segment: " + split[1] + " on line " + lineNumber);
+					break;
+				case "sse_queue_size":
+					try {
+						sseQueueSize = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal sse queue size in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					if (sseQueueSize <= 0)
+						throw new IllegalStateException(
+								"illegal sse queue size in server segment: " + split[1] + " on line " + lineNumber);
+					break;
+				case "websocket_max_message_size":
+					try {
+						webSocketMaxMessageSize = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal websocket max message size in server segment: "
+								+ split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "websocket_deflate":
+					webSocketDeflate = Boolean.parseBoolean(split[1]);
+					break;
+				case "async_timeout":
+					try {
+						asyncTimeout = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal async timeout in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "acceptors":
+					try {
+						listenerThread.setAcceptors(Integer.parseInt(split[1]));
+					} catch (IllegalArgumentException e) {
+						throw new IllegalStateException(
+								"illegal acceptor count in server segment: " + split[1] + " on line " + lineNumber, e);
 					}
 					break;
 				case "hostname":
 					setHostname(split[1]);
 					break;
+				case "buffer_budget":
+					try {
+						bufferBudget = Long.parseLong(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal buffer budget in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "async_log":
+					asyncLog = Boolean.parseBoolean(split[1]);
+					break;
+				case "access_log":
+					accessLogEnabled = Boolean.parseBoolean(split[1]);
+					break;
+				case "log_queue_size":
+					try {
+						logQueueSize = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal log queue size in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "rate_limit":
+					try {
+						rateLimit = Double.parseDouble(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal rate limit in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					// 0 disables the limit
+					if (!(rateLimit >= 0) || Double.isInfinite(rateLimit))
+						throw new IllegalStateException(
+								"illegal rate limit in server segment: " + split[1] + " on line " + lineNumber);
+					break;
+				case "rate_limit_burst":
+					try {
+						rateLimitBurst = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException(
+								"illegal rate limit burst in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					// 0 selects the default burst
+					if (rateLimitBurst < 0)
+						throw new IllegalStateException(
+								"illegal rate limit burst in server segment: " + split[1] + " on line " + lineNumber);
+					break;
+				case "rate_limit_key":
+					String[] key = split[1].split(":", 2);
+					try {
+						rateLimitScope = RateLimiter.Scope.valueOf(key[0].trim().toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalStateException(
+								"illegal rate limit key in server segment: " + split[1] + " on line " + lineNumber, e);
+					}
+					rateLimitHeader = key.length == 2 ? key[1].trim() : null;
+					if ((rateLimitScope == RateLimiter.Scope.HEADER) != (rateLimitHeader != null)
+							|| (rateLimitHeader != null && rateLimitHeader.isEmpty()))
+						throw new IllegalStateException(
+								"illegal rate limit key in server segment: " + split[1] + " on line " + lineNumber);
+					break;
+				case "rate_limit_max_clients":
+					try {
+						rateLimitMaxClients = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal rate limit max clients in server segment: " + split[1]
+								+ " on line " + lineNumber, e);
+					}
+					if (rateLimitMaxClients <= 0)
+						throw new IllegalStateException("illegal rate limit max clients in server segment: " + split[1]
+								+ " on line " + lineNumber);
+					break;
+				case "slow_request_threshold":
+					try {
+						slowRequestThreshold = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(split[1]));
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal slow request threshold in server segment: "
+								+ split[1] + " on line " + lineNumber, e);
+					}
+					break;
+				case "max_request_size":
+					try {
+						maxRequestSize = Integer.parseInt(split[1]);
+					} catch (NumberFormatException e) {
+						throw new IllegalStateException("illegal max request size in server segment: " + split[1]
+								+ " on line " + lineNumber, e);
+					}
+					break;
 				default:
 					break;
 				}
@@ -123,6 +807,39 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 		}
 	}
 
+	private TlsConfiguration tlsConfiguration() {
+		if (tlsConfiguration == null)
+			tlsConfiguration = new TlsConfiguration();
+		return tlsConfiguration;
+	}
+
+	private String[] parseList(String value) {
+		String[] elements = value.split(",");
+		for (int i = 0; i < elements.length; i++)
+			elements[i] = elements[i].trim();
+		return elements;
+	}
+
+	/**
+	 * @param address "port", "host:port" or "[ipv6]:port"
+	 * @param lineNumber
+	 * @return the parsed address
+	 */
+	private InetSocketAddress parseAddress(String address, int lineNumber) {
+		int colonPosition = address.lastIndexOf(':');
+		try {
+			if (colonPosition == -1)
+				return new InetSocketAddress(Integer.parseInt(address));
+			String host = address.substring(0, colonPosition);
+			if (host.startsWith("[") && host.endsWith("]"))
+				host = host.substring(1, host.length() - 1);
+			return new InetSocketAddress(host, Integer.parseInt(address.substring(colonPosition + 1)));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalStateException(
+					"illegal listen address in server segment: " + address + " on line " + lineNumber, e);
+		}
+	}
+
 	private void setHostname(String hostname) {
 		this.hostname = hostname;
 	}
@@ -144,10 +861,42 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 	public void init() throws FileNotFoundException, IOException {
 		close();
 		listenerThread = new ListenerThread(this::handleSocket);
+		tlsConfiguration = null;
 		readConfiguration();
 		Assurance.assureNotEmpty(hostname);
-		if (logDirectory != null)
-			log = new Log(new File(logDirectory), hostname);
+		preparedResponses.clear();
+		if (tlsConfiguration != null) {
+			tlsConfiguration.init();
+			listenerThread.setTlsConfiguration(tlsConfiguration);
+		}
+		bufferArena = new BufferArena(bufferBudget, maxRequestSize);
+		if (logDirectory != null) {
+			log = asyncLog ? new AsyncLog(new File(logDirectory), hostname, logQueueSize)
+					: new Log(new File(logDirectory), hostname);
+			if (accessLogEnabled)
+				accessLog = new AccessLog(new File(logDirectory, hostname + "_access.log"), logQueueSize);
+		}
+		AtomicInteger workerCount = new AtomicInteger();
+		workerExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "worker-" + workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::probePendingExchanges, PROBE_INTERVAL, PROBE_INTERVAL,
+				TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::sendHeartbeats, sseHeartbeat, sseHeartbeat, TimeUnit.MILLISECONDS);
+		if (rateLimit > 0) {
+			rateLimiter = new RateLimiter(rateLimit, rateLimitBurst > 0 ? rateLimitBurst : (int) Math.ceil(rateLimit),
+					rateLimitMaxClients, rateLimitScope, rateLimitHeader,
+					complete(WebResponse.from(ResponseCode.TOO_MANY_REQUESTS)));
+			scheduler.scheduleWithFixedDelay(rateLimiter::evict, PROBE_INTERVAL, PROBE_INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
 		onInit();
 		if (log != null)
 			log.logInfo("WebServer started");
@@ -161,6 +910,64 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 		this.socketTimeout = socketTimeout;
 	}
 
+	/**
+	 * @return milliseconds after which a pending asynchronous response is answered
+	 *         with {@link ResponseCode#GATEWAY_TIMEOUT}
+	 */
+	public int getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	public void setAsyncTimeout(int asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	/**
+	 * @return milliseconds after which an idle event stream receives a heartbeat
+	 */
+	public int getSseHeartbeat() {
+		return sseHeartbeat;
+	}
+
+	public void setSseHeartbeat(int sseHeartbeat) {
+		this.sseHeartbeat = sseHeartbeat;
+	}
+
+	/**
+	 * @return number of events which may be queued for a subscriber before it is
+	 *         disconnected
+	 */
+	public int getSseQueueSize() {
+		return sseQueueSize;
+	}
+
+	public void setSseQueueSize(int sseQueueSize) {
+		this.sseQueueSize = sseQueueSize;
+	}
+
+	/**
+	 * @return maximum size of a received WebSocket message in bytes
+	 */
+	public int getWebSocketMaxMessageSize() {
+		return webSocketMaxMessageSize;
+	}
+
+	public void setWebSocketMaxMessageSize(int webSocketMaxMessageSize) {
+		this.webSocketMaxMessageSize = webSocketMaxMessageSize;
+	}
+
+	/**
+	 * @return true if WebSocket messages may be compressed with
+	 *         permessage-deflate
+	 */
+	public boolean isWebSocketDeflate() {
+		return webSocketDeflate;
+	}
+
+	public void setWebSocketDeflate(boolean webSocketDeflate) {
+		this.webSocketDeflate = webSocketDeflate;
+	}
+
 	public boolean isDevMode() {
 		return devMode;
 	}
@@ -192,6 +999,32 @@ public abstract class WebServer implements Closeable, WebRequestHandler {
 	public void close() throws IOException {
 		if (listenerThread != null)
 			listenerThread.close();
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		rateLimiter = null;
+		for (AsyncExchange exchange : pendingExchanges)
+			exchange.finish(null);
+		pendingExchanges.clear();
+		for (SseEmitter emitter : eventStreams)
+			emitter.close();
+		for (WebSocketSession session : webSockets)
+			session.close(WebSocketSession.GOING_AWAY, "");
+		synchronized (this) {
+			if (webSocketLoop != null) {
+				webSocketLoop.close();
+				webSocketLoop = null;
+			}
+		}
+		if (workerExecutor != null) {
+			workerExecutor.shutdown();
+			workerExecutor = null;
+		}
+		if (accessLog != null) {
+			accessLog.close();
+			accessLog = null;
+		}
 		if (log != null) {
 			log.close();
 		}
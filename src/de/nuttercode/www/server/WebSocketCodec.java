@@ -0,0 +1,431 @@
+package de.nuttercode.www.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * frame codec of a WebSocket connection (RFC 6455) with optional
+ * permessage-deflate (RFC 7692). the decoder accepts data in chunks of any
+ * size and keeps its buffers between messages, only buffers which have grown
+ * beyond {@link #RETAINED_BUFFER_SIZE} are dropped after a message. decoding
+ * is done by the reading thread only, encoding has to be serialized by the
+ * caller.
+ */
+class WebSocketCodec {
+
+	/**
+	 * receives the decoded messages and control frames
+	 */
+	interface Listener {
+
+		void onText(String message);
+
+		void onBinary(byte[] message);
+
+		void onPing(byte[] data);
+
+		void onPong(byte[] data);
+
+		/**
+		 * @param code   {@link WebSocketSession#NO_STATUS} if the frame had no body
+		 * @param reason
+		 */
+		void onClose(int code, String reason);
+
+	}
+
+	final static int OP_CONTINUATION = 0x0;
+	final static int OP_TEXT = 0x1;
+	final static int OP_BINARY = 0x2;
+	final static int OP_CLOSE = 0x8;
+	final static int OP_PING = 0x9;
+	final static int OP_PONG = 0xa;
+	final static int MAX_CONTROL_PAYLOAD = 125;
+	private final static int FIN = 0x80;
+	private final static int RSV1 = 0x40;
+	private final static int RSV2_RSV3 = 0x30;
+	private final static int OPCODE = 0x0f;
+	private final static int MASK = 0x80;
+	private final static int LENGTH = 0x7f;
+	private final static int LENGTH_16 = 126;
+	private final static int LENGTH_64 = 127;
+	private final static int MASK_SIZE = 4;
+	private final static int MAX_HEADER_SIZE = 14;
+	private final static int INITIAL_BUFFER_SIZE = 4 * 1024;
+	private final static int RETAINED_BUFFER_SIZE = 64 * 1024;
+	private final static int COMPRESSION_THRESHOLD = 128;
+	private final static byte[] DEFLATE_TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+	private final int maxMessageSize;
+	private final boolean deflate;
+	private final boolean serverNoContextTakeover;
+	private final boolean clientNoContextTakeover;
+	private final CharsetDecoder utf8;
+	private final byte[] header;
+	private final byte[] control;
+	private int headerLength;
+	private int headerSize;
+	private boolean inPayload;
+	private long payloadRemaining;
+	private int maskPosition;
+	private int frameOpcode;
+	private boolean frameFin;
+	private int controlLength;
+	/**
+	 * opcode of the message which is being received or -1
+	 */
+	private int messageOpcode;
+	private boolean messageCompressed;
+	private byte[] message;
+	private int messageLength;
+	private byte[] inflated;
+	private Inflater inflater;
+	private Deflater deflater;
+	private byte[] deflated;
+	private boolean ended;
+
+	/**
+	 * @param maxMessageSize          of a received message in bytes, after
+	 *                                decompression
+	 * @param deflate                 true if permessage-deflate has been
+	 *                                negotiated
+	 * @param serverNoContextTakeover reset the compressor after every message
+	 * @param clientNoContextTakeover the client resets its compressor after
+	 *                                every message
+	 */
+	WebSocketCodec(int maxMessageSize, boolean deflate, boolean serverNoContextTakeover,
+			boolean clientNoContextTakeover) {
+		this.maxMessageSize = maxMessageSize;
+		this.deflate = deflate;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		utf8 = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		header = new byte[MAX_HEADER_SIZE];
+		control = new byte[MAX_CONTROL_PAYLOAD];
+		headerLength = 0;
+		headerSize = 0;
+		inPayload = false;
+		payloadRemaining = 0;
+		maskPosition = 0;
+		frameOpcode = 0;
+		frameFin = false;
+		controlLength = 0;
+		messageOpcode = -1;
+		messageCompressed = false;
+		message = null;
+		messageLength = 0;
+		inflated = null;
+		inflater = null;
+		deflater = null;
+		deflated = null;
+		ended = false;
+	}
+
+	private static boolean isControl(int opcode) {
+		return (opcode & 0x8) != 0;
+	}
+
+	/**
+	 * @param code
+	 * @return true if the code may be sent in a close frame
+	 */
+	static boolean isValidCloseCode(int code) {
+		return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+	}
+
+	/**
+	 * decodes the next chunk of data read from the connection
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param listener called for every complete message and control frame
+	 * @throws WebSocketException if the client violated the protocol
+	 */
+	void decode(byte[] data, int offset, int length, Listener listener) throws WebSocketException {
+		int end = offset + length;
+		while (offset < end) {
+			if (!inPayload) {
+				header[headerLength++] = data[offset++];
+				if (headerLength == 2) {
+					if ((header[1] & MASK) == 0)
+						throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "frame is not masked");
+					headerSize = 2 + extendedLengthSize(header[1] & LENGTH) + MASK_SIZE;
+				}
+				if (headerLength < 2 || headerLength < headerSize)
+					continue;
+				startFrame();
+			} else {
+				int count = (int) Math.min(payloadRemaining, end - offset);
+				byte[] target;
+				int position;
+				if (isControl(frameOpcode)) {
+					target = control;
+					position = controlLength;
+					controlLength += count;
+				} else {
+					target = message;
+					position = messageLength;
+					messageLength += count;
+				}
+				int maskStart = headerSize - MASK_SIZE;
+				for (int i = 0; i < count; i++)
+					target[position + i] = (byte) (data[offset + i] ^ header[maskStart + (maskPosition++ & 3)]);
+				offset += count;
+				payloadRemaining -= count;
+			}
+			if (inPayload && payloadRemaining == 0)
+				endFrame(listener);
+		}
+	}
+
+	private static int extendedLengthSize(int length) {
+		return length == LENGTH_16 ? 2 : length == LENGTH_64 ? 8 : 0;
+	}
+
+	private void startFrame() throws WebSocketException {
+		int first = header[0] & 0xff;
+		int second = header[1] & 0xff;
+		if ((first & RSV2_RSV3) != 0)
+			throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "reserved bits are set");
+		frameFin = (first & FIN) != 0;
+		frameOpcode = first & OPCODE;
+		boolean compressed = (first & RSV1) != 0;
+		long payloadLength = second & LENGTH;
+		if (payloadLength == LENGTH_16)
+			payloadLength = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+		else if (payloadLength == LENGTH_64) {
+			payloadLength = 0;
+			for (int i = 2; i < 10; i++)
+				payloadLength = (payloadLength << 8) | (header[i] & 0xff);
+			if (payloadLength < 0)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "invalid payload length");
+		}
+		switch (frameOpcode) {
+		case OP_CLOSE:
+		case OP_PING:
+		case OP_PONG:
+			if (!frameFin || compressed || payloadLength > MAX_CONTROL_PAYLOAD)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "invalid control frame");
+			controlLength = 0;
+			break;
+		case OP_TEXT:
+		case OP_BINARY:
+			if (messageOpcode != -1)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "fragmented message was interrupted");
+			if (compressed && !deflate)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "compression has not been negotiated");
+			messageOpcode = frameOpcode;
+			messageCompressed = compressed;
+			messageLength = 0;
+			break;
+		case OP_CONTINUATION:
+			if (messageOpcode == -1)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "unexpected continuation frame");
+			if (compressed)
+				throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "continuation frame is compressed");
+			break;
+		default:
+			throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "unknown opcode " + frameOpcode);
+		}
+		if (!isControl(frameOpcode)) {
+			if (messageLength + payloadLength > maxMessageSize)
+				throw new WebSocketException(WebSocketSession.MESSAGE_TOO_BIG,
+						"message exceeds " + maxMessageSize + " bytes");
+			ensureMessageCapacity((int) (messageLength + payloadLength) + DEFLATE_TAIL.length);
+		}
+		payloadRemaining = payloadLength;
+		maskPosition = 0;
+		inPayload = true;
+	}
+
+	private void ensureMessageCapacity(int size) {
+		if (message == null)
+			message = new byte[Math.max(INITIAL_BUFFER_SIZE, size)];
+		else if (message.length < size)
+			message = Arrays.copyOf(message, Math.max(size,
+					(int) Math.min(2L * message.length, (long) maxMessageSize + DEFLATE_TAIL.length)));
+	}
+
+	private void endFrame(Listener listener) throws WebSocketException {
+		inPayload = false;
+		headerLength = 0;
+		headerSize = 0;
+		if (isControl(frameOpcode)) {
+			switch (frameOpcode) {
+			case OP_PING:
+				listener.onPing(Arrays.copyOf(control, controlLength));
+				break;
+			case OP_PONG:
+				listener.onPong(Arrays.copyOf(control, controlLength));
+				break;
+			default:
+				decodeClose(listener);
+				break;
+			}
+			return;
+		}
+		if (!frameFin)
+			return;
+		int opcode = messageOpcode;
+		messageOpcode = -1;
+		byte[] content = message;
+		int contentLength = messageLength;
+		if (messageCompressed) {
+			contentLength = inflate();
+			content = inflated;
+		}
+		if (opcode == OP_TEXT)
+			listener.onText(decodeText(content, 0, contentLength));
+		else
+			listener.onBinary(Arrays.copyOf(content, contentLength));
+		if (message.length > RETAINED_BUFFER_SIZE)
+			message = null;
+		if (inflated != null && inflated.length > RETAINED_BUFFER_SIZE)
+			inflated = null;
+	}
+
+	private void decodeClose(Listener listener) throws WebSocketException {
+		if (controlLength == 0) {
+			listener.onClose(WebSocketSession.NO_STATUS, "");
+			return;
+		}
+		if (controlLength == 1)
+			throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "invalid close frame");
+		int code = ((control[0] & 0xff) << 8) | (control[1] & 0xff);
+		if (!isValidCloseCode(code))
+			throw new WebSocketException(WebSocketSession.PROTOCOL_ERROR, "invalid close code " + code);
+		listener.onClose(code, decodeText(control, 2, controlLength - 2));
+	}
+
+	private String decodeText(byte[] data, int offset, int length) throws WebSocketException {
+		try {
+			return utf8.decode(ByteBuffer.wrap(data, offset, length)).toString();
+		} catch (CharacterCodingException e) {
+			throw new WebSocketException(WebSocketSession.INVALID_DATA, "text is not valid UTF-8");
+		}
+	}
+
+	/**
+	 * decompresses the received message into {@link #inflated}
+	 *
+	 * @return length of the decompressed message
+	 * @throws WebSocketException
+	 */
+	private synchronized int inflate() throws WebSocketException {
+		if (ended)
+			throw new WebSocketException(WebSocketSession.ABNORMAL_CLOSURE, "connection is closed");
+		if (inflater == null)
+			inflater = new Inflater(true);
+		if (inflated == null)
+			inflated = new byte[INITIAL_BUFFER_SIZE];
+		System.arraycopy(DEFLATE_TAIL, 0, message, messageLength, DEFLATE_TAIL.length);
+		inflater.setInput(message, 0, messageLength + DEFLATE_TAIL.length);
+		int length = 0;
+		try {
+			while (true) {
+				if (length == inflated.length) {
+					if (length > maxMessageSize)
+						throw new WebSocketException(WebSocketSession.MESSAGE_TOO_BIG,
+								"message exceeds " + maxMessageSize + " bytes");
+					inflated = Arrays.copyOf(inflated, (int) Math.min(2L * length, maxMessageSize + 1L));
+				}
+				int count = inflater.inflate(inflated, length, inflated.length - length);
+				length += count;
+				if (count == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+					break;
+			}
+		} catch (DataFormatException e) {
+			throw new WebSocketException(WebSocketSession.INVALID_DATA, "invalid compressed data");
+		}
+		if (length > maxMessageSize)
+			throw new WebSocketException(WebSocketSession.MESSAGE_TOO_BIG,
+					"message exceeds " + maxMessageSize + " bytes");
+		if (clientNoContextTakeover || inflater.finished())
+			inflater.reset();
+		return length;
+	}
+
+	/**
+	 * encodes a single unmasked frame. data frames are compressed if
+	 * permessage-deflate has been negotiated and the payload is not too small.
+	 *
+	 * @param opcode
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return the frame
+	 */
+	synchronized byte[] encode(int opcode, byte[] payload, int offset, int length) {
+		boolean compress = deflate && !isControl(opcode) && length >= COMPRESSION_THRESHOLD && !ended;
+		if (compress) {
+			length = deflate(payload, offset, length);
+			payload = deflated;
+			offset = 0;
+		}
+		int headerLength = length < LENGTH_16 ? 2 : length <= 0xffff ? 4 : 10;
+		byte[] frame = new byte[headerLength + length];
+		frame[0] = (byte) (FIN | (compress ? RSV1 : 0) | opcode);
+		if (length < LENGTH_16)
+			frame[1] = (byte) length;
+		else if (length <= 0xffff) {
+			frame[1] = (byte) LENGTH_16;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		} else {
+			frame[1] = (byte) LENGTH_64;
+			for (int i = 0; i < 8; i++)
+				frame[9 - i] = (byte) ((long) length >>> (8 * i));
+		}
+		System.arraycopy(payload, offset, frame, headerLength, length);
+		if (compress && deflated.length > RETAINED_BUFFER_SIZE)
+			deflated = null;
+		return frame;
+	}
+
+	/**
+	 * compresses the data into {@link #deflated}
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return length of the compressed data without the trailing empty block
+	 */
+	private int deflate(byte[] data, int offset, int length) {
+		if (deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (deflated == null)
+			deflated = new byte[INITIAL_BUFFER_SIZE];
+		deflater.setInput(data, offset, length);
+		int size = 0;
+		while (true) {
+			size += deflater.deflate(deflated, size, deflated.length - size, Deflater.SYNC_FLUSH);
+			if (size < deflated.length)
+				break;
+			deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+		}
+		if (serverNoContextTakeover)
+			deflater.reset();
+		return size - DEFLATE_TAIL.length;
+	}
+
+	/**
+	 * releases the compression state, the codec must not be used afterwards
+	 */
+	synchronized void end() {
+		ended = true;
+		if (inflater != null)
+			inflater.end();
+		if (deflater != null)
+			deflater.end();
+	}
+
+}
@@ -0,0 +1,28 @@
+package de.nuttercode.www.server;
+
+import java.io.IOException;
+
+/**
+ * failure of a WebSocket connection. the close code is sent to the client in
+ * the close frame, the codes are the ones defined in section 7.4.1 of RFC 6455.
+ */
+class WebSocketException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int closeCode;
+
+	/**
+	 * @param closeCode
+	 * @param message   sent as reason of the close frame
+	 */
+	WebSocketException(int closeCode, String message) {
+		super(message);
+		this.closeCode = closeCode;
+	}
+
+	int getCloseCode() {
+		return closeCode;
+	}
+
+}
@@ -0,0 +1,53 @@
+package de.nuttercode.www.server;
+
+/**
+ * receives the messages of WebSocket sessions opened with a
+ * {@link WebSocketResponse}. the callbacks of a session are called one after
+ * another on the worker threads of the server, never concurrently. pings are
+ * answered by the server.
+ */
+public interface WebSocketHandler {
+
+	/**
+	 * called before any message of the session
+	 *
+	 * @param session
+	 */
+	default void onOpen(WebSocketSession session) {
+	}
+
+	void onText(WebSocketSession session, String message);
+
+	/**
+	 * closes the session with {@link WebSocketSession#UNSUPPORTED_DATA} unless
+	 * overridden
+	 *
+	 * @param session
+	 * @param message
+	 */
+	default void onBinary(WebSocketSession session, byte[] message) {
+		session.close(WebSocketSession.UNSUPPORTED_DATA, "binary messages are not supported");
+	}
+
+	/**
+	 * called once after the connection has been closed
+	 *
+	 * @param session
+	 * @param code    sent by the client or {@link WebSocketSession#ABNORMAL_CLOSURE}
+	 *                if the connection was lost
+	 * @param reason
+	 */
+	default void onClose(WebSocketSession session, int code, String reason) {
+	}
+
+	/**
+	 * called if another callback threw an exception. the session is closed with
+	 * {@link WebSocketSession#INTERNAL_ERROR}.
+	 *
+	 * @param session
+	 * @param error
+	 */
+	default void onError(WebSocketSession session, Throwable error) {
+	}
+
+}
@@ -0,0 +1,196 @@
+package de.nuttercode.www.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * a single thread which reads all WebSocket connections with a selectable
+ * channel. the loop only decodes, the messages are handled on the worker
+ * threads of the server. all connections share one read buffer. output is
+ * written directly by the sending thread, the loop only finishes writes which
+ * did not fit into the socket buffer.
+ */
+class WebSocketLoop implements Closeable {
+
+	private final static int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * the non-blocking connection of a session
+	 */
+	private final class ChannelTransport implements WebSocketSession.Transport {
+
+		private final SocketChannel channel;
+		private final WebSocketSession session;
+		private SelectionKey key;
+
+		private ChannelTransport(SocketChannel channel, WebSocketSession session) {
+			this.channel = channel;
+			this.session = session;
+			key = null;
+		}
+
+		/**
+		 * registers the channel, must be called by the loop
+		 *
+		 * @param buffered data which has been read before the handover
+		 */
+		private void register(byte[] buffered) {
+			try {
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				session.terminate();
+				return;
+			}
+			session.open(this);
+			if (buffered.length > 0)
+				session.receive(buffered, 0, buffered.length);
+		}
+
+		private void read() {
+			readBuffer.clear();
+			int count;
+			try {
+				count = channel.read(readBuffer);
+			} catch (IOException e) {
+				count = -1;
+			}
+			if (count == -1)
+				session.terminate();
+			else if (count > 0)
+				session.receive(readBuffer.array(), 0, count);
+		}
+
+		@Override
+		public void flush() {
+			try {
+				if (!session.writeTo(channel))
+					execute(() -> setInterest(SelectionKey.OP_WRITE, true));
+			} catch (IOException e) {
+				session.terminate();
+			}
+		}
+
+		/**
+		 * called by the loop when the socket buffer has space again
+		 */
+		private void resumeWrite() {
+			setInterest(SelectionKey.OP_WRITE, false);
+			flush();
+		}
+
+		@Override
+		public void setReading(boolean reading) {
+			execute(() -> setInterest(SelectionKey.OP_READ, reading));
+		}
+
+		private void setInterest(int operation, boolean enabled) {
+			if (key == null || !key.isValid())
+				return;
+			int operations = key.interestOps();
+			key.interestOps(enabled ? operations | operation : operations & ~operation);
+		}
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * opens the selector and starts the loop
+	 *
+	 * @throws IOException
+	 */
+	WebSocketLoop() throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		Thread thread = new Thread(this::run, "websocket-loop");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ChannelTransport transport = (ChannelTransport) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable())
+							transport.resumeWrite();
+						if (key.isValid() && key.isReadable())
+							transport.read();
+					} catch (CancelledKeyException e) {
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * hands a connection over to the loop and opens the session
+	 *
+	 * @param channel  blocking mode is turned off
+	 * @param session
+	 * @param buffered data which has been read from the connection but not
+	 *                 processed
+	 * @throws IOException
+	 */
+	void register(SocketChannel channel, WebSocketSession session, byte[] buffered) throws IOException {
+		channel.configureBlocking(false);
+		ChannelTransport transport = new ChannelTransport(channel, session);
+		execute(() -> transport.register(buffered));
+	}
+
+	/**
+	 * closes all connections and stops the loop
+	 */
+	@Override
+	public void close() {
+		execute(() -> {
+			for (SelectionKey key : new ArrayList<>(selector.keys()))
+				((ChannelTransport) key.attachment()).session.terminate();
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		});
+	}
+
+}
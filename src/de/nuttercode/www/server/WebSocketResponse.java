@@ -0,0 +1,212 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * response to a WebSocket handshake (RFC 6455). if the request is a valid
+ * handshake the response switches the connection to the WebSocket protocol and
+ * the server hands it over to a {@link WebSocketSession}, otherwise it is sent
+ * as an ordinary error response. a subprotocol can be selected by setting the
+ * Sec-WebSocket-Protocol field.
+ */
+public class WebSocketResponse extends WebResponse {
+
+	private final static String HF_SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+	private final static String HF_SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+	private final static String HF_SEC_WEBSOCKET_ACCEPT = "Sec-WebSocket-Accept";
+	private final static String HF_SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+	private final static String WEBSOCKET = "websocket";
+	private final static String UPGRADE = "upgrade";
+	private final static String VERSION = "13";
+	private final static String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private final static int KEY_LENGTH = 16;
+	private final static String PERMESSAGE_DEFLATE = "permessage-deflate";
+	private final static String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private final static String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private final static String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+	private final static String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private final static String MAX_WINDOW_BITS = "15";
+
+	/**
+	 * @param request
+	 * @return true if the client asks to upgrade the connection to WebSocket
+	 */
+	public static boolean isUpgrade(@NotNull WebRequest request) {
+		Assurance.assureNotNull(request);
+		return hasToken(request.getHeaderField(WebServer.HF_UPGRADE), WEBSOCKET);
+	}
+
+	private static boolean hasToken(String value, String token) {
+		if (value == null)
+			return false;
+		for (String element : value.split(","))
+			if (element.trim().equalsIgnoreCase(token))
+				return true;
+		return false;
+	}
+
+	private static boolean isValidKey(String key) {
+		if (key == null)
+			return false;
+		try {
+			return Base64.getDecoder().decode(key).length == KEY_LENGTH;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static String accept(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final WebSocketHandler handler;
+	private final boolean accepted;
+	private final String extensionOffers;
+	private boolean deflate;
+	private boolean serverNoContextTakeover;
+	private boolean clientNoContextTakeover;
+
+	/**
+	 * @param request the handshake
+	 * @param handler receives the messages of the session
+	 */
+	public WebSocketResponse(@NotNull WebRequest request, @NotNull WebSocketHandler handler) {
+		super(ResponseCode.SWITCHING_PROTOCOLS.getCode(), ResponseCode.SWITCHING_PROTOCOLS.getMessage());
+		Assurance.assureNotNull(request);
+		Assurance.assureNotNull(handler);
+		this.handler = handler;
+		String key = request.getHeaderField(HF_SEC_WEBSOCKET_KEY);
+		if (request.getMethod() != RequestMethod.GET || !isUpgrade(request)
+				|| !hasToken(request.getHeaderField(WebServer.HF_CONNECTION), UPGRADE) || !isValidKey(key)) {
+			reject(ResponseCode.BAD_REQUEST);
+			accepted = false;
+		} else if (!VERSION.equals(request.getHeaderField(HF_SEC_WEBSOCKET_VERSION))) {
+			reject(ResponseCode.UPGRADE_REQUIRED);
+			setHeaderField(HF_SEC_WEBSOCKET_VERSION, VERSION);
+			accepted = false;
+		} else {
+			setHeaderField(WebServer.HF_UPGRADE, WEBSOCKET);
+			setHeaderField(WebServer.HF_CONNECTION, WebServer.HF_UPGRADE);
+			setHeaderField(HF_SEC_WEBSOCKET_ACCEPT, accept(key));
+			accepted = true;
+		}
+		extensionOffers = request.getHeaderField(HF_SEC_WEBSOCKET_EXTENSIONS);
+		deflate = false;
+		serverNoContextTakeover = false;
+		clientNoContextTakeover = false;
+	}
+
+	private void reject(ResponseCode code) {
+		setStatusCode(code.getCode());
+		setStatusReason(code.getMessage());
+		try {
+			setBody("<html><h1>" + code.getMessage() + "</h1></html>");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return true if the request is a valid handshake
+	 */
+	public boolean isAccepted() {
+		return accepted;
+	}
+
+	WebSocketHandler getHandler() {
+		return handler;
+	}
+
+	/**
+	 * accepts the first permessage-deflate offer of the client whose parameters
+	 * can be met. the compressor always uses a window of 15 bits, offers which
+	 * limit the window of the server are declined.
+	 *
+	 * @param enabled false to decline all offers
+	 */
+	void negotiate(boolean enabled) {
+		if (!enabled || !accepted || extensionOffers == null)
+			return;
+		for (String offer : extensionOffers.split(",")) {
+			String[] parameters = offer.split(";");
+			if (!parameters[0].trim().equalsIgnoreCase(PERMESSAGE_DEFLATE))
+				continue;
+			Set<String> names = new HashSet<>();
+			boolean acceptable = true;
+			StringBuilder extension = new StringBuilder(PERMESSAGE_DEFLATE);
+			for (int i = 1; i < parameters.length && acceptable; i++) {
+				String[] parameter = parameters[i].split("=", 2);
+				String name = parameter[0].trim().toLowerCase();
+				String value = parameter.length == 2 ? parameter[1].trim().replace("\"", "") : null;
+				acceptable = names.add(name);
+				switch (name) {
+				case SERVER_NO_CONTEXT_TAKEOVER:
+				case CLIENT_NO_CONTEXT_TAKEOVER:
+					acceptable &= value == null;
+					extension.append("; ").append(name);
+					break;
+				case SERVER_MAX_WINDOW_BITS:
+					acceptable &= MAX_WINDOW_BITS.equals(value);
+					extension.append("; ").append(name).append('=').append(MAX_WINDOW_BITS);
+					break;
+				case CLIENT_MAX_WINDOW_BITS:
+					break;
+				default:
+					acceptable = false;
+					break;
+				}
+			}
+			if (acceptable) {
+				deflate = true;
+				serverNoContextTakeover = names.contains(SERVER_NO_CONTEXT_TAKEOVER);
+				clientNoContextTakeover = names.contains(CLIENT_NO_CONTEXT_TAKEOVER);
+				setHeaderField(HF_SEC_WEBSOCKET_EXTENSIONS, extension.toString());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param maxMessageSize in bytes
+	 * @return a codec with the negotiated extension
+	 */
+	WebSocketCodec createCodec(int maxMessageSize) {
+		return new WebSocketCodec(maxMessageSize, deflate, serverNoContextTakeover, clientNoContextTakeover);
+	}
+
+	/**
+	 * writes only the head if the handshake has been accepted
+	 */
+	@Override
+	public void sendTo(OutputStream outputStream) throws IOException {
+		if (!accepted) {
+			super.sendTo(outputStream);
+			return;
+		}
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
+		writer.write(getStatusLine());
+		writer.write(WebServer.CRLF);
+		writeHeaderFields(writer);
+		writer.flush();
+		outputStream.flush();
+	}
+
+}
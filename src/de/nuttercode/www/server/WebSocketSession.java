@@ -0,0 +1,609 @@
+package de.nuttercode.www.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.nuttercode.util.assurance.Assurance;
+import de.nuttercode.util.assurance.NotNull;
+
+/**
+ * an open WebSocket connection. messages can be sent from any thread, they are
+ * encoded immediately and queued. the queue is written without blocking the
+ * sender, a client which does not read and lets the queue grow beyond 4 MiB
+ * is disconnected. received messages are passed to the
+ * {@link WebSocketHandler} on the worker threads of the server, reading pauses
+ * while too many of them are waiting.
+ */
+public class WebSocketSession {
+
+	public final static int NORMAL_CLOSURE = 1000;
+	public final static int GOING_AWAY = 1001;
+	public final static int PROTOCOL_ERROR = 1002;
+	public final static int UNSUPPORTED_DATA = 1003;
+	public final static int NO_STATUS = 1005;
+	public final static int ABNORMAL_CLOSURE = 1006;
+	public final static int INVALID_DATA = 1007;
+	public final static int POLICY_VIOLATION = 1008;
+	public final static int MESSAGE_TOO_BIG = 1009;
+	public final static int INTERNAL_ERROR = 1011;
+
+	/**
+	 * the connection of a session
+	 */
+	interface Transport {
+
+		/**
+		 * writes the queued output of the session. called by the thread which
+		 * queued output while no write was in progress.
+		 */
+		void flush();
+
+		/**
+		 * @param reading false to stop reading until it is enabled again
+		 */
+		void setReading(boolean reading);
+
+		/**
+		 * closes the connection. may be called while a read or write is in
+		 * progress.
+		 */
+		void close();
+
+	}
+
+	/**
+	 * fallback for connections without a selectable channel, e.g. TLS. a task on
+	 * the executor reads with blocking calls, writes are done by another task
+	 * while output is queued.
+	 */
+	static class StreamTransport implements Transport {
+
+		private final static int BUFFER_SIZE = 16 * 1024;
+
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final Executor executor;
+		private final BufferArena arena;
+		private WebSocketSession session;
+		private boolean paused;
+
+		/**
+		 * @param socket
+		 * @param in       positioned after the handshake
+		 * @param executor
+		 * @param arena    provides the read buffer
+		 * @throws IOException
+		 */
+		StreamTransport(Socket socket, InputStream in, Executor executor, BufferArena arena) throws IOException {
+			this.socket = socket;
+			this.in = in;
+			this.executor = executor;
+			this.arena = arena;
+			out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+			session = null;
+			paused = false;
+		}
+
+		/**
+		 * opens the session and starts reading
+		 *
+		 * @param session
+		 */
+		void start(WebSocketSession session) {
+			this.session = session;
+			session.open(this);
+			try {
+				executor.execute(this::read);
+			} catch (RejectedExecutionException e) {
+				session.terminate();
+			}
+		}
+
+		private void read() {
+			byte[] buffer = arena.acquire(BUFFER_SIZE);
+			try {
+				int count;
+				while (awaitReading() && (count = in.read(buffer)) != -1)
+					session.receive(buffer, 0, count);
+			} catch (IOException e) {
+			} finally {
+				arena.recycle(buffer);
+				session.terminate();
+			}
+		}
+
+		private synchronized boolean awaitReading() {
+			try {
+				while (paused && !socket.isClosed())
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return !socket.isClosed();
+		}
+
+		@Override
+		public void flush() {
+			try {
+				executor.execute(this::write);
+			} catch (RejectedExecutionException e) {
+				session.terminate();
+			}
+		}
+
+		private void write() {
+			try {
+				do {
+					ByteBuffer buffer;
+					while ((buffer = session.pollOutput()) != null)
+						out.write(buffer.array(), 0, buffer.limit());
+					out.flush();
+				} while (!session.endWrite());
+			} catch (IOException e) {
+				session.terminate();
+			}
+		}
+
+		@Override
+		public synchronized void setReading(boolean reading) {
+			paused = !reading;
+			notifyAll();
+		}
+
+		@Override
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+	}
+
+	private final static int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+	private final static int MAX_PENDING_CALLBACKS = 64;
+	private final static int CLOSE_TIMEOUT = 5_000;
+	private final static int GATHER_SIZE = 16;
+
+	private final WebRequest request;
+	private final WebSocketHandler handler;
+	private final WebSocketCodec codec;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final WebSocketCodec.Listener receiver;
+	private final ArrayDeque<ByteBuffer> output;
+	private final ArrayDeque<Runnable> callbacks;
+	private final ByteBuffer[] gather;
+	private Transport transport;
+	private Runnable closeListener;
+	private long queuedBytes;
+	private boolean writing;
+	private boolean delivering;
+	private boolean readingPaused;
+	private boolean closeSent;
+	private boolean closeAfterFlush;
+	private boolean closeNotified;
+	private volatile boolean receiving;
+	private volatile boolean closed;
+	private volatile int closeCode;
+	private volatile String closeReason;
+
+	WebSocketSession(WebRequest request, WebSocketHandler handler, WebSocketCodec codec, Executor executor,
+			ScheduledExecutorService scheduler) {
+		this.request = request;
+		this.handler = handler;
+		this.codec = codec;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		receiver = new Receiver();
+		output = new ArrayDeque<>();
+		callbacks = new ArrayDeque<>();
+		gather = new ByteBuffer[GATHER_SIZE];
+		transport = null;
+		closeListener = null;
+		queuedBytes = 0;
+		writing = false;
+		delivering = false;
+		readingPaused = false;
+		closeSent = false;
+		closeAfterFlush = false;
+		closeNotified = false;
+		receiving = true;
+		closed = false;
+		closeCode = ABNORMAL_CLOSURE;
+		closeReason = "";
+	}
+
+	/**
+	 * passes decoded messages and control frames to the session
+	 */
+	private final class Receiver implements WebSocketCodec.Listener {
+
+		@Override
+		public void onText(String message) {
+			dispatch(() -> handler.onText(WebSocketSession.this, message));
+		}
+
+		@Override
+		public void onBinary(byte[] message) {
+			dispatch(() -> handler.onBinary(WebSocketSession.this, message));
+		}
+
+		@Override
+		public void onPing(byte[] data) {
+			enqueue(WebSocketCodec.OP_PONG, data);
+		}
+
+		@Override
+		public void onPong(byte[] data) {
+		}
+
+		@Override
+		public void onClose(int code, String reason) {
+			receiving = false;
+			closeCode = code;
+			closeReason = reason;
+			if (code == NO_STATUS)
+				enqueue(WebSocketCodec.OP_CLOSE, new byte[0]);
+			else
+				enqueue(WebSocketCodec.OP_CLOSE, closePayload(code, ""));
+			closeAfterFlush();
+		}
+
+	}
+
+	/**
+	 * connects the session to its transport and calls
+	 * {@link WebSocketHandler#onOpen(WebSocketSession)}
+	 *
+	 * @param transport
+	 */
+	void open(Transport transport) {
+		this.transport = transport;
+		dispatch(() -> handler.onOpen(this));
+	}
+
+	/**
+	 * @param listener called once when the connection has been closed
+	 */
+	void onTerminate(Runnable listener) {
+		closeListener = listener;
+	}
+
+	/**
+	 * decodes data read from the connection. called by one thread at a time.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	void receive(byte[] data, int offset, int length) {
+		if (!receiving || closed)
+			return;
+		try {
+			codec.decode(data, offset, length, receiver);
+		} catch (WebSocketException e) {
+			fail(e.getCloseCode(), e.getMessage());
+		}
+	}
+
+	/**
+	 * sends a close frame with the code and closes the connection as soon as it
+	 * has been written
+	 *
+	 * @param code
+	 * @param reason
+	 */
+	private void fail(int code, String reason) {
+		receiving = false;
+		closeCode = code;
+		closeReason = reason;
+		if (enqueue(WebSocketCodec.OP_CLOSE, closePayload(code, reason)))
+			closeAfterFlush();
+		else
+			terminate();
+	}
+
+	private void closeAfterFlush() {
+		boolean terminate;
+		synchronized (this) {
+			closeAfterFlush = true;
+			terminate = !writing;
+		}
+		if (terminate)
+			terminate();
+	}
+
+	private static byte[] closePayload(int code, String reason) {
+		byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(text.length, WebSocketCodec.MAX_CONTROL_PAYLOAD - 2);
+		byte[] payload = new byte[2 + length];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, length);
+		return payload;
+	}
+
+	private boolean enqueue(int opcode, byte[] payload) {
+		boolean overflow = false;
+		boolean flush = false;
+		synchronized (this) {
+			if (closed || closeSent)
+				return false;
+			if (queuedBytes > 0 && queuedBytes + payload.length > MAX_QUEUED_BYTES)
+				overflow = true;
+			else {
+				byte[] frame = codec.encode(opcode, payload, 0, payload.length);
+				output.add(ByteBuffer.wrap(frame));
+				queuedBytes += frame.length;
+				if (opcode == WebSocketCodec.OP_CLOSE)
+					closeSent = true;
+				if (!writing) {
+					writing = true;
+					flush = true;
+				}
+			}
+		}
+		if (overflow) {
+			terminate();
+			return false;
+		}
+		if (flush)
+			transport.flush();
+		return true;
+	}
+
+	/**
+	 * @return the next queued frame or null if the queue is empty
+	 */
+	synchronized ByteBuffer pollOutput() {
+		ByteBuffer buffer = output.poll();
+		if (buffer != null)
+			queuedBytes -= buffer.capacity();
+		return buffer;
+	}
+
+	/**
+	 * writes as many queued frames as possible without blocking
+	 *
+	 * @param channel non-blocking
+	 * @return true if the queue has been written completely and the write has
+	 *         ended, see {@link #endWrite()}
+	 * @throws IOException
+	 */
+	boolean writeTo(GatheringByteChannel channel) throws IOException {
+		do {
+			synchronized (this) {
+				while (!output.isEmpty()) {
+					int count = 0;
+					for (ByteBuffer buffer : output) {
+						gather[count++] = buffer;
+						if (count == gather.length)
+							break;
+					}
+					try {
+						channel.write(gather, 0, count);
+					} finally {
+						Arrays.fill(gather, 0, count, null);
+					}
+					int written = 0;
+					while (!output.isEmpty() && !output.peek().hasRemaining()) {
+						queuedBytes -= output.poll().capacity();
+						written++;
+					}
+					if (written < count)
+						return false;
+				}
+			}
+		} while (!endWrite());
+		return true;
+	}
+
+	/**
+	 * ends the write in progress if the queue is empty. if the session is
+	 * closing the connection is closed.
+	 *
+	 * @return false if more output has been queued and the writer has to
+	 *         continue
+	 */
+	boolean endWrite() {
+		boolean terminate;
+		synchronized (this) {
+			if (!output.isEmpty())
+				return false;
+			writing = false;
+			terminate = closeAfterFlush;
+		}
+		if (terminate)
+			terminate();
+		return true;
+	}
+
+	/**
+	 * closes the connection without a close handshake and calls
+	 * {@link WebSocketHandler#onClose(WebSocketSession, int, String)}
+	 */
+	void terminate() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			receiving = false;
+			output.clear();
+			queuedBytes = 0;
+			codec.end();
+		}
+		if (transport != null)
+			transport.close();
+		int code = closeCode;
+		String reason = closeReason;
+		dispatch(() -> handler.onClose(this, code, reason), true);
+		if (closeListener != null)
+			closeListener.run();
+	}
+
+	private void dispatch(Runnable callback) {
+		dispatch(callback, false);
+	}
+
+	/**
+	 * runs the callbacks of the session one after another on the executor
+	 *
+	 * @param callback
+	 * @param last     true for the close callback, callbacks dispatched later are
+	 *                 dropped
+	 */
+	private void dispatch(Runnable callback, boolean last) {
+		boolean pause = false;
+		boolean start = false;
+		synchronized (this) {
+			if (closeNotified)
+				return;
+			closeNotified = last;
+			callbacks.add(callback);
+			if (!readingPaused && callbacks.size() >= MAX_PENDING_CALLBACKS) {
+				readingPaused = true;
+				pause = true;
+			}
+			if (!delivering) {
+				delivering = true;
+				start = true;
+			}
+		}
+		if (pause && transport != null)
+			transport.setReading(false);
+		if (start) {
+			try {
+				executor.execute(this::deliver);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					delivering = false;
+				}
+			}
+		}
+	}
+
+	private void deliver() {
+		while (true) {
+			Runnable callback;
+			boolean resume = false;
+			synchronized (this) {
+				callback = callbacks.poll();
+				if (callback == null) {
+					delivering = false;
+					return;
+				}
+				if (readingPaused && callbacks.size() <= MAX_PENDING_CALLBACKS / 2) {
+					readingPaused = false;
+					resume = true;
+				}
+			}
+			if (resume)
+				transport.setReading(true);
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				try {
+					handler.onError(this, e);
+				} catch (RuntimeException ignored) {
+				}
+				fail(INTERNAL_ERROR, "");
+			}
+		}
+	}
+
+	/**
+	 * @param message
+	 * @return false if the session is closing or the client has been
+	 *         disconnected because it did not read its messages
+	 */
+	public boolean sendText(@NotNull String message) {
+		Assurance.assureNotNull(message);
+		return enqueue(WebSocketCodec.OP_TEXT, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param message must not be modified afterwards
+	 * @return see {@link #sendText(String)}
+	 */
+	public boolean sendBinary(@NotNull byte[] message) {
+		Assurance.assureNotNull(message);
+		return enqueue(WebSocketCodec.OP_BINARY, message);
+	}
+
+	/**
+	 * @param data at most 125 bytes
+	 * @return see {@link #sendText(String)}
+	 */
+	public boolean ping(@NotNull byte[] data) {
+		Assurance.assureNotNull(data);
+		if (data.length > WebSocketCodec.MAX_CONTROL_PAYLOAD)
+			throw new IllegalArgumentException("ping data exceeds " + WebSocketCodec.MAX_CONTROL_PAYLOAD + " bytes");
+		return enqueue(WebSocketCodec.OP_PING, data);
+	}
+
+	/**
+	 * starts the close handshake with {@link #NORMAL_CLOSURE}
+	 */
+	public void close() {
+		close(NORMAL_CLOSURE, "");
+	}
+
+	/**
+	 * starts the close handshake. the connection is closed when the client
+	 * answers, but after 5 seconds at the latest.
+	 *
+	 * @param code   a code defined in RFC 6455 or in the range 3000 to 4999
+	 * @param reason truncated to 123 bytes
+	 */
+	public void close(int code, @NotNull String reason) {
+		Assurance.assureNotNull(reason);
+		if (!WebSocketCodec.isValidCloseCode(code))
+			throw new IllegalArgumentException("invalid close code: " + code);
+		if (!enqueue(WebSocketCodec.OP_CLOSE, closePayload(code, reason)))
+			return;
+		try {
+			scheduler.schedule(this::terminate, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			terminate();
+		}
+	}
+
+	/**
+	 * @return false if the close handshake has started or the connection has
+	 *         been closed
+	 */
+	public synchronized boolean isOpen() {
+		return !closed && !closeSent;
+	}
+
+	/**
+	 * @return the handshake request
+	 */
+	public @NotNull WebRequest getRequest() {
+		return request;
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketSession [uri=" + request.getReducedUri() + ", open=" + isOpen() + "]";
+	}
+
+}
@@ -0,0 +1,101 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ChunkedInputStreamTest {
+
+	private static InputStream stream(String raw) {
+		return new ByteArrayInputStream(raw.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static String decode(InputStream in) throws IOException {
+		ChunkedInputStream chunked = new ChunkedInputStream(in);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[3];
+		int read;
+		while ((read = chunked.read(buffer, 0, buffer.length)) != -1)
+			out.write(buffer, 0, read);
+		assertEquals(-1, chunked.read());
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static void assertMalformed(String raw, Class<? extends IOException> expected) {
+		try {
+			decode(stream(raw));
+			fail("decoded a malformed body");
+		} catch (IOException e) {
+			assertEquals(expected, e.getClass());
+		}
+	}
+
+	@Test
+	public void decodesChunks() throws IOException {
+		assertEquals("hello world", decode(stream("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n")));
+		assertEquals("", decode(stream("0\r\n\r\n")));
+		assertEquals("0123456789abcdef", decode(stream("10\r\n0123456789abcdef\r\n0\r\n\r\n")));
+	}
+
+	@Test
+	public void skipsExtensionsAndTrailers() throws IOException {
+		assertEquals("hello", decode(stream("5;name=value\r\nhello\r\n0;last\r\nExpires: never\r\nX-Sum: 1\r\n\r\n")));
+	}
+
+	@Test
+	public void acceptsBareLineFeeds() throws IOException {
+		assertEquals("hello", decode(stream("5\nhello\n0\n\n")));
+	}
+
+	@Test
+	public void endsAtLastChunk() throws IOException {
+		InputStream in = stream("1\r\na\r\n0\r\n\r\nHTTP/1.1 200 OK\r\n");
+		assertEquals("a", decode(in));
+		// the underlying stream is positioned at the next message
+		byte[] next = new byte[8];
+		assertEquals(8, in.read(next));
+		assertEquals("HTTP/1.1", new String(next, StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void readsSingleBytes() throws IOException {
+		ChunkedInputStream chunked = new ChunkedInputStream(stream("2\r\n\u00ffa\r\n0\r\n\r\n"));
+		assertEquals(0xff, chunked.read());
+		assertEquals('a', chunked.read());
+		assertEquals(-1, chunked.read());
+	}
+
+	@Test
+	public void rejectsMalformedChunks() {
+		assertMalformed("x\r\nhello\r\n0\r\n\r\n", ProtocolException.class);
+		assertMalformed("-5\r\nhello\r\n0\r\n\r\n", ProtocolException.class);
+		assertMalformed("10000000000000000\r\n", ProtocolException.class);
+		// the chunk is longer than its size
+		assertMalformed("4\r\nhello\r\n0\r\n\r\n", ProtocolException.class);
+	}
+
+	@Test
+	public void rejectsTruncatedBodies() {
+		assertMalformed("5\r\nhel", EOFException.class);
+		assertMalformed("5\r\nhello\r\n", EOFException.class);
+		assertMalformed("5\r\nhello\r\n0\r\n", EOFException.class);
+	}
+
+	@Test
+	public void rejectsLongLines() {
+		StringBuilder raw = new StringBuilder("5;");
+		for (int i = 0; i < 8 * 1024; i++)
+			raw.append('x');
+		assertMalformed(raw.append("\r\nhello\r\n0\r\n\r\n").toString(), ProtocolException.class);
+	}
+
+}
@@ -0,0 +1,160 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FormDataReaderTest {
+
+	private final static String BOUNDARY = "----boundary7MA4YWxk";
+
+	private static WebRequest request(String contentType, byte[] body) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		raw.write(("POST /upload HTTP/1.1\r\nContent-Type: " + contentType + "\r\nContent-Length: " + body.length
+				+ "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		raw.write(body);
+		return new WebRequest(new ByteArrayInputStream(raw.toByteArray()));
+	}
+
+	private static WebRequest multipart(String body) throws IOException {
+		return request("multipart/form-data; boundary=" + BOUNDARY, body.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static String part(String name, String content) {
+		return "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + content + "\r\n";
+	}
+
+	private static String end() {
+		return "--" + BOUNDARY + "--\r\n";
+	}
+
+	private static void assertRejected(WebRequest request, ResponseCode code, long maxPartSize) throws IOException {
+		try (FormDataReader reader = new FormDataReader(request)) {
+			reader.setMaxPartSize(maxPartSize);
+			while (reader.next() != null)
+				;
+			fail("read a malformed form");
+		} catch (RequestRejectedException e) {
+			assertEquals(code, e.getResponseCode());
+		}
+	}
+
+	@Test
+	public void readsParts() throws IOException {
+		String body = "preamble\r\n" + part("title", "a \"quoted\" title") + "--" + BOUNDARY
+				+ "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a;b.txt\"\r\nContent-Type: text/plain\r\n\r\n"
+				+ "line 1\r\nline 2\r\n" + end() + "epilogue";
+		try (FormDataReader reader = new FormDataReader(multipart(body))) {
+			FormPart title = reader.next();
+			assertEquals("title", title.getName());
+			assertNull(title.getFileName());
+			assertEquals("a \"quoted\" title", title.getString());
+			FormPart file = reader.next();
+			assertEquals("file", file.getName());
+			assertEquals("a;b.txt", file.getFileName());
+			assertEquals("text/plain", file.getContentType());
+			assertEquals("line 1\r\nline 2", file.getString());
+			assertNull(reader.next());
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void keepsPrefixesOfDelimiter() throws IOException {
+		String content = "\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-\r\r\n--x";
+		try (FormDataReader reader = new FormDataReader(multipart(part("field", content) + end()))) {
+			assertEquals(content, reader.next().getString());
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void findsDelimiterAcrossBuffers() throws IOException {
+		// the reader fills a buffer of 8 KiB, the delimiter is split at every
+		// position across two fills
+		for (int length = 8 * 1024 - 120; length < 8 * 1024 + 20; length++) {
+			StringBuilder content = new StringBuilder(length);
+			for (int i = 0; i < length; i++)
+				content.append((char) ('a' + i % 26));
+			try (FormDataReader reader = new FormDataReader(
+					multipart(part("field", content.toString()) + part("next", "x") + end()))) {
+				assertEquals(content.toString(), reader.next().getString());
+				assertEquals("x", reader.next().getString());
+				assertNull(reader.next());
+			}
+		}
+	}
+
+	@Test
+	public void writesLargePartsToFile() throws IOException {
+		byte[] content = new byte[100 * 1024];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) i;
+		String body = part("file", new String(content, StandardCharsets.ISO_8859_1)) + end();
+		File file;
+		try (FormDataReader reader = new FormDataReader(multipart(body))) {
+			reader.setMemoryThreshold(1024);
+			FormPart part = reader.next();
+			assertFalse(part.isInMemory());
+			assertEquals(content.length, part.getSize());
+			assertArrayEquals(content, part.getBytes());
+			file = part.getFile();
+			assertTrue(file.exists());
+		}
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void rejectsMalformedBodies() throws IOException {
+		assertRejected(multipart(part("field", "value")), ResponseCode.BAD_REQUEST, 1024);
+		assertRejected(multipart("--" + BOUNDARY + "\r\nContent-Type: text/plain\r\n\r\nvalue\r\n" + end()),
+				ResponseCode.BAD_REQUEST, 1024);
+		assertRejected(multipart("--" + BOUNDARY + "\r\nContent-Disposition: form-data\r\n\r\nvalue\r\n" + end()),
+				ResponseCode.BAD_REQUEST, 1024);
+		assertRejected(multipart("--" + BOUNDARY + "x\r\n"), ResponseCode.BAD_REQUEST, 1024);
+		assertRejected(multipart(part("field", "0123456789") + end()), ResponseCode.PAYLOAD_TOO_LARGE, 5);
+		try {
+			new FormDataReader(request("multipart/form-data", new byte[0]));
+			fail("accepted a multipart body without boundary");
+		} catch (RequestRejectedException e) {
+			assertEquals(ResponseCode.BAD_REQUEST, e.getResponseCode());
+		}
+	}
+
+	@Test
+	public void readsUrlEncodedFields() throws IOException {
+		byte[] body = "a=1&b=x%20y+z&&c&d=%C3%A4".getBytes(StandardCharsets.ISO_8859_1);
+		try (FormDataReader reader = new FormDataReader(request("application/x-www-form-urlencoded", body))) {
+			String[] expected = { "a", "1", "b", "x y z", "c", "", "d", "\u00e4" };
+			for (int i = 0; i < expected.length; i += 2) {
+				FormPart part = reader.next();
+				assertEquals(expected[i], part.getName());
+				assertEquals(expected[i + 1], part.getString());
+			}
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void parsesParameters() {
+		Map<String, String> parameters = FormDataReader
+				.parseParameters("form-data; NAME=\"a \\\"b\\\"\"; filename=\"c;d.txt\";empty; size=3");
+		assertEquals("a \"b\"", parameters.get("name"));
+		assertEquals("c;d.txt", parameters.get("filename"));
+		assertEquals("3", parameters.get("size"));
+		assertEquals(3, parameters.size());
+	}
+
+}
@@ -0,0 +1,147 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * the examples are the ones of appendix C of RFC 7541
+ */
+public class HpackTest {
+
+	private static byte[] hex(String hex) {
+		hex = hex.replace(" ", "");
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+
+	private static void assertHeaders(List<String[]> headers, String... expected) {
+		assertEquals(expected.length / 2, headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			assertEquals(expected[2 * i], headers.get(i)[0]);
+			assertEquals(expected[2 * i + 1], headers.get(i)[1]);
+		}
+	}
+
+	private static void assertCompressionError(HpackDecoder decoder, byte[] block) {
+		try {
+			decoder.decode(block);
+			fail("decoded a malformed block");
+		} catch (Http2Exception e) {
+			assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+			assertEquals(true, e.isConnectionError());
+		}
+	}
+
+	@Test
+	public void writesIntegersWithPrefix() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.writeInteger(out, 0x00, 5, 10);
+		Hpack.writeInteger(out, 0x00, 5, 1337);
+		Hpack.writeInteger(out, 0x80, 7, 42);
+		assertArrayEquals(hex("0a 1f9a0a aa"), out.toByteArray());
+	}
+
+	@Test
+	public void decodesRequestsWithDynamicTable() throws Http2Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		assertHeaders(decoder.decode(hex("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d")), ":method", "GET",
+				":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertHeaders(decoder.decode(hex("8286 84be 5808 6e6f 2d63 6163 6865")), ":method", "GET", ":scheme",
+				"http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+		assertHeaders(
+				decoder.decode(
+						hex("8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value");
+	}
+
+	@Test
+	public void decodesHuffmanStrings() throws Http2Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		assertHeaders(decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")), ":method", "GET",
+				":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertHeaders(decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")), ":method", "GET", ":scheme", "http",
+				":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+		assertHeaders(decoder.decode(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value");
+	}
+
+	@Test
+	public void rejectsInvalidHuffmanPadding() {
+		// '0' is 00000, the padding has to be the most significant bits of EOS
+		try {
+			Hpack.decodeHuffman(hex("00"), 0, 1);
+			fail("accepted zero padding");
+		} catch (Http2Exception e) {
+			assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+		}
+		try {
+			Hpack.decodeHuffman(hex("ffff"), 0, 2);
+			fail("accepted padding longer than 7 bits");
+		} catch (Http2Exception e) {
+			assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void evictsOldestEntries() throws Http2Exception {
+		HpackDecoder decoder = new HpackDecoder(100, 64 * 1024);
+		// custom-key: custom-value takes 54 bytes, a second entry of 54 bytes
+		// evicts it
+		decoder.decode(hex("400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+		assertHeaders(decoder.decode(hex("be")), "custom-key", "custom-value");
+		decoder.decode(hex("400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 66"));
+		assertHeaders(decoder.decode(hex("be")), "custom-key", "custom-valuf");
+		assertCompressionError(decoder, hex("bf"));
+	}
+
+	@Test
+	public void appliesTableSizeUpdates() throws Http2Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		decoder.decode(hex("400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+		// a size of 0 empties the table
+		decoder.decode(hex("20"));
+		assertCompressionError(decoder, hex("be"));
+		// 5000 is above the advertised limit
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("3f e926"));
+		// updates are only allowed at the beginning of a block
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("82 20"));
+	}
+
+	@Test
+	public void rejectsMalformedBlocks() {
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("80"));
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("be"));
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("400a 6375 7374"));
+		assertCompressionError(new HpackDecoder(4096, 64 * 1024), hex("ff ffffffff0f"));
+		assertCompressionError(new HpackDecoder(4096, 40),
+				hex("400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+	}
+
+	@Test
+	public void encodedBlocksAreDecodable() throws Http2Exception {
+		HpackEncoder encoder = new HpackEncoder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.writeStatus(out, 404);
+		encoder.writeStatus(out, 418);
+		encoder.writeHeader(out, "content-type", "text/html");
+		encoder.writeHeader(out, "x-name", "v\u00e4lue");
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			longValue.append('a');
+		encoder.writeHeader(out, "x-long", longValue.toString());
+		List<String[]> headers = new HpackDecoder(4096, 64 * 1024).decode(out.toByteArray());
+		assertHeaders(headers, ":status", "404", ":status", "418", "content-type", "text/html", "x-name", "v\u00e4lue",
+				"x-long", longValue.toString());
+	}
+
+}
@@ -0,0 +1,265 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * runs a connection over in-memory streams. the streams of the connection are
+ * handled on the reading thread, so all frames have been written when
+ * {@link Http2Connection#serve(WebRequest, String)} returns.
+ */
+public class Http2ConnectionTest {
+
+	private final static int DATA = 0x0;
+	private final static int HEADERS = 0x1;
+	private final static int RST_STREAM = 0x3;
+	private final static int SETTINGS = 0x4;
+	private final static int GOAWAY = 0x7;
+	private final static int FLAG_END_STREAM = 0x1;
+	private final static int FLAG_END_HEADERS = 0x4;
+
+	private static class Frame {
+
+		private final int type;
+		private final int flags;
+		private final int streamId;
+		private final byte[] payload;
+
+		private Frame(int type, int flags, int streamId, byte[] payload) {
+			this.type = type;
+			this.flags = flags;
+			this.streamId = streamId;
+			this.payload = payload;
+		}
+
+		private int errorCode() {
+			int offset = type == GOAWAY ? 4 : 0;
+			return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16)
+					| ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+		}
+
+	}
+
+	private static class TestServer extends WebServer {
+
+		private final AtomicInteger handled;
+
+		private TestServer() {
+			super(new File("unused.conf"));
+			handled = new AtomicInteger();
+		}
+
+		@Override
+		public WebResponse handleRequest(WebRequest request) {
+			handled.incrementAndGet();
+			WebResponse response = new WebResponse();
+			response.setBody((request.getMethod() + " " + request.getUri() + " " + request.getHeaderField("x-test"))
+					.getBytes(StandardCharsets.UTF_8));
+			return response;
+		}
+
+		@Override
+		WebResponse rateLimit(InetAddress remoteAddress, WebRequest request) {
+			return "limited".equals(request.getHeaderField("x-test")) ? prepared(ResponseCode.TOO_MANY_REQUESTS)
+					: null;
+		}
+
+	}
+
+	private final TestServer server = new TestServer();
+	private final ByteArrayOutputStream input = new ByteArrayOutputStream();
+
+	private void frame(int type, int flags, int streamId, byte[] payload) {
+		input.write(payload.length >>> 16);
+		input.write(payload.length >>> 8);
+		input.write(payload.length);
+		input.write(type);
+		input.write(flags);
+		input.write(streamId >>> 24);
+		input.write(streamId >>> 16);
+		input.write(streamId >>> 8);
+		input.write(streamId);
+		input.write(payload, 0, payload.length);
+	}
+
+	private void headers(int streamId, int flags, String... fields) {
+		HpackEncoder encoder = new HpackEncoder();
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		for (int i = 0; i < fields.length; i += 2)
+			encoder.writeHeader(block, fields[i], fields[i + 1]);
+		frame(HEADERS, flags | FLAG_END_HEADERS, streamId, block.toByteArray());
+	}
+
+	private void get(int streamId, String... fields) {
+		String[] all = new String[fields.length + 8];
+		System.arraycopy(new String[] { ":method", "GET", ":scheme", "http", ":path", "/test", ":authority",
+				"localhost" }, 0, all, 0, 8);
+		System.arraycopy(fields, 0, all, 8, fields.length);
+		headers(streamId, FLAG_END_STREAM, all);
+	}
+
+	private List<Frame> serve() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Http2Connection connection = new Http2Connection(server, InetAddress.getLoopbackAddress(),
+				new ByteArrayInputStream(input.toByteArray()), output, Runnable::run, BufferArena.UNBOUNDED);
+		connection.serve(null, null);
+		List<Frame> frames = new ArrayList<>();
+		byte[] bytes = output.toByteArray();
+		int position = 0;
+		while (position < bytes.length) {
+			int length = ((bytes[position] & 0xff) << 16) | ((bytes[position + 1] & 0xff) << 8)
+					| (bytes[position + 2] & 0xff);
+			int streamId = ((bytes[position + 5] & 0x7f) << 24) | ((bytes[position + 6] & 0xff) << 16)
+					| ((bytes[position + 7] & 0xff) << 8) | (bytes[position + 8] & 0xff);
+			byte[] payload = new byte[length];
+			System.arraycopy(bytes, position + 9, payload, 0, length);
+			frames.add(new Frame(bytes[position + 3] & 0xff, bytes[position + 4] & 0xff, streamId, payload));
+			position += 9 + length;
+		}
+		return frames;
+	}
+
+	private static Frame find(List<Frame> frames, int type, int streamId) {
+		for (Frame frame : frames)
+			if (frame.type == type && frame.streamId == streamId)
+				return frame;
+		return null;
+	}
+
+	private void assertMalformed(String... fields) throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		get(1, fields);
+		get(3);
+		List<Frame> frames = serve();
+		Frame reset = find(frames, RST_STREAM, 1);
+		assertNotNull("stream 1 has not been reset", reset);
+		assertEquals(Http2Exception.PROTOCOL_ERROR, reset.errorCode());
+		assertNull(find(frames, HEADERS, 1));
+		// the connection survives a malformed request
+		assertNotNull(find(frames, HEADERS, 3));
+		assertEquals(1, server.handled.get());
+	}
+
+	@Test
+	public void answersRequest() throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		get(1, "x-test", "value");
+		List<Frame> frames = serve();
+		assertEquals(SETTINGS, frames.get(0).type);
+		Frame headers = find(frames, HEADERS, 1);
+		assertNotNull(headers);
+		List<String[]> fields = new HpackDecoder(4096, 64 * 1024).decode(headers.payload);
+		assertEquals(":status", fields.get(0)[0]);
+		assertEquals("200", fields.get(0)[1]);
+		Frame data = find(frames, DATA, 1);
+		assertNotNull(data);
+		assertEquals("GET /test value", new String(data.payload, StandardCharsets.UTF_8));
+		assertEquals(FLAG_END_STREAM, data.flags & FLAG_END_STREAM);
+	}
+
+	@Test
+	public void limitsBeforeReadingBody() throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		headers(1, 0, ":method", "POST", ":scheme", "http", ":path", "/test", ":authority", "localhost", "x-test",
+				"limited");
+		frame(DATA, 0, 1, new byte[100]);
+		frame(DATA, FLAG_END_STREAM, 1, new byte[100]);
+		get(3);
+		List<Frame> frames = serve();
+		Frame headers = find(frames, HEADERS, 1);
+		assertNotNull(headers);
+		assertEquals("429", new HpackDecoder(4096, 64 * 1024).decode(headers.payload).get(0)[1]);
+		Frame reset = find(frames, RST_STREAM, 1);
+		assertNotNull("stream 1 has not been reset", reset);
+		assertEquals(Http2Exception.NO_ERROR, reset.errorCode());
+		assertNull(find(frames, GOAWAY, 0));
+		assertNotNull(find(frames, HEADERS, 3));
+		assertEquals(1, server.handled.get());
+	}
+
+	@Test
+	public void limitsRequestWithoutBody() throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		get(1, "x-test", "limited");
+		List<Frame> frames = serve();
+		Frame headers = find(frames, HEADERS, 1);
+		assertNotNull(headers);
+		assertEquals("429", new HpackDecoder(4096, 64 * 1024).decode(headers.payload).get(0)[1]);
+		assertNull(find(frames, RST_STREAM, 1));
+		assertEquals(0, server.handled.get());
+	}
+
+	@Test
+	public void rejectsLineBreakInValue() throws IOException {
+		assertMalformed("x-test", "value\r\nx-injected: 1");
+	}
+
+	@Test
+	public void rejectsNulInValue() throws IOException {
+		assertMalformed("x-test", "val\0ue");
+	}
+
+	@Test
+	public void rejectsColonInName() throws IOException {
+		assertMalformed("x:test", "value");
+	}
+
+	@Test
+	public void rejectsWhiteSpaceInName() throws IOException {
+		assertMalformed("x test", "value");
+	}
+
+	@Test
+	public void rejectsUpperCaseName() throws IOException {
+		assertMalformed("X-Test", "value");
+	}
+
+	@Test
+	public void rejectsConnectionSpecificField() throws IOException {
+		assertMalformed("connection", "close");
+	}
+
+	@Test
+	public void rejectsLineBreakInPath() throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		headers(1, FLAG_END_STREAM, ":method", "GET", ":scheme", "http", ":path",
+				"/test HTTP/1.1\r\nHost: localhost\r\n\r\nGET /other", ":authority", "localhost");
+		List<Frame> frames = serve();
+		assertEquals(Http2Exception.PROTOCOL_ERROR, find(frames, RST_STREAM, 1).errorCode());
+		assertEquals(0, server.handled.get());
+	}
+
+	@Test
+	public void rejectsLineBreakInAuthority() throws IOException {
+		frame(SETTINGS, 0, 0, new byte[0]);
+		headers(1, FLAG_END_STREAM, ":method", "GET", ":scheme", "http", ":path", "/test", ":authority",
+				"localhost\r\nx-injected: 1");
+		List<Frame> frames = serve();
+		assertEquals(Http2Exception.PROTOCOL_ERROR, find(frames, RST_STREAM, 1).errorCode());
+		assertEquals(0, server.handled.get());
+	}
+
+	@Test
+	public void requiresSettingsFirst() throws IOException {
+		get(1);
+		List<Frame> frames = serve();
+		Frame goAway = find(frames, GOAWAY, 0);
+		assertNotNull(goAway);
+		assertEquals(Http2Exception.PROTOCOL_ERROR, goAway.errorCode());
+		assertEquals(0, server.handled.get());
+	}
+
+}
@@ -0,0 +1,251 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * forwards requests to a stand-in upstream on the loopback interface which
+ * answers with scripted responses
+ */
+public class ProxyHandlerTest {
+
+	/**
+	 * answers each request with the next scripted response and records the
+	 * requests it receives
+	 */
+	private static class StandIn implements Closeable {
+
+		private final ServerSocket serverSocket;
+		private final BlockingQueue<String> responses;
+		private final List<String> requests;
+		private final Thread thread;
+
+		private StandIn() throws IOException {
+			serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			responses = new LinkedBlockingQueue<>();
+			requests = new CopyOnWriteArrayList<>();
+			thread = new Thread(this::accept, "stand-in");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private String getAddress() {
+			return "127.0.0.1:" + serverSocket.getLocalPort();
+		}
+
+		private void respond(String response) {
+			responses.add(response);
+		}
+
+		private void accept() {
+			while (!serverSocket.isClosed()) {
+				try {
+					Socket socket = serverSocket.accept();
+					Thread connection = new Thread(() -> serve(socket), "stand-in connection");
+					connection.setDaemon(true);
+					connection.start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int read;
+			while ((read = in.read()) != '\n') {
+				if (read == -1)
+					return null;
+				if (read != '\r')
+					line.append((char) read);
+			}
+			return line.toString();
+		}
+
+		private void serve(Socket socket) {
+			try (Socket closed = socket) {
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+				String requestLine;
+				while ((requestLine = readLine(in)) != null) {
+					StringBuilder request = new StringBuilder(requestLine);
+					int contentLength = 0;
+					String line;
+					while ((line = readLine(in)) != null && !line.isEmpty()) {
+						request.append('\n').append(line);
+						if (line.toLowerCase().startsWith("content-length:"))
+							contentLength = Integer.parseInt(line.substring(15).trim());
+					}
+					byte[] body = new byte[contentLength];
+					for (int read = 0; read < contentLength;)
+						read += in.read(body, read, contentLength - read);
+					request.append("\n\n").append(new String(body, StandardCharsets.ISO_8859_1));
+					requests.add(request.toString());
+					String response = responses.poll();
+					if (response == null)
+						return;
+					out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+				}
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+
+	}
+
+	private StandIn upstream;
+	private UpstreamPool pool;
+	private ProxyHandler handler;
+
+	@Before
+	public void start() throws IOException {
+		upstream = new StandIn();
+		pool = new UpstreamPool(UpstreamPool.Balancing.LEAST_CONNECTIONS, upstream.getAddress());
+		pool.setReadTimeout(2_000);
+		handler = new ProxyHandler(pool);
+	}
+
+	@After
+	public void stop() throws IOException {
+		pool.close();
+		upstream.close();
+	}
+
+	private static WebRequest request(String raw) throws IOException {
+		return new WebRequest(new ByteArrayInputStream(raw.getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	private static String send(WebResponse response) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		response.sendTo(out);
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private int activeRequests() {
+		return pool.getUpstreams().get(0).getActiveRequests();
+	}
+
+	@Test
+	public void forwardsRequestAndStreamsResponse() throws IOException {
+		upstream.respond("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Upstream: yes\r\n\r\nhello");
+		WebResponse response = handler
+				.handleRequest(request("POST /path?a=b HTTP/1.1\r\nHost: example.com\r\nConnection: x-hop\r\n"
+						+ "X-Hop: 1\r\nX-Kept: 2\r\nContent-Length: 4\r\n\r\nbody"));
+		assertEquals(200, response.getStatusCode());
+		String sent = send(response);
+		assertTrue(sent, sent.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(sent, sent.contains("X-Upstream: yes\r\n"));
+		assertTrue(sent, sent.endsWith("\r\n\r\nhello"));
+		String received = upstream.requests.get(0);
+		assertTrue(received, received.startsWith("POST /path?a=b HTTP/1.1\n"));
+		assertTrue(received, received.contains("\nX-Kept: 2"));
+		assertTrue(received, !received.contains("X-Hop"));
+		assertTrue(received, received.endsWith("\n\nbody"));
+		assertEquals(0, activeRequests());
+		assertEquals(1, pool.getUpstreams().get(0).getIdleConnections());
+	}
+
+	@Test
+	public void reusesConnections() throws IOException {
+		upstream.respond("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+		upstream.respond("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n1\r\nb\r\n0\r\n\r\n");
+		assertTrue(send(handler.handleRequest(request("GET /a HTTP/1.1\r\n\r\n"))).endsWith("a"));
+		String chunked = send(handler.handleRequest(request("GET /b HTTP/1.1\r\n\r\n")));
+		assertTrue(chunked, chunked.endsWith("\r\n\r\n1\r\nb\r\n0\r\n\r\n"));
+		assertEquals(2, upstream.requests.size());
+		assertEquals(1, pool.getUpstreams().get(0).getIdleConnections());
+	}
+
+	@Test
+	public void acceptsHttp10Upstream() throws IOException {
+		upstream.respond("HTTP/1.0 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		String sent = send(handler.handleRequest(request("GET /a HTTP/1.1\r\n\r\n")));
+		assertTrue(sent, sent.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(sent, sent.endsWith("\r\n\r\nok"));
+		assertEquals(0, activeRequests());
+		// HTTP/1.0 connections are not persistent
+		assertEquals(0, pool.getUpstreams().get(0).getIdleConnections());
+	}
+
+	@Test
+	public void acceptsEmptyReason() throws IOException {
+		upstream.respond("HTTP/1.1 204 \r\n\r\n");
+		upstream.respond("HTTP/1.1 200\r\nContent-Length: 0\r\n\r\n");
+		WebResponse response = handler.handleRequest(request("DELETE /a HTTP/1.1\r\n\r\n"));
+		assertEquals(204, response.getStatusCode());
+		assertEquals("", response.getStatusReason());
+		assertEquals(200, handler.handleRequest(request("GET /a HTTP/1.1\r\n\r\n")).getStatusCode());
+		assertEquals(0, activeRequests());
+		assertEquals(1, pool.getUpstreams().get(0).getIdleConnections());
+	}
+
+	@Test
+	public void rejectsMalformedStatusLine() throws IOException {
+		upstream.respond("HTTP/2 200 OK\r\n\r\n");
+		assertEquals(ResponseCode.BAD_GATEWAY.getCode(),
+				handler.handleRequest(request("GET /a HTTP/1.1\r\n\r\n")).getStatusCode());
+		assertEquals(0, activeRequests());
+	}
+
+	@Test
+	public void discardReleasesConnection() throws IOException {
+		upstream.respond("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+		WebResponse response = handler.handleRequest(request("GET /a HTTP/1.1\r\n\r\n"));
+		assertEquals(1, activeRequests());
+		response.discard();
+		assertEquals(0, activeRequests());
+		// the body has not been read, so the connection can not be reused
+		assertEquals(0, pool.getUpstreams().get(0).getIdleConnections());
+		response.discard();
+		assertEquals(0, activeRequests());
+	}
+
+	@Test
+	public void rejectsChunkedRequestBody() throws IOException {
+		WebResponse response = handler.handleRequest(
+				request("POST /path HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nbody\r\n0\r\n\r\n"));
+		assertEquals(ResponseCode.LENGTH_REQUIRED.getCode(), response.getStatusCode());
+		assertEquals(0, upstream.requests.size());
+	}
+
+	@Test
+	public void rejectsUnsupportedTransferCoding() throws IOException {
+		upstream.respond("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n0\r\n\r\n");
+		WebResponse response = handler.handleRequest(request("GET /path HTTP/1.1\r\n\r\n"));
+		assertEquals(ResponseCode.BAD_GATEWAY.getCode(), response.getStatusCode());
+		assertEquals(0, activeRequests());
+	}
+
+	@Test
+	public void answersUnreachableUpstreamWithBadGateway() throws IOException {
+		upstream.close();
+		WebResponse response = handler.handleRequest(request("GET /path HTTP/1.1\r\n\r\n"));
+		assertEquals(ResponseCode.BAD_GATEWAY.getCode(), response.getStatusCode());
+		assertEquals(0, activeRequests());
+	}
+
+}
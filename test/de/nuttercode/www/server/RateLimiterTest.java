@@ -0,0 +1,113 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	private final static String HF_KEY = "X-Api-Key";
+
+	private static InetAddress address(int last) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+	}
+
+	private static WebRequest request(String key) {
+		WebRequest request = new WebRequest();
+		request.setUri("/route");
+		if (key != null)
+			request.setHeaderField(HF_KEY, key);
+		return request;
+	}
+
+	private static RateLimiter limiter(double rate, int burst, int maxClients, RateLimiter.Scope scope) {
+		return new RateLimiter(rate, burst, maxClients, scope, scope == RateLimiter.Scope.HEADER ? HF_KEY : null,
+				WebResponse.from(ResponseCode.TOO_MANY_REQUESTS));
+	}
+
+	@Test
+	public void permitsBurst() throws UnknownHostException {
+		RateLimiter limiter = limiter(1, 3, 16, RateLimiter.Scope.ADDRESS);
+		for (int i = 0; i < 3; i++)
+			assertTrue(limiter.permits(address(1), request(null)));
+		assertFalse(limiter.permits(address(1), request(null)));
+		// other clients have their own bucket
+		assertTrue(limiter.permits(address(2), request(null)));
+	}
+
+	@Test
+	public void refillsAtRate() throws UnknownHostException, InterruptedException {
+		// one request every 20 ms
+		RateLimiter limiter = limiter(50, 1, 16, RateLimiter.Scope.ADDRESS);
+		assertTrue(limiter.permits(address(1), request(null)));
+		assertFalse(limiter.permits(address(1), request(null)));
+		Thread.sleep(40);
+		assertTrue(limiter.permits(address(1), request(null)));
+		assertFalse(limiter.permits(address(1), request(null)));
+	}
+
+	@Test
+	public void setsRetryAfter() {
+		assertEquals("1", limiter(10, 1, 16, RateLimiter.Scope.ADDRESS).getResponse().getHeaderField("Retry-After"));
+		assertEquals("4", limiter(0.25, 1, 16, RateLimiter.Scope.ADDRESS).getResponse().getHeaderField("Retry-After"));
+		assertEquals(429, limiter(1, 1, 16, RateLimiter.Scope.ADDRESS).getResponse().getStatusCode());
+	}
+
+	@Test
+	public void limitsByHeaderOrRoute() throws UnknownHostException {
+		RateLimiter byHeader = limiter(1, 1, 16, RateLimiter.Scope.HEADER);
+		assertTrue(byHeader.permits(address(1), request("a")));
+		assertFalse(byHeader.permits(address(2), request("a")));
+		assertTrue(byHeader.permits(address(1), request("b")));
+		// requests without the field are limited by their address
+		assertTrue(byHeader.permits(address(1), request(null)));
+		assertFalse(byHeader.permits(address(1), request(null)));
+		RateLimiter byRoute = limiter(1, 1, 16, RateLimiter.Scope.ROUTE);
+		assertTrue(byRoute.permits(address(1), request(null)));
+		assertFalse(byRoute.permits(address(2), request(null)));
+	}
+
+	@Test
+	public void evictsRefilledClients() throws UnknownHostException, InterruptedException {
+		RateLimiter limiter = limiter(1000, 1, 16, RateLimiter.Scope.ADDRESS);
+		for (int i = 0; i < 10; i++)
+			limiter.permits(address(i), request(null));
+		assertEquals(10, limiter.getClients());
+		Thread.sleep(5);
+		limiter.evict();
+		assertEquals(0, limiter.getClients());
+	}
+
+	@Test
+	public void boundsFullTable() throws UnknownHostException {
+		RateLimiter limiter = limiter(1, 1, 4, RateLimiter.Scope.HEADER);
+		for (int i = 0; i < 4; i++)
+			assertTrue(limiter.permits(address(1), request("key" + i)));
+		// a new key finds the table full of active clients and is limited by the
+		// address, which makes room for itself
+		assertTrue(limiter.permits(address(1), request("key4")));
+		assertEquals(4, limiter.getClients());
+		// further keys of the same address share its bucket
+		assertFalse(limiter.permits(address(1), request("key5")));
+		assertFalse(limiter.permits(address(1), request("key6")));
+		assertEquals(4, limiter.getClients());
+	}
+
+	@Test
+	public void replacesRefilledClientsOfFullTable() throws UnknownHostException, InterruptedException {
+		RateLimiter limiter = limiter(1000, 1, 4, RateLimiter.Scope.HEADER);
+		for (int i = 0; i < 4; i++)
+			assertTrue(limiter.permits(address(1), request("key" + i)));
+		Thread.sleep(5);
+		// the refilled entries make room, so the new key keeps its own bucket
+		assertTrue(limiter.permits(address(1), request("key4")));
+		assertFalse(limiter.permits(address(1), request("key4")));
+		assertTrue(limiter.permits(address(1), request(null)));
+	}
+
+}
@@ -0,0 +1,218 @@
+package de.nuttercode.www.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * the frames of the examples are the ones of section 5.7 of RFC 6455 and
+ * section 7.2.3.1 of RFC 7692
+ */
+public class WebSocketCodecTest {
+
+	private final static byte[] MASK = { 0x37, (byte) 0xfa, 0x21, 0x3d };
+
+	/**
+	 * records the callbacks as strings
+	 */
+	private static class Recorder implements WebSocketCodec.Listener {
+
+		private final List<String> events = new ArrayList<>();
+
+		@Override
+		public void onText(String message) {
+			events.add("text " + message);
+		}
+
+		@Override
+		public void onBinary(byte[] message) {
+			events.add("binary " + message.length);
+		}
+
+		@Override
+		public void onPing(byte[] data) {
+			events.add("ping " + new String(data, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void onPong(byte[] data) {
+			events.add("pong " + new String(data, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public void onClose(int code, String reason) {
+			events.add("close " + code + " " + reason);
+		}
+
+	}
+
+	/**
+	 * @param first   first byte of the header with FIN, RSV and opcode
+	 * @param payload
+	 * @return the frame as a client sends it
+	 */
+	private static byte[] clientFrame(int first, byte[] payload) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(first);
+		if (payload.length < 126)
+			frame.write(0x80 | payload.length);
+		else if (payload.length <= 0xffff) {
+			frame.write(0x80 | 126);
+			frame.write(payload.length >>> 8);
+			frame.write(payload.length);
+		} else {
+			frame.write(0x80 | 127);
+			for (int i = 7; i >= 0; i--)
+				frame.write((int) ((long) payload.length >>> (8 * i)));
+		}
+		frame.write(MASK, 0, MASK.length);
+		for (int i = 0; i < payload.length; i++)
+			frame.write(payload[i] ^ MASK[i & 3]);
+		return frame.toByteArray();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	private static byte[] utf8(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> decode(WebSocketCodec codec, byte[]... frames) throws WebSocketException {
+		Recorder recorder = new Recorder();
+		for (byte[] frame : frames)
+			codec.decode(frame, 0, frame.length, recorder);
+		return recorder.events;
+	}
+
+	private static List<String> decode(byte[]... frames) throws WebSocketException {
+		return decode(new WebSocketCodec(1024 * 1024, false, false, false), frames);
+	}
+
+	private static void assertFailure(int closeCode, WebSocketCodec codec, byte[]... frames) {
+		try {
+			decode(codec, frames);
+			fail("decoded invalid frames");
+		} catch (WebSocketException e) {
+			assertEquals(closeCode, e.getCloseCode());
+		}
+	}
+
+	private static void assertFailure(int closeCode, byte[]... frames) {
+		assertFailure(closeCode, new WebSocketCodec(1024, false, false, false), frames);
+	}
+
+	@Test
+	public void decodesMaskedText() throws WebSocketException {
+		byte[] frame = bytes(0x81, 0x85, 0x37, 0xfa, 0x21, 0x3d, 0x7f, 0x9f, 0x4d, 0x51, 0x58);
+		assertEquals(Arrays.asList("text Hello"), decode(frame));
+		// the same frame split into single bytes
+		byte[][] chunks = new byte[frame.length][];
+		for (int i = 0; i < frame.length; i++)
+			chunks[i] = new byte[] { frame[i] };
+		assertEquals(Arrays.asList("text Hello"), decode(chunks));
+	}
+
+	@Test
+	public void decodesFragmentsWithControlFrames() throws WebSocketException {
+		assertEquals(Arrays.asList("ping Hello", "text Hello world", "pong x"),
+				decode(clientFrame(0x01, utf8("Hel")), clientFrame(0x89, utf8("Hello")),
+						clientFrame(0x00, utf8("lo ")), clientFrame(0x80, utf8("world")), clientFrame(0x8a, utf8("x"))));
+	}
+
+	@Test
+	public void decodesExtendedLengths() throws WebSocketException {
+		assertEquals(Arrays.asList("binary 256", "binary 65536", "binary 0"), decode(clientFrame(0x82, new byte[256]),
+				clientFrame(0x82, new byte[65536]), clientFrame(0x82, new byte[0])));
+	}
+
+	@Test
+	public void decodesClose() throws WebSocketException {
+		assertEquals(Arrays.asList("close 1000 bye", "close 1005 "),
+				decode(clientFrame(0x88, bytes(0x03, 0xe8, 'b', 'y', 'e')), clientFrame(0x88, new byte[0])));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x88, bytes(0x03)));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x88, bytes(0x03, 0xed)));
+		assertFailure(WebSocketSession.INVALID_DATA, clientFrame(0x88, bytes(0x03, 0xe8, 0xff)));
+	}
+
+	@Test
+	public void rejectsInvalidFrames() {
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, bytes(0x81, 0x05, 'H', 'e', 'l', 'l', 'o'));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0xa1, utf8("Hello")));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x83, utf8("Hello")));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x80, utf8("Hello")));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x01, utf8("Hel")), clientFrame(0x81, utf8("lo")));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x09, utf8("ping")));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0x89, new byte[126]));
+		assertFailure(WebSocketSession.PROTOCOL_ERROR, clientFrame(0xc1, utf8("Hello")));
+		assertFailure(WebSocketSession.INVALID_DATA, clientFrame(0x81, bytes(0xc3, 0x28)));
+	}
+
+	@Test
+	public void limitsMessageSize() throws WebSocketException {
+		assertEquals(Arrays.asList("binary 1024"), decode(new WebSocketCodec(1024, false, false, false),
+				clientFrame(0x02, new byte[1000]), clientFrame(0x80, new byte[24])));
+		assertFailure(WebSocketSession.MESSAGE_TOO_BIG, clientFrame(0x02, new byte[1000]),
+				clientFrame(0x80, new byte[25]));
+	}
+
+	@Test
+	public void encodesUnmaskedFrames() {
+		WebSocketCodec codec = new WebSocketCodec(1024, false, false, false);
+		assertArrayEquals(bytes(0x81, 0x05, 'H', 'e', 'l', 'l', 'o'), codec.encode(WebSocketCodec.OP_TEXT,
+				utf8("xHello"), 1, 5));
+		byte[] medium = codec.encode(WebSocketCodec.OP_BINARY, new byte[256], 0, 256);
+		assertArrayEquals(bytes(0x82, 0x7e, 0x01, 0x00), Arrays.copyOf(medium, 4));
+		assertEquals(4 + 256, medium.length);
+		byte[] large = codec.encode(WebSocketCodec.OP_BINARY, new byte[65536], 0, 65536);
+		assertArrayEquals(bytes(0x82, 0x7f, 0, 0, 0, 0, 0, 0x01, 0x00, 0x00), Arrays.copyOf(large, 10));
+		assertEquals(10 + 65536, large.length);
+	}
+
+	@Test
+	public void inflatesCompressedMessages() throws WebSocketException {
+		WebSocketCodec codec = new WebSocketCodec(1024, true, false, false);
+		byte[] compressed = bytes(0xf2, 0x48, 0xcd, 0xc9, 0xc9, 0x07, 0x00);
+		// the second message refers to the first one in the context of the client
+		assertEquals(Arrays.asList("text Hello", "text Hello"), decode(codec, clientFrame(0xc1, compressed),
+				clientFrame(0xc1, bytes(0xf2, 0x00, 0x11, 0x00, 0x00))));
+		// the data of a compressed message may be fragmented
+		assertEquals(Arrays.asList("text Hello"), decode(new WebSocketCodec(1024, true, false, false),
+				clientFrame(0x41, Arrays.copyOf(compressed, 3)),
+				clientFrame(0x80, Arrays.copyOfRange(compressed, 3, compressed.length))));
+	}
+
+	@Test
+	public void deflatedFramesAreDecodable() throws WebSocketException {
+		WebSocketCodec server = new WebSocketCodec(64 * 1024, true, false, false);
+		WebSocketCodec client = new WebSocketCodec(64 * 1024, true, false, false);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++)
+			text.append("message ").append(i % 7).append(' ');
+		for (int round = 0; round < 3; round++) {
+			byte[] frame = server.encode(WebSocketCodec.OP_TEXT, utf8(text.toString()), 0, text.length());
+			assertEquals(0xc1, frame[0] & 0xff);
+			// a client would mask the frame the server has sent
+			int headerLength = (frame[1] & 0x7f) == 126 ? 4 : (frame[1] & 0x7f) == 127 ? 10 : 2;
+			byte[] payload = Arrays.copyOfRange(frame, headerLength, frame.length);
+			assertEquals(Arrays.asList("text " + text), decode(client, clientFrame(0xc1, payload)));
+		}
+		// payloads below the threshold are not compressed
+		assertEquals(0x81, server.encode(WebSocketCodec.OP_TEXT, utf8("short"), 0, 5)[0] & 0xff);
+		server.end();
+		client.end();
+	}
+
+}